@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import java.util.Locale;
+
+/**
+ * Simple bar, line and sparkline charts as {@link VectorGraphic}s.
+ * <p>
+ * The charts are drawn as paths and text, so they stay sharp when zoomed
+ * and take a few hundred bytes where a chart drawn into a BufferedImage
+ * takes tens or hundreds of kilobytes. Bar and line charts have a value axis
+ * marked with the lowest and highest value, and category labels below if
+ * given. Labels are 7 points and use the font of the document.</p>
+ * <pre>
+ * <code>
+ *     float[] sales = {12, 19, 7, 24};
+ *     String[] quarters = {"Q1", "Q2", "Q3", "Q4"};
+ *     doc.drawGraphic(Charts.bar(300, 120, sales, quarters, HexColor.BLUE),
+ *             HexPDF.CENTER | HexPDF.NEWLINE);
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public final class Charts {
+
+    private static final float LABEL_SIZE = 7;
+    // Rough width of a digit in most fonts, to leave room for the value axis
+    private static final float DIGIT_WIDTH = 0.56f * LABEL_SIZE;
+    private static final float GAP = 3;
+
+    private Charts() {
+    }
+
+    /**
+     * A bar chart. The value axis always includes zero, negative values give
+     * bars below a line at zero.
+     *
+     * @param width  width in points
+     * @param height height in points
+     * @param values one value per bar
+     * @param labels one label per bar, or null for none
+     * @param color  colour of the bars
+     * @return the chart
+     * @throws IllegalArgumentException if there are no values, or labels and
+     *                                  values differ in number
+     */
+    public static VectorGraphic bar(float width, float height, float[] values, String[] labels, HexColor color) {
+        check(values, labels, 1);
+        float min = Math.min(0, min(values));
+        float max = Math.max(0, max(values));
+        Frame f = new Frame(width, height, min, max, labels != null);
+        VectorGraphic g = f.axes();
+        float slot = f.plotW / values.length;
+        float barW = 0.7f * slot;
+        g.setFillColor(color);
+        for (int i = 0; i < values.length; i++) {
+            float x = f.left + i * slot + (slot - barW) / 2;
+            float y0 = f.y(0);
+            float y1 = f.y(values[i]);
+            g.fillRect(x, Math.min(y0, y1), barW, Math.abs(y1 - y0));
+        }
+        if (min < 0) {
+            g.setStrokeColor(HexColor.DARK_GRAY).setLineWidth(0.5f);
+            g.line(f.left, f.y(0), f.left + f.plotW, f.y(0));
+        }
+        f.categoryLabels(labels, slot, true);
+        return g;
+    }
+
+    /**
+     * A line chart, with the value axis from the lowest to the highest
+     * value.
+     *
+     * @param width  width in points
+     * @param height height in points
+     * @param values values at even steps
+     * @param labels one label per value, or null for none
+     * @param color  colour of the line
+     * @return the chart
+     * @throws IllegalArgumentException if there are less than two values, or
+     *                                  labels and values differ in number
+     */
+    public static VectorGraphic line(float width, float height, float[] values, String[] labels, HexColor color) {
+        check(values, labels, 2);
+        Frame f = new Frame(width, height, min(values), max(values), labels != null);
+        VectorGraphic g = f.axes();
+        float step = f.plotW / (values.length - 1);
+        float[] x = new float[values.length];
+        float[] y = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            x[i] = f.left + i * step;
+            y[i] = f.y(values[i]);
+        }
+        g.setStrokeColor(color).setLineWidth(1.5f).polyline(x, y);
+        f.categoryLabels(labels, step, false);
+        return g;
+    }
+
+    /**
+     * A sparkline, a small line chart without axes or labels to show a
+     * trend, typically in a table cell or in running text. The last value is
+     * marked with a dot.
+     *
+     * @param width  width in points
+     * @param height height in points
+     * @param values values at even steps
+     * @param color  colour of the line
+     * @return the chart
+     * @throws IllegalArgumentException if there are less than two values
+     */
+    public static VectorGraphic sparkline(float width, float height, float[] values, HexColor color) {
+        check(values, null, 2);
+        float min = min(values);
+        float range = max(values) - min;
+        float dot = 2;
+        float plotH = height - dot;
+        float step = (width - dot) / (values.length - 1);
+        float[] x = new float[values.length];
+        float[] y = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            x[i] = dot / 2 + i * step;
+            y[i] = dot / 2 + ((range > 0) ? plotH * (1 - (values[i] - min) / range) : plotH / 2);
+        }
+        VectorGraphic g = new VectorGraphic(width, height);
+        g.setStrokeColor(color).setLineWidth(0.75f).polyline(x, y);
+        g.setFillColor(color).fillRect(x[x.length - 1] - dot / 2, y[y.length - 1] - dot / 2, dot, dot);
+        return g;
+    }
+
+    private static void check(float[] values, String[] labels, int min) {
+        if (values.length < min) {
+            throw new IllegalArgumentException("Chart needs at least " + min + " values, got " + values.length);
+        }
+        for (float v : values) {
+            if (Float.isNaN(v) || Float.isInfinite(v)) {
+                throw new IllegalArgumentException("Chart values must be finite, got " + v);
+            }
+        }
+        if (labels != null && labels.length != values.length) {
+            throw new IllegalArgumentException("Expected " + values.length + " labels, got " + labels.length);
+        }
+    }
+
+    private static float min(float[] values) {
+        float min = values[0];
+        for (float v : values) {
+            min = Math.min(min, v);
+        }
+        return min;
+    }
+
+    private static float max(float[] values) {
+        float max = values[0];
+        for (float v : values) {
+            max = Math.max(max, v);
+        }
+        return max;
+    }
+
+    private static String format(float value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e9f) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    // Plot area and value scale shared by bar and line charts
+    private static final class Frame {
+
+        final VectorGraphic g;
+        final float left;
+        final float top;
+        final float plotW;
+        final float plotH;
+        final float min;
+        final float range;
+        final String minLabel;
+        final String maxLabel;
+
+        Frame(float width, float height, float min, float max, boolean labels) {
+            g = new VectorGraphic(width, height);
+            this.min = min;
+            this.range = (max > min) ? max - min : 1;
+            minLabel = format(min);
+            maxLabel = format(max > min ? max : min + 1);
+            left = GAP + DIGIT_WIDTH * Math.max(minLabel.length(), maxLabel.length());
+            top = LABEL_SIZE / 2;
+            plotW = Math.max(0, width - left);
+            plotH = Math.max(0, height - top - (labels ? LABEL_SIZE + GAP : 0));
+        }
+
+        float y(float value) {
+            return top + plotH * (1 - (value - min) / range);
+        }
+
+        VectorGraphic axes() {
+            g.setStrokeColor(HexColor.DARK_GRAY).setLineWidth(0.5f);
+            g.line(left, top, left, top + plotH);
+            g.line(left, top + plotH, left + plotW, top + plotH);
+            g.setFillColor(HexColor.DARK_GRAY);
+            g.label(maxLabel, left - GAP, top + LABEL_SIZE / 3, LABEL_SIZE, HexPDF.RIGHT);
+            g.label(minLabel, left - GAP, top + plotH + LABEL_SIZE / 3, LABEL_SIZE, HexPDF.RIGHT);
+            return g;
+        }
+
+        // Labels below each bar, or below each point of a line
+        void categoryLabels(String[] labels, float step, boolean centred) {
+            if (labels == null) {
+                return;
+            }
+            g.setFillColor(HexColor.DARK_GRAY);
+            float baseline = top + plotH + GAP + LABEL_SIZE * 0.8f;
+            for (int i = 0; i < labels.length; i++) {
+                float x = left + i * step + (centred ? step / 2 : 0);
+                g.label(labels[i], x, baseline, LABEL_SIZE, HexPDF.CENTER);
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a document as PDF 1.5 with object streams and a cross-reference
+ * stream, in one pass over the objects.
+ * <p>
+ * Objects are numbered as they are first reached from the trailer. Streams
+ * are written as they are, all other objects are packed into Flate
+ * compressed object streams of up to {@value #OBJECTS_PER_STREAM} objects,
+ * and the cross-reference is written as a compressed stream at the end.
+ * Encryption and incremental updates are not supported.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+final class CompactWriter extends ObjectWriter {
+
+    static final int OBJECTS_PER_STREAM = 100;
+
+    private final CountingOutputStream out;
+    private final int level;
+    private final Map<COSBase, Integer> numbers = new IdentityHashMap<COSBase, Integer>();
+    private final ArrayDeque<COSBase> queue = new ArrayDeque<COSBase>();
+    private int nextNumber = 1;
+
+    // Cross-reference entries by object number: type, offset or object stream, index
+    private byte[] types = new byte[256];
+    private long[] fields = new long[256];
+    private int[] indexes = new int[256];
+
+    // Object stream being filled
+    private final ByteArrayOutputStream objects = new ByteArrayOutputStream();
+    private final StringBuilder objectOffsets = new StringBuilder();
+    private final int[] objectNumbers = new int[OBJECTS_PER_STREAM];
+    private int numObjects = 0;
+
+    /**
+     * @param out   where the document is written, closed when done
+     * @param level Flate level for object and cross-reference streams, from
+     *              <code>java.util.zip.Deflater</code>
+     */
+    CompactWriter(OutputStream out, int level) {
+        this.out = new CountingOutputStream(out);
+        this.level = level;
+    }
+
+    /**
+     * Write the document and close the stream.
+     *
+     * @param doc the document
+     * @throws IOException if writing fails
+     */
+    void write(COSDocument doc) throws IOException {
+        try {
+            COSDictionary trailer = doc.getTrailer();
+            float version = Math.max(1.5f, doc.getVersion());
+            out.write(bytes("%PDF-" + version + "\n%"));
+            out.write(new byte[]{(byte) 0xe2, (byte) 0xe3, (byte) 0xcf, (byte) 0xd3, '\n'});
+
+            int root = number(trailer.getDictionaryObject(COSName.ROOT));
+            COSBase infoObject = trailer.getDictionaryObject(COSName.INFO);
+            int info = (infoObject instanceof COSDictionary) ? number(infoObject) : 0;
+            while (!queue.isEmpty()) {
+                COSBase obj = queue.poll();
+                if (obj instanceof COSStream) {
+                    writeStream(numbers.get(obj), (COSStream) obj);
+                } else {
+                    addObject(numbers.get(obj), obj);
+                }
+            }
+            flushObjects();
+            writeXref(root, info, trailer.getDictionaryObject(COSName.ID));
+        } finally {
+            out.close();
+        }
+    }
+
+    // Number of an indirect object, queuing it for writing the first time
+    @Override
+    int number(COSBase obj) {
+        Integer number = numbers.get(obj);
+        if (number == null) {
+            number = nextNumber++;
+            numbers.put(obj, number);
+            queue.add(obj);
+        }
+        return number;
+    }
+
+    private void writeStream(int number, COSStream stream) throws IOException {
+        entry(number, 1, out.count, 0);
+        out.write(bytes(number + " 0 obj\n"));
+        writeBody(stream, out);
+        out.write(bytes("\nstream\n"));
+        copyStream(number, stream, out);
+        out.write(bytes("\nendstream\nendobj\n"));
+    }
+
+    private void addObject(int number, COSBase obj) throws IOException {
+        objectNumbers[numObjects++] = number;
+        objectOffsets.append(number).append(' ').append(objects.size()).append(' ');
+        writeBody(obj, objects);
+        objects.write('\n');
+        if (numObjects == OBJECTS_PER_STREAM) {
+            flushObjects();
+        }
+    }
+
+    private void flushObjects() throws IOException {
+        if (numObjects == 0) {
+            return;
+        }
+        int number = nextNumber++;
+        byte[] offsets = bytes(objectOffsets.toString());
+        ByteArrayOutputStream data = new ByteArrayOutputStream(offsets.length + objects.size());
+        data.write(offsets);
+        objects.writeTo(data);
+        entry(number, 1, out.count, 0);
+        writeCompressed(number, "/Type /ObjStm /N " + numObjects + " /First " + offsets.length, data.toByteArray());
+        for (int i = 0; i < numObjects; i++) {
+            entry(objectNumbers[i], 2, number, i);
+        }
+        objects.reset();
+        objectOffsets.setLength(0);
+        numObjects = 0;
+    }
+
+    private void writeXref(int root, int info, COSBase id) throws IOException {
+        int number = nextNumber++;
+        long offset = out.count;
+        entry(number, 1, offset, 0);
+        entry(0, 0, 0, 65535);
+
+        long max = 0;
+        for (int i = 0; i < nextNumber; i++) {
+            max = Math.max(max, fields[i]);
+        }
+        int w2 = 1;
+        while (w2 < 8 && (max >>> (8 * w2)) != 0) {
+            w2++;
+        }
+        // PNG Up predictor: each row is stored as the difference from the row
+        // above, after a byte telling so. Only used with compression.
+        boolean predict = level != Deflater.NO_COMPRESSION;
+        int columns = 1 + w2 + 2;
+        int rowLength = predict ? columns + 1 : columns;
+        byte[] rows = new byte[nextNumber * rowLength];
+        byte[] row = new byte[columns];
+        byte[] prev = new byte[columns];
+        for (int i = 0; i < nextNumber; i++) {
+            row[0] = types[i];
+            for (int b = 0; b < w2; b++) {
+                row[1 + b] = (byte) (fields[i] >>> (8 * (w2 - 1 - b)));
+            }
+            row[1 + w2] = (byte) (indexes[i] >>> 8);
+            row[2 + w2] = (byte) indexes[i];
+            int pos = i * rowLength;
+            if (!predict) {
+                System.arraycopy(row, 0, rows, pos, columns);
+                continue;
+            }
+            rows[pos] = 2;
+            for (int b = 0; b < columns; b++) {
+                rows[pos + 1 + b] = (byte) (row[b] - prev[b]);
+            }
+            byte[] t = prev;
+            prev = row;
+            row = t;
+        }
+
+        ByteArrayOutputStream dict = new ByteArrayOutputStream();
+        dict.write(bytes("/Type /XRef /Size " + nextNumber + " /W [1 " + w2 + " 2] /Root " + root + " 0 R"));
+        if (info > 0) {
+            dict.write(bytes(" /Info " + info + " 0 R"));
+        }
+        dict.write(bytes(" /ID "));
+        if (id instanceof COSArray && ((COSArray) id).size() == 2) {
+            writeValue(id, dict);
+        } else {
+            // As COSWriter, from the time and what is written so far
+            COSString newId = new COSString(out.digest(Long.toString(System.currentTimeMillis())));
+            COSArray ids = new COSArray();
+            ids.add(newId);
+            ids.add(newId);
+            writeValue(ids, dict);
+        }
+        if (predict) {
+            dict.write(bytes(" /DecodeParms <</Columns " + columns + " /Predictor 12>>"));
+        }
+        writeCompressed(number, new String(dict.toByteArray(), StandardCharsets.ISO_8859_1), rows);
+        out.write(bytes("startxref\n" + offset + "\n%%EOF\n"));
+    }
+
+    // Write a stream object made here, Flate compressed unless the level is 0
+    private void writeCompressed(int number, String dict, byte[] data) throws IOException {
+        byte[] body = (level != Deflater.NO_COMPRESSION) ? deflate(data, level) : data;
+        out.write(bytes(number + " 0 obj\n<<" + dict
+                + (level != Deflater.NO_COMPRESSION ? " /Filter /FlateDecode" : "")
+                + " /Length " + body.length + ">>\nstream\n"));
+        out.write(body);
+        out.write(bytes("\nendstream\nendobj\n"));
+    }
+
+    private void entry(int number, int type, long field, int index) {
+        if (number >= types.length) {
+            int size = Math.max(2 * types.length, number + 1);
+            types = Arrays.copyOf(types, size);
+            fields = Arrays.copyOf(fields, size);
+            indexes = Arrays.copyOf(indexes, size);
+        }
+        types[number] = (byte) type;
+        fields[number] = field;
+        indexes[number] = index;
+    }
+
+    // Counts the bytes written, and digests them for a document ID
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+        private final MessageDigest md5;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                md = null;
+            }
+            md5 = md;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (md5 != null) {
+                md5.update((byte) b);
+            }
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (md5 != null) {
+                md5.update(b, off, len);
+            }
+            count += len;
+        }
+
+        byte[] digest(String salt) {
+            if (md5 == null) {
+                return bytes(salt);
+            }
+            md5.update(bytes(salt));
+            return md5.digest();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+import java.awt.image.BufferedImage;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest of the calls made to a document and their arguments.
+ * <p>
+ * Two documents given the same calls with the same arguments are laid out the
+ * same, so the digest identifies the output without producing it. Calls whose
+ * effect cannot be captured, such as direct use of the content stream, taint
+ * the fingerprint, and a tainted fingerprint must not be used as a cache
+ * key.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+final class Fingerprint {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest digest;
+    private final byte[] buf = new byte[256];
+    private boolean tainted = false;
+
+    Fingerprint() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Start a new call.
+     *
+     * @param name name of the call
+     * @return this fingerprint
+     */
+    Fingerprint op(String name) {
+        return add(name);
+    }
+
+    Fingerprint add(int value) {
+        buf[0] = (byte) (value >>> 24);
+        buf[1] = (byte) (value >>> 16);
+        buf[2] = (byte) (value >>> 8);
+        buf[3] = (byte) value;
+        digest.update(buf, 0, 4);
+        return this;
+    }
+
+    Fingerprint add(long value) {
+        add((int) (value >>> 32));
+        return add((int) value);
+    }
+
+    Fingerprint add(float value) {
+        return add(Float.floatToIntBits(value));
+    }
+
+    Fingerprint add(boolean value) {
+        return add(value ? 1 : 0);
+    }
+
+    Fingerprint add(String value) {
+        if (value == null) {
+            return add(-1);
+        }
+        add(value.length());
+        return add(value, 0, value.length());
+    }
+
+    // Characters only, the caller takes care of lengths
+    private Fingerprint add(CharSequence value, int off, int len) {
+        int n = 0;
+        for (int i = off; i < off + len; i++) {
+            char c = value.charAt(i);
+            buf[n++] = (byte) (c >>> 8);
+            buf[n++] = (byte) c;
+            if (n == buf.length) {
+                digest.update(buf, 0, n);
+                n = 0;
+            }
+        }
+        digest.update(buf, 0, n);
+        return this;
+    }
+
+    Fingerprint add(byte[] value) {
+        if (value == null) {
+            return add(-1);
+        }
+        add(value.length);
+        digest.update(value);
+        return this;
+    }
+
+    Fingerprint add(float[] value) {
+        if (value == null) {
+            return add(-1);
+        }
+        add(value.length);
+        for (float f : value) {
+            add(f);
+        }
+        return this;
+    }
+
+    Fingerprint add(int[] value) {
+        if (value == null) {
+            return add(-1);
+        }
+        add(value.length);
+        for (int i : value) {
+            add(i);
+        }
+        return this;
+    }
+
+    Fingerprint add(HexColor color) {
+        if (color == null) {
+            return add(-1);
+        }
+        return add(0).add(color.getRed()).add(color.getGreen()).add(color.getBlue());
+    }
+
+    /*
+     * Fonts are told apart by type and name. Two different embedded fonts
+     * with the same name would give the same fingerprint.
+     */
+    Fingerprint add(PDFont font) {
+        if (font == null) {
+            return add((String) null);
+        }
+        return add(font.getClass().getName()).add(font.getName());
+    }
+
+    Fingerprint add(FontFallback fallback) {
+        if (fallback == null) {
+            return add(-1);
+        }
+        add(fallback.getFonts().size());
+        for (PDFont font : fallback.getFonts()) {
+            add(font);
+        }
+        return this;
+    }
+
+    Fingerprint add(PDRectangle rect) {
+        if (rect == null) {
+            return add(-1);
+        }
+        return add(0).add(rect.getLowerLeftX()).add(rect.getLowerLeftY())
+                .add(rect.getWidth()).add(rect.getHeight());
+    }
+
+    Fingerprint add(BufferedImage image) {
+        if (image == null) {
+            return add(-1);
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        add(w).add(h);
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            for (int argb : row) {
+                add(argb);
+            }
+        }
+        return this;
+    }
+
+    Fingerprint add(RasterImage image) {
+        if (image == null) {
+            return add(-1);
+        }
+        add(0);
+        image.addTo(this);
+        return this;
+    }
+
+    Fingerprint add(VectorGraphic graphic) {
+        if (graphic == null) {
+            return add(-1);
+        }
+        add(0);
+        graphic.addTo(this);
+        return this;
+    }
+
+    /*
+     * Image sources are known by their file or URL, and assumed not to change
+     * while cached output is in use. Images given as bytes cannot be told
+     * apart without loading them. Only the declared size is added, so that
+     * nothing is read before the image is placed.
+     */
+    Fingerprint add(ImageSource source) {
+        if (source == null) {
+            return add(-1);
+        }
+        Object key = source.getKey();
+        if (key instanceof String || key instanceof Path) {
+            add(key.toString());
+        } else {
+            taint();
+        }
+        return add(source.getDeclaredWidth()).add(source.getDeclaredHeight());
+    }
+
+    Fingerprint add(Footer footer) {
+        if (footer == null) {
+            return add(-1);
+        }
+        return add(0).add(footer.getTextHexColor()).add(footer.getLeftText()).add(footer.getCenterText())
+                .add(footer.getRightText()).add(footer.isOMIT_FIRSTPAGE()).add(footer.isCOUNT_FIRSTPAGE())
+                .add(footer.isGLOBAL_PAGENUM()).add(footer.isGLOBAL_NUMPAGES())
+                .add(footer.getFont()).add(footer.getFontsize());
+    }
+
+    /**
+     * Add a table cell, which may be text, an image, an image source or a
+     * vector graphic.
+     *
+     * @param cell the cell contents
+     * @return this fingerprint
+     */
+    Fingerprint addCell(Object cell) {
+        if (cell == null || cell instanceof String) {
+            return add(0).add((String) cell);
+        } else if (cell instanceof VectorGraphic) {
+            return add(4).add((VectorGraphic) cell);
+        } else if (cell instanceof RasterImage) {
+            return add(3).add((RasterImage) cell);
+        } else if (cell instanceof ImageSource) {
+            return add(2).add((ImageSource) cell);
+        } else if (cell instanceof BufferedImage) {
+            return add(1).add((BufferedImage) cell);
+        }
+        return add(0).add(cell.toString());
+    }
+
+    /**
+     * Wrap a reader, adding the characters to the fingerprint as they are
+     * read. The characters are added as one run however they are read, the
+     * caller should add a marker when the text ends.
+     *
+     * @param reader the text source
+     * @return reader giving the same text
+     */
+    Reader reader(Reader reader) {
+        return new FilterReader(reader) {
+            @Override
+            public int read() throws IOException {
+                int c = super.read();
+                if (c >= 0) {
+                    add(String.valueOf((char) c), 0, 1);
+                }
+                return c;
+            }
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                int n = super.read(cbuf, off, len);
+                if (n > 0) {
+                    add(CharBuffer.wrap(cbuf, off, n), 0, n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Mark the fingerprint as not identifying the output.
+     */
+    void taint() {
+        tainted = true;
+    }
+
+    /**
+     * @return true if the output depends on something not captured
+     */
+    boolean isTainted() {
+        return tainted;
+    }
+
+    /**
+     * Finish the fingerprint. No more calls can be added afterwards.
+     *
+     * @return the digest as a lower case hex string
+     */
+    String finish() {
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Document ID derived from a finished fingerprint.
+     *
+     * @param key value returned by {@link #finish()}
+     * @return 16 bytes identifying the document
+     */
+    static byte[] documentId(String key) {
+        byte[] id = new byte[16];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = (byte) Integer.parseInt(key.substring(2 * i, 2 * i + 2), 16);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fonts to draw the characters the document font does not have.
+ * <p>
+ * Text is split into runs, each drawn in the first font that has all its
+ * characters: the document font if it can, otherwise the fallback fonts in
+ * the order given. Characters no font has are left to the document font.
+ * Text is measured and word-wrapped the same way, also in table cells.</p>
+ * <p>
+ * Which characters a font has is found out 256 code points at a time, the
+ * first time a character of each block is drawn, and kept as bits. Finding
+ * the font of a character is then a lookup. A fallback font is only written
+ * to the document if a page uses it, so a large font covering most of
+ * Unicode costs nothing for text that does not need it. Fonts loaded with
+ * subsetting get the glyphs used only.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     PDFont cyrillic = PDType0Font.load(doc, new File("DejaVuSans.ttf"));
+ *     PDFont cjk = PDType0Font.load(doc, new File("NotoSansCJK.ttf"));
+ *     doc.setFontFallback(new FontFallback(cyrillic, cjk));
+ *     doc.drawText("Ivan Иванов 伊万\n", HexPDF.LEFT);
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public class FontFallback {
+
+    // Coverage of the standard 14 fonts, which are shared by all documents
+    private static final Map<PDFont, Coverage> STANDARD = new WeakHashMap<PDFont, Coverage>();
+
+    private final PDFont[] fonts;
+    private final Coverage[] coverages;
+    // Coverage of the document fonts met so far
+    private final Map<PDFont, Coverage> primaries = new IdentityHashMap<PDFont, Coverage>();
+
+    /**
+     * @param fonts fonts to try, in order, for characters the document font
+     *              does not have. Fonts loaded with <code>PDType0Font</code>
+     *              must belong to the document using the fallback.
+     */
+    public FontFallback(PDFont... fonts) {
+        this.fonts = fonts.clone();
+        this.coverages = new Coverage[fonts.length];
+        for (int i = 0; i < fonts.length; i++) {
+            if (fonts[i] == null) {
+                throw new IllegalArgumentException("Fallback font " + i + " is null");
+            }
+            coverages[i] = new Coverage(fonts[i]);
+        }
+    }
+
+    /**
+     * @return the fallback fonts, in the order they are tried
+     */
+    public List<PDFont> getFonts() {
+        return Collections.unmodifiableList(Arrays.asList(fonts));
+    }
+
+    /**
+     * Tells whether a font has a character.
+     *
+     * @param font      the font, the document font or one of the fallback
+     *                  fonts
+     * @param codePoint the character
+     * @return true if the font can draw the character
+     */
+    public boolean hasGlyph(PDFont font, int codePoint) {
+        return coverage(font).has(codePoint);
+    }
+
+    /**
+     * Find the font to draw a character in.
+     *
+     * @param font      the document font
+     * @param codePoint the character
+     * @return the document font if it has the character, otherwise the first
+     * fallback font that has it, or the document font if none has it
+     */
+    public PDFont fontFor(PDFont font, int codePoint) {
+        return fontFor(font, coverage(font), codePoint);
+    }
+
+    private PDFont fontFor(PDFont font, Coverage primary, int codePoint) {
+        if (primary.has(codePoint)) {
+            return font;
+        }
+        for (int i = 0; i < fonts.length; i++) {
+            if (coverages[i].has(codePoint)) {
+                return fonts[i];
+            }
+        }
+        return font;
+    }
+
+    // True if the font has every character of the text
+    boolean covers(PDFont font, String text) {
+        Coverage primary = coverage(font);
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            if (!primary.has(cp)) {
+                return false;
+            }
+            i += Character.charCount(cp);
+        }
+        return true;
+    }
+
+    // Split the text into runs of one font each
+    List<Run> runs(PDFont font, String text) {
+        Coverage primary = coverage(font);
+        List<Run> runs = new ArrayList<Run>();
+        PDFont runFont = null;
+        int start = 0;
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            PDFont f = fontFor(font, primary, cp);
+            if (f != runFont) {
+                if (i > start) {
+                    runs.add(new Run(runFont, text.substring(start, i)));
+                }
+                runFont = f;
+                start = i;
+            }
+            i += Character.charCount(cp);
+        }
+        if (start < text.length()) {
+            runs.add(new Run(runFont, text.substring(start)));
+        }
+        return runs;
+    }
+
+    // Width of the text in points, each run measured in its own font
+    float width(PDFont font, float fontSize, String text) {
+        float width = 0;
+        for (Run run : runs(font, text)) {
+            try {
+                synchronized (run.font) {
+                    width += run.font.getStringWidth(run.text) * fontSize / 1000;
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(FontFallback.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return width;
+    }
+
+    private Coverage coverage(PDFont font) {
+        for (int i = 0; i < fonts.length; i++) {
+            if (fonts[i] == font) {
+                return coverages[i];
+            }
+        }
+        Map<PDFont, Coverage> known = (font instanceof PDType1Font && ((PDType1Font) font).isStandard14())
+                ? STANDARD : primaries;
+        synchronized (known) {
+            Coverage coverage = known.get(font);
+            if (coverage == null) {
+                coverage = new Coverage(font);
+                known.put(font, coverage);
+            }
+            return coverage;
+        }
+    }
+
+    // Text to be drawn in one font
+    static final class Run {
+
+        final PDFont font;
+        final String text;
+
+        Run(PDFont font, String text) {
+            this.font = font;
+            this.text = text;
+        }
+    }
+
+    /*
+     * The characters a font can encode, as one bit per code point. Blocks of
+     * 256 code points are filled in when first looked at, and not changed
+     * afterwards, so lookups need no lock.
+     */
+    private static final class Coverage {
+
+        private final PDFont font;
+        private final AtomicReferenceArray<long[]> blocks
+                = new AtomicReferenceArray<long[]>((Character.MAX_CODE_POINT + 1) >> 8);
+
+        Coverage(PDFont font) {
+            this.font = font;
+        }
+
+        boolean has(int codePoint) {
+            long[] block = blocks.get(codePoint >>> 8);
+            if (block == null) {
+                block = probe(codePoint >>> 8);
+                blocks.set(codePoint >>> 8, block);
+            }
+            return (block[(codePoint >> 6) & 3] & (1L << codePoint)) != 0;
+        }
+
+        private long[] probe(int block) {
+            long[] bits = new long[4];
+            // Fonts cache glyphs in plain maps, and may be shared by documents
+            synchronized (font) {
+                for (int i = 0; i < 256; i++) {
+                    int cp = (block << 8) | i;
+                    if (Character.getType(cp) == Character.SURROGATE || Character.isISOControl(cp)) {
+                        continue;
+                    }
+                    try {
+                        if (font.encode(new String(Character.toChars(cp))).length > 0) {
+                            bits[i >> 6] |= 1L << i;
+                        }
+                    } catch (IOException | IllegalArgumentException ex) {
+                        // Not in the font
+                    }
+                }
+            }
+            return bits;
+        }
+    }
+}
@@ -15,14 +15,17 @@ import org.apache.pdfbox.pdmodel.font.PDType1Font;
  */
 public class Footer {
 
-    private Color textColor;
+    private HexColor textColor;
     private String leftText;
     private String rightText;
     private String centerText;
     private boolean OMIT_FIRSTPAGE;
     private boolean COUNT_FIRSTPAGE;
+    private boolean GLOBAL_PAGENUM;
+    private boolean GLOBAL_NUMPAGES;
     private PDFont font;
     private float fontsize;
+    private boolean frozen;
 
     /**
      * Keyword replaced by the current page number. if COUNT_FIRSTPAGE is false,
@@ -49,38 +52,125 @@ public class Footer {
      */
     public static final String NUMPAGES = "${NUMPAGES}";
 
+    /**
+     * Keyword replaced by the number of the volume, starting at 1. Always 1
+     * unless the document is split into volumes.
+     *
+     * @see HexPDF#setVolumes(VolumeSink, int, long)
+     */
+    public static final String VOLUME = "${VOLUME}";
+
     /**
      * Convenience function for returning a default footer style. The default
      * footer typesets the footer in gray TIMES_BOLD, sz 8. The left part of the
      * text is todays date, center is username, and the right part is PAGENUM of
      * NUMPAGES
+     *
+     * @deprecated this instance is shared by everyone and can be changed by
+     * anyone, which is unsafe when documents are made in several threads. Use
+     * <code>new Footer()</code> or the immutable {@link #DEFAULT} instead.
      */
+    @Deprecated
     public static Footer defaultFooter = new Footer();
 
     /**
-     * Sole constructor.
+     * The default footer as an immutable instance, safe to share between
+     * documents and threads. Same style as <code>new Footer()</code>.
+     *
+     * @see #freeze()
+     */
+    public static final Footer DEFAULT = new Footer().freeze();
+
+    /**
+     * Default constructor.
      * Return a footer in gray TIMES_BOLD, sz 8.
      * The left part of the text is todays date, 
      * center is username, 
      * and the right part is PAGENUM of NUMPAGES
      */
     public Footer() {
-        textColor = Color.gray;
+        textColor = HexColor.GRAY;
         leftText = Footer.DATE;
         centerText = Footer.USER;
         rightText = "Page " + Footer.PAGENUM + " of " + Footer.NUMPAGES;
         OMIT_FIRSTPAGE = true;
         COUNT_FIRSTPAGE = true;
+        GLOBAL_PAGENUM = false;
+        GLOBAL_NUMPAGES = false;
         font = PDType1Font.TIMES_BOLD;
         fontsize = 8;
+        frozen = false;
+    }
+
+    /**
+     * Copy constructor. The copy can be changed even if the original is
+     * frozen.
+     *
+     * @param other the footer to copy
+     */
+    public Footer(Footer other) {
+        textColor = other.textColor;
+        leftText = other.leftText;
+        centerText = other.centerText;
+        rightText = other.rightText;
+        OMIT_FIRSTPAGE = other.OMIT_FIRSTPAGE;
+        COUNT_FIRSTPAGE = other.COUNT_FIRSTPAGE;
+        GLOBAL_PAGENUM = other.GLOBAL_PAGENUM;
+        GLOBAL_NUMPAGES = other.GLOBAL_NUMPAGES;
+        font = other.font;
+        fontsize = other.fontsize;
+        frozen = false;
+    }
+
+    /**
+     * Returns an immutable copy of this footer. Any setter called on the copy
+     * throws <code>UnsupportedOperationException</code>, so the copy can be
+     * shared between documents and threads without further copying.
+     *
+     * @return an immutable footer with the same settings
+     * @see #isFrozen()
+     */
+    public Footer freeze() {
+        if (frozen) {
+            return this;
+        }
+        Footer copy = new Footer(this);
+        copy.frozen = true;
+        return copy;
+    }
+
+    /**
+     * Tells whether this footer is immutable.
+     *
+     * @return true if the footer cannot be changed
+     * @see #freeze()
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Footer is frozen, change a copy made with new Footer(footer)");
+        }
     }
 
     /**
      * Gets currently selected text color for the footer.
      *
      * @return color, default is java.awt.Color.gray
+     * @see #getTextHexColor()
      */
     public Color getTextColor() {
+        return (textColor != null) ? textColor.toColor() : null;
+    }
+
+    /**
+     * Gets currently selected text color for the footer, without using AWT.
+     *
+     * @return color, default is HexColor.GRAY
+     */
+    public HexColor getTextHexColor() {
         return textColor;
     }
 
@@ -90,6 +180,16 @@ public class Footer {
      * @param textColor new text color
      */
     public void setTextColor(Color textColor) {
+        setTextColor(HexColor.of(textColor));
+    }
+
+    /**
+     * Set the color to use for footer text, without using AWT.
+     *
+     * @param textColor new text color
+     */
+    public void setTextColor(HexColor textColor) {
+        checkMutable();
         this.textColor = textColor;
     }
 
@@ -101,6 +201,7 @@ public class Footer {
      * @see #NUMPAGES
      */
     public void setLeftText(String leftText) {
+        checkMutable();
         this.leftText = leftText;
     }
 
@@ -112,6 +213,7 @@ public class Footer {
      * @see #NUMPAGES
      */
     public void setRightText(String rightText) {
+        checkMutable();
         this.rightText = rightText;
     }
 
@@ -123,6 +225,7 @@ public class Footer {
      * @see #NUMPAGES
      */
     public void setCenterText(String centerText) {
+        checkMutable();
         this.centerText = centerText;
     }
 
@@ -141,6 +244,7 @@ public class Footer {
      * @param OMIT_FIRSTPAGE    true or false
      */
     public void setOMIT_FIRSTPAGE(boolean OMIT_FIRSTPAGE) {
+        checkMutable();
         this.OMIT_FIRSTPAGE = OMIT_FIRSTPAGE;
     }
 
@@ -164,9 +268,63 @@ public class Footer {
      * @see #NUMPAGES
      */
     public void setCOUNT_FIRSTPAGE(boolean COUNT_FIRSTPAGE) {
+        checkMutable();
         this.COUNT_FIRSTPAGE = COUNT_FIRSTPAGE;
     }
 
+    /**
+     * Tells whether pages are numbered through all volumes of a document
+     * split into volumes, or from the start of each volume.
+     *
+     * @return true or false, default is false
+     * @see #PAGENUM
+     */
+    public boolean isGLOBAL_PAGENUM() {
+        return GLOBAL_PAGENUM;
+    }
+
+    /**
+     * Set this flag to number pages through all volumes, rather than from
+     * the start of each volume. The first page is then only the first page
+     * of the first volume. Has no effect unless the document is split into
+     * volumes.
+     *
+     * @param GLOBAL_PAGENUM true or false
+     * @see #PAGENUM
+     * @see HexPDF#setVolumes(VolumeSink, int, long)
+     */
+    public void setGLOBAL_PAGENUM(boolean GLOBAL_PAGENUM) {
+        checkMutable();
+        this.GLOBAL_PAGENUM = GLOBAL_PAGENUM;
+    }
+
+    /**
+     * Tells whether the total page count is of all volumes of a document
+     * split into volumes, or of each volume.
+     *
+     * @return true or false, default is false
+     * @see #NUMPAGES
+     */
+    public boolean isGLOBAL_NUMPAGES() {
+        return GLOBAL_NUMPAGES;
+    }
+
+    /**
+     * Set this flag to count the pages of all volumes as the total, rather
+     * than those of each volume. The total is not known until the document
+     * is finished, so volumes are then kept until all are done, instead of
+     * written as each is full. Has no effect unless the document is split
+     * into volumes.
+     *
+     * @param GLOBAL_NUMPAGES true or false
+     * @see #NUMPAGES
+     * @see HexPDF#setVolumes(VolumeSink, int, long)
+     */
+    public void setGLOBAL_NUMPAGES(boolean GLOBAL_NUMPAGES) {
+        checkMutable();
+        this.GLOBAL_NUMPAGES = GLOBAL_NUMPAGES;
+    }
+
     /**
      * Returns the font selected for footer text.
      *
@@ -182,6 +340,7 @@ public class Footer {
      * @param font font size in points
      */
     public void setFont(PDFont font) {
+        checkMutable();
         this.font = font;
     }
 
@@ -200,6 +359,7 @@ public class Footer {
      * @param fontsize font size in points
      */
     public void setFontsize(float fontsize) {
+        checkMutable();
         this.fontsize = fontsize;
     }
 
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+
+import java.awt.Color;
+
+/**
+ * An RGB colour, immutable.
+ * <p>
+ * Used by HexPDF in place of <code>java.awt.Color</code>, as loading that
+ * class starts AWT, which takes time and memory and is not available
+ * everywhere. Methods taking a <code>java.awt.Color</code> are still there,
+ * and give the same output.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public final class HexColor {
+
+    public static final HexColor BLACK = rgb(0x000000);
+    public static final HexColor WHITE = rgb(0xffffff);
+    public static final HexColor GRAY = rgb(0x808080);
+    public static final HexColor LIGHT_GRAY = rgb(0xc0c0c0);
+    public static final HexColor DARK_GRAY = rgb(0x404040);
+    public static final HexColor RED = rgb(0xff0000);
+    public static final HexColor GREEN = rgb(0x00ff00);
+    public static final HexColor BLUE = rgb(0x0000ff);
+
+    private final float red;
+    private final float green;
+    private final float blue;
+
+    private HexColor(float red, float green, float blue) {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+    }
+
+    /**
+     * Colour from components in the range 0 to 1.
+     *
+     * @param red   red component
+     * @param green green component
+     * @param blue  blue component
+     * @return the colour
+     * @throws IllegalArgumentException if a component is out of range
+     */
+    public static HexColor rgb(float red, float green, float blue) {
+        if (!(red >= 0 && red <= 1 && green >= 0 && green <= 1 && blue >= 0 && blue <= 1)) {
+            throw new IllegalArgumentException("Colour components must be within 0..1, but are ("
+                    + red + "," + green + "," + blue + ")");
+        }
+        return new HexColor(red, green, blue);
+    }
+
+    /**
+     * Colour from components in the range 0 to 255.
+     *
+     * @param red   red component
+     * @param green green component
+     * @param blue  blue component
+     * @return the colour
+     * @throws IllegalArgumentException if a component is out of range
+     */
+    public static HexColor rgb(int red, int green, int blue) {
+        if ((red | green | blue) < 0 || red > 255 || green > 255 || blue > 255) {
+            throw new IllegalArgumentException("Colour components must be within 0..255, but are ("
+                    + red + "," + green + "," + blue + ")");
+        }
+        return new HexColor(red / 255f, green / 255f, blue / 255f);
+    }
+
+    /**
+     * Colour from a packed value, as <code>0xRRGGBB</code>. Any alpha in the
+     * top eight bits is ignored.
+     *
+     * @param rgb the packed value
+     * @return the colour
+     */
+    public static HexColor rgb(int rgb) {
+        return rgb((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+    }
+
+    /**
+     * Colour with the same components as a <code>java.awt.Color</code>. Alpha
+     * is ignored, as it is when the colour is given to PDFBox.
+     *
+     * @param color the colour, may be null
+     * @return the colour, or null if color is null
+     */
+    public static HexColor of(Color color) {
+        if (color == null) {
+            return null;
+        }
+        float[] c = color.getRGBColorComponents(null);
+        return new HexColor(c[0], c[1], c[2]);
+    }
+
+    /**
+     * @return this colour as a <code>java.awt.Color</code>, which starts AWT
+     */
+    public Color toColor() {
+        return new Color(red, green, blue);
+    }
+
+    /**
+     * @return red component, 0 to 1
+     */
+    public float getRed() {
+        return red;
+    }
+
+    /**
+     * @return green component, 0 to 1
+     */
+    public float getGreen() {
+        return green;
+    }
+
+    /**
+     * @return blue component, 0 to 1
+     */
+    public float getBlue() {
+        return blue;
+    }
+
+    /**
+     * @return the colour packed as <code>0xRRGGBB</code>
+     */
+    public int getRGB() {
+        return (Math.round(red * 255) << 16) | (Math.round(green * 255) << 8) | Math.round(blue * 255);
+    }
+
+    // The colour for PDFBox content streams
+    PDColor toPDColor() {
+        return new PDColor(new float[]{red, green, blue}, PDDeviceRGB.INSTANCE);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof HexColor)) {
+            return false;
+        }
+        HexColor other = (HexColor) obj;
+        return Float.compare(red, other.red) == 0 && Float.compare(green, other.green) == 0
+                && Float.compare(blue, other.blue) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Float.floatToIntBits(red) + Float.floatToIntBits(green)) + Float.floatToIntBits(blue);
+    }
+
+    @Override
+    public String toString() {
+        return "HexColor[r=" + red + ",g=" + green + ",b=" + blue + "]";
+    }
+}
@@ -26,23 +26,69 @@
 package net.heksemann.hexpdf;
 
 import org.apache.fontbox.util.BoundingBox;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.PDPageTree;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
 import org.apache.pdfbox.pdmodel.font.PDType1Font;
 import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 
-import java.awt.*;
+import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 /**
  * Simple class for generating pdf documents with support for tables and images,
@@ -115,17 +161,79 @@ public class HexPDF extends PDDocument {
     private PDPage currentPage = null;
     private int numPages;
     private Footer footer = null;
-    private Color normalColor;
-    private Color titleColor;
+    private HexColor normalColor;
+    private HexColor titleColor;
     // Page setup
     private PDRectangle pageSize;
     private PDFont font;
     private float fontSize;
+    // Fonts for characters the current font does not have
+    private FontFallback fontFallback = null;
+    // Glyph advance in font units if font is fixed-pitch, otherwise zero
+    private float fixedAdvance;
+    // Widths and line breaks in the current font, see metrics()
+    private TextMetrics metrics = null;
     private float topMargin;
     private float bottomMargin;
     private float leftMargin;
     private float rightMargin;
     private boolean ignorePagebleed;
+    // Word spacing (Tw) currently in effect in the content stream
+    private float wordSpacing = 0;
+    // Set when a save has subset embedded fonts for good
+    private boolean fontsSubset = false;
+    // The streams COSDocument closes at close, null if it cannot be reached
+    private static final Field COS_STREAMS = cosStreamsField();
+
+    // Images
+    private ImagePrefetcher imagePrefetcher = null;
+    private SharedImages sharedImages = null;
+    private ImageDiskCache imageDiskCache = null;
+    private final Map<ImageSource, PDImageXObject> imageRegistry = new HashMap<ImageSource, PDImageXObject>();
+    private final Map<RasterImage, PDImageXObject> rasterRegistry = new IdentityHashMap<RasterImage, PDImageXObject>();
+
+    // Tables
+    private ForkJoinPool tablePool = null;
+
+    // Repeatable output
+    private static final Clock EPOCH = Clock.fixed(Instant.EPOCH, ZoneOffset.UTC);
+    private Clock clock = null;
+    private String user = null;
+    private byte[] documentId = null;
+    private boolean deterministic = false;
+    private boolean compactOutput = false;
+    private boolean linearized = false;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private ExecutorService compressionExecutor = null;
+    // Streams, and bytes of stream data, held in memory at once while
+    // compressing at save
+    private static final int COMPRESSION_BATCH = 64;
+    private static final long COMPRESSION_BATCH_BYTES = 8L * 1024 * 1024;
+    // Pixel streams of images marked as compressed, but not yet compressed
+    private final List<COSStream> deferredImages = new ArrayList<COSStream>();
+    private RenderCache renderCache = null;
+    private Fingerprint fingerprint = null;
+
+    // Volumes
+    private VolumeSink volumeSink = null;
+    private int volumeMaxPages = 0;
+    private long volumeMaxBytes = 0;
+    private ExecutorService volumeWriter = null;
+    // Rough sizes for the volume size estimate: the objects of a volume
+    // that are not streams, and each page and object in the volume
+    private static final long VOLUME_OVERHEAD = 1024;
+    private static final long PAGE_OVERHEAD = 256;
+    private static final long OBJECT_OVERHEAD = 64;
+    // Number of the volume being filled, and the pages in volumes before it
+    private int volume = 1;
+    private int volumePagesBefore = 0;
+    // Estimated size of the volume being filled, and the objects counted
+    private long volumeBytes = VOLUME_OVERHEAD;
+    private final Set<COSBase> volumeObjects = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+    // Volumes waiting for the total page count, and volumes being written
+    private final List<HeldVolume> heldVolumes = new ArrayList<HeldVolume>();
+    private final List<Future<?>> volumeWrites = new ArrayList<Future<?>>();
+    private IOException volumeError = null;
 
     // Calculated dimensions
     private float pageWidth;
@@ -233,9 +341,6 @@ public class HexPDF extends PDDocument {
      */
     public static final int NEWLINE = 16;
     public static final int NEWPAGE = 32;
-    // Text processing
-    private static final String TXT_NEWLINE = "@@NeWlInE@@";
-
     // Styling
     private float normalFontSize = 10;
     private float title1FontSize = 20;
@@ -277,10 +382,24 @@ public class HexPDF extends PDDocument {
     public static final float DEFAULT_TABLE_CELL_MARGIN = 5;
 
     /**
-     * Sole constructor, creates a new instance of HexPDF.
+     * Creates a new instance of HexPDF with default settings.
      */
     public HexPDF() {
-        super();
+        this(MemoryUsageSetting.setupMainMemoryOnly());
+    }
+
+    /**
+     * Creates a new instance of HexPDF with default settings, keeping the
+     * streams of the document, such as page content, images and fonts, as
+     * set by PDFBox memory usage settings. Use this to keep large documents
+     * from taking up all the heap: with a mixed setting, streams are kept in
+     * memory up to the given size, and in a scratch file after that.
+     *
+     * @param memUsageSetting where to keep document streams
+     * @see #HexPDF(long, java.io.File)
+     */
+    public HexPDF(MemoryUsageSetting memUsageSetting) {
+        super(memUsageSetting);
         this.ignorePagebleed = false;
         this.numPages = 0;
         this.rightMargin = 50f;
@@ -289,13 +408,91 @@ public class HexPDF extends PDDocument {
         this.topMargin = 50f;
         this.fontSize = 10;
         this.font = PDType1Font.HELVETICA;
+        this.fixedAdvance = detectFixedPitch(font);
         this.pageSize = PDRectangle.A4;
-        this.normalColor = Color.black;
-        this.titleColor = Color.BLUE;
+        this.normalColor = HexColor.BLACK;
+        this.titleColor = HexColor.BLUE;
         this.orientation = HexPDF.PORTRAIT;
         //firstPage();
     }
 
+    /**
+     * Creates a new instance of HexPDF with the given style.
+     *
+     * @param style page and text settings to start from
+     * @see #setStyle(HexPDFStyle)
+     */
+    public HexPDF(HexPDFStyle style) {
+        this();
+        setStyle(style);
+    }
+
+    /**
+     * Creates a new instance of HexPDF with default settings and a memory
+     * budget for the streams of the document. Streams are kept in memory up
+     * to <code>maxMainMemory</code> bytes in all, and in a scratch file in
+     * <code>scratchDir</code> after that. The scratch file is deleted when
+     * the document is closed.
+     *
+     * @param maxMainMemory bytes of stream data kept in memory
+     * @param scratchDir    directory for the scratch file, or null for the
+     *                      default temporary directory
+     * @see #HexPDF(MemoryUsageSetting)
+     */
+    public HexPDF(long maxMainMemory, File scratchDir) {
+        this(MemoryUsageSetting.setupMixed(maxMainMemory).setTempDir(scratchDir));
+    }
+
+    /**
+     * Apply a style. Font, sizes, colours, margins, table cell margin and
+     * footer are taken from the style and normal style is selected. Page size
+     * and orientation take effect on the next explicit or automatic
+     * newPage(), margins at once. The style itself is never changed, so one
+     * style can be shared by any number of documents.
+     *
+     * @param style page and text settings
+     * @see HexPDFStyle
+     */
+    public void setStyle(HexPDFStyle style) {
+        if (style.getFont() != this.font) {
+            this.fixedAdvance = detectFixedPitch(style.getFont());
+        }
+        this.font = style.getFont();
+        this.normalFontSize = style.getNormalFontSize();
+        this.title1FontSize = style.getTitle1FontSize();
+        this.title2FontSize = style.getTitle2FontSize();
+        this.normalColor = style.getNormalHexColor();
+        this.titleColor = style.getTitleHexColor();
+        this.topMargin = style.getTopMargin();
+        this.bottomMargin = style.getBottomMargin();
+        this.leftMargin = style.getLeftMargin();
+        this.rightMargin = style.getRightMargin();
+        this.orientation = style.getOrientation();
+        this.pageSize = style.getPageSize();
+        this.tableCellMargin = style.getTableCellMargin();
+        this.footer = style.getFooter();
+        this.fontSize = normalFontSize;
+
+        if (currentPage != null) {
+            setDimensions();
+            normalStyle();
+        } else {
+            // Nothing drawn yet, use the metrics computed by the style
+            pageWidth = style.getPageWidth();
+            pageHeight = style.getPageHeight();
+            contentWidth = style.getContentWidth();
+            contentHeight = style.getContentHeight();
+            contentStartX = style.getContentStartX();
+            contentStartY = style.getContentStartY();
+            contentEndX = style.getContentEndX();
+            contentEndY = style.getContentEndY();
+            lineSep = style.getNormalLineSep();
+        }
+        if (fingerprint != null) {
+            recordState("setStyle");
+        }
+    }
+
     /**
      * Recalculate page boundaries after a change of margins or page style.
      * Automatically called after margin changes.
@@ -337,17 +534,228 @@ public class HexPDF extends PDDocument {
      * @return The width given currently selected font and fontsize
      */
     protected float textWidth(String txt) {
+        return metrics().width(txt);
+    }
+
+    // Text measured in the current font, shared with table planning
+    private TextMetrics metrics() {
+        if (metrics == null || !metrics.isFor(font, fontSize, fixedAdvance, fontFallback, lineSep, tableCellMargin)) {
+            metrics = new TextMetrics(font, fontSize, fixedAdvance, fontFallback, lineSep, tableCellMargin);
+        }
+        return metrics;
+    }
+
+    /*
+     * Add footers and save to the stream, which is closed when done. With a
+     * render cache, output saved earlier for the same calls is written
+     * instead. Unlike finish, errors are thrown, for callers that must not
+     * pass on a broken document.
+     */
+    void writeDocument(OutputStream out) throws IOException {
+        checkNoVolumes();
+        String key = null;
+        boolean cacheable = false;
+        if (fingerprint != null) {
+            fingerprint.op("finish").add(footer).add(compactOutput).add(linearized).add(compressionLevel);
+            if (footer != null) {
+                fingerprint.add(today()).add(userName());
+            }
+            fingerprint.add(documentId);
+            cacheable = renderCache != null && !fingerprint.isTainted();
+            key = fingerprint.finish();
+            // Anything drawn from here on is not part of this document
+            fingerprint = new Fingerprint();
+            fingerprint.taint();
+            if (cacheable) {
+                byte[] pdf = renderCache.get(key);
+                if (pdf != null) {
+                    closePage();
+                    try {
+                        out.write(pdf);
+                    } finally {
+                        out.close();
+                    }
+                    return;
+                }
+            }
+        }
+
+        completeDocument();
+        byte[] id = (documentId != null) ? documentId : (deterministic && key != null) ? Fingerprint.documentId(key) : null;
+        if (id != null) {
+            COSArray ids = new COSArray();
+            ids.add(new COSString(id));
+            ids.add(new COSString(id));
+            getDocument().getTrailer().setItem(COSName.ID, ids);
+        }
+        if (!cacheable) {
+            saveDocument(out);
+            return;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        saveDocument(buf);
+        byte[] pdf = buf.toByteArray();
+        renderCache.put(key, pdf);
         try {
-            return (font.getStringWidth(txt) * fontSize / 1000);
-        } catch (IOException ex) {
-            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
-            return 0;
+            out.write(pdf);
+        } finally {
+            out.close();
         }
     }
 
-    private void savedoc(String filename) throws IOException {
-        closePage();
-        super.save(filename);
+    // Save with the chosen writer and compression, closing the stream
+    private void saveDocument(OutputStream out) throws IOException {
+        compressStreams();
+        Set<PDFont> fonts = fontsToSubset();
+        if (fonts != null && !fonts.isEmpty()) {
+            // Subset by any of the writers below, see reset
+            fontsSubset = true;
+        }
+        boolean ownWriter = linearized ? getNumberOfPages() > 0 : compactOutput;
+        if (!ownWriter || getEncryption() != null || !subsetFonts()) {
+            super.save(out);
+        } else if (linearized) {
+            new LinearizedWriter(out, compressionLevel).write(this);
+        } else {
+            new CompactWriter(out, compressionLevel).write(getDocument());
+        }
+    }
+
+    /*
+     * PDDocument.save subsets embedded fonts before writing, but the set of
+     * fonts to subset is not public. Returns false if it cannot be reached.
+     */
+    private boolean subsetFonts() throws IOException {
+        Set<PDFont> fonts = fontsToSubset();
+        if (fonts == null) {
+            return false;
+        }
+        if (!fonts.isEmpty()) {
+            fontsSubset = true;
+        }
+        for (PDFont f : fonts) {
+            f.subset();
+        }
+        fonts.clear();
+        return true;
+    }
+
+    // The fonts to subset at save, or null if they cannot be reached
+    @SuppressWarnings("unchecked")
+    private Set<PDFont> fontsToSubset() {
+        try {
+            Method m = PDDocument.class.getDeclaredMethod("getFontsToSubset");
+            m.setAccessible(true);
+            return (Set<PDFont>) m.invoke(this);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.WARNING, "Fonts cannot be subset, saving the PDFBox way", ex);
+            return null;
+        }
+    }
+
+    /*
+     * Content streams are drawn uncompressed when a compression level or a
+     * compression executor is set, and so are pixel images with an executor.
+     */
+    private boolean compressWhileDrawing() {
+        return compressionLevel == Deflater.DEFAULT_COMPRESSION && compressionExecutor == null;
+    }
+
+    /*
+     * Compress the streams left uncompressed while drawing, on the
+     * compression executor if set. COSStream is not safe for use from
+     * several threads, so streams are read and updated on this thread, in
+     * page order, and only the compression is done on the executor.
+     */
+    private void compressStreams() throws IOException {
+        List<COSStream> streams = new ArrayList<COSStream>();
+        if (!compressWhileDrawing() && compressionLevel != Deflater.NO_COMPRESSION) {
+            for (PDPage page : getPages()) {
+                COSBase contents = page.getCOSObject().getDictionaryObject(COSName.CONTENTS);
+                if (contents instanceof COSStream) {
+                    addUncompressed(streams, (COSStream) contents);
+                } else if (contents instanceof COSArray) {
+                    for (COSBase item : (COSArray) contents) {
+                        COSBase stream = (item instanceof COSObject) ? ((COSObject) item).getObject() : item;
+                        if (stream instanceof COSStream) {
+                            addUncompressed(streams, (COSStream) stream);
+                        }
+                    }
+                }
+            }
+        }
+        int numContents = streams.size();
+        // Images are compressed as they would have been while drawing
+        streams.addAll(deferredImages);
+        deferredImages.clear();
+
+        List<FutureTask<byte[]>> tasks = new ArrayList<FutureTask<byte[]>>(COMPRESSION_BATCH);
+        int from = 0;
+        while (from < streams.size()) {
+            tasks.clear();
+            int to = from;
+            long batchBytes = 0;
+            while (to < streams.size() && to - from < COMPRESSION_BATCH && batchBytes < COMPRESSION_BATCH_BYTES) {
+                final byte[] data = readRaw(streams.get(to));
+                final int level = (to < numContents) ? compressionLevel : Deflater.DEFAULT_COMPRESSION;
+                batchBytes += data.length;
+                to++;
+                FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return ObjectWriter.deflate(data, level);
+                    }
+                });
+                if (compressionExecutor != null) {
+                    compressionExecutor.execute(task);
+                } else {
+                    task.run();
+                }
+                tasks.add(task);
+            }
+            for (int i = from; i < to; i++) {
+                COSStream stream = streams.get(i);
+                byte[] data = compressed(tasks.get(i - from));
+                if (i < numContents) {
+                    // In the order PDFBox has them when compressing as it goes
+                    stream.removeItem(COSName.LENGTH);
+                    stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+                }
+                OutputStream o = stream.createRawOutputStream();
+                try {
+                    o.write(data);
+                } finally {
+                    o.close();
+                }
+            }
+            from = to;
+        }
+    }
+
+    private static void addUncompressed(List<COSStream> streams, COSStream stream) throws IOException {
+        if (stream.getFilters() == null) {
+            streams.add(stream);
+        }
+    }
+
+    private static byte[] readRaw(COSStream stream) throws IOException {
+        InputStream in = stream.createRawInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] compressed(FutureTask<byte[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
     }
 
     /**
@@ -358,6 +766,7 @@ public class HexPDF extends PDDocument {
     protected void closePage() {
         if (currentPage != null) {
             try {
+                resetWordSpacing();
                 cs.close();
                 addPage(currentPage);
                 currentPage = null;
@@ -367,32 +776,56 @@ public class HexPDF extends PDDocument {
         }
     }
 
-    private String replaceBookmarks(String str, int pagenum, int numpages) {
-        String ret = str;
+    // Date shown by Footer.DATE
+    private String today() {
+        SimpleDateFormat format = new SimpleDateFormat("dd MMM yyyy");
+        Clock c = (clock == null && deterministic) ? EPOCH : clock;
+        if (c == null) {
+            return format.format(Calendar.getInstance().getTime());
+        }
+        format.setTimeZone(TimeZone.getTimeZone(c.getZone()));
+        return format.format(Date.from(c.instant()));
+    }
+
+    // User shown by Footer.USER
+    private String userName() {
+        if (user != null) {
+            return user;
+        }
+        return deterministic ? "" : System.getProperty("user.name");
+    }
 
-        String today = new SimpleDateFormat("dd MMM yyyy").format(Calendar.getInstance().getTime());
-        String user = System.getProperty("user.name");
+    private String replaceBookmarks(String str, int pagenum, int numpages, int volume) {
+        String ret = str;
 
         ret = ret.replace(Footer.PAGENUM, "" + pagenum);
         ret = ret.replace(Footer.NUMPAGES, "" + numpages);
-        ret = ret.replace(Footer.DATE, today);
-        ret = ret.replace(Footer.USER, user);
+        ret = ret.replace(Footer.VOLUME, "" + volume);
+        ret = ret.replace(Footer.DATE, today());
+        ret = ret.replace(Footer.USER, userName());
         return ret;
     }
 
-    private void drawFooters() {
+    /*
+     * Add footers to the pages in the document: all pages, or one volume of
+     * volumePages pages, with pagesBefore pages in the volumes before it and
+     * totalPages pages in all.
+     */
+    private void drawFooters(int pagesBefore, int volumePages, int totalPages, int volume) {
         if (footer != null) {
+            boolean oldIgnoreBleed = ignorePagebleed;
             ignorePagebleed = true; // Now new pages while writing footers!
 
             int pg;
-            int pagecounter = 0;
-            int total = (footer.isCOUNT_FIRSTPAGE()) ? numPages : numPages - 1;
+            int pagecounter = footer.isGLOBAL_PAGENUM() ? pagesBefore : 0;
+            int count = footer.isGLOBAL_NUMPAGES() ? totalPages : volumePages;
+            int total = (footer.isCOUNT_FIRSTPAGE()) ? count : count - 1;
             PDPageTree pages = this.getDocumentCatalog().getPages();
             for (PDPage page : pages) {
                 pagecounter++;
                 try {
-                    cs = new PDPageContentStream(this, page, true, true);
-                    setTextColor(footer.getTextColor());
+                    cs = new PDPageContentStream(this, page, true, compressWhileDrawing());
+                    setTextColor(footer.getTextHexColor());
                     setFont(footer.getFont());
                     setFontSize(footer.getFontsize());
                     if (pagecounter > 1 || false == footer.isOMIT_FIRSTPAGE()) {
@@ -400,19 +833,19 @@ public class HexPDF extends PDDocument {
 
                         //noinspection Since15
                         if (footer.getLeftText() != null && !footer.getLeftText().isEmpty()) {
-                            String left = replaceBookmarks(footer.getLeftText(), pg, total);
+                            String left = replaceBookmarks(footer.getLeftText(), pg, total, volume);
                             setCursor(contentStartX, contentEndY - lineSep);
                             drawText(left, HexPDF.LEFT);
                         }
                         //noinspection Since15
                         if (footer.getRightText() != null && !footer.getRightText().isEmpty()) {
-                            String right = replaceBookmarks(footer.getRightText(), pg, total);
+                            String right = replaceBookmarks(footer.getRightText(), pg, total, volume);
                             setCursor(contentStartX, contentEndY - lineSep);
                             drawText(right, HexPDF.RIGHT);
                         }
                         //noinspection Since15
                         if (footer.getCenterText() != null && !footer.getCenterText().isEmpty()) {
-                            String right = replaceBookmarks(footer.getCenterText(), pg, total);
+                            String right = replaceBookmarks(footer.getCenterText(), pg, total, volume);
                             setCursor(contentStartX, contentEndY - lineSep);
                             drawText(right, HexPDF.CENTER);
                         }
@@ -422,7 +855,7 @@ public class HexPDF extends PDDocument {
                     Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
-            ignorePagebleed = false;
+            ignorePagebleed = oldIgnoreBleed;
         }
     }
 
@@ -433,10 +866,27 @@ public class HexPDF extends PDDocument {
      * @see #closePage()
      */
     public void newPage() {
+        if (fingerprint != null) {
+            fingerprint.op("newPage");
+        }
+        openPage();
+    }
 
+    /*
+     * Calls HexPDF makes to itself go to the private methods doing the work,
+     * so that only the calls made by the user are in the fingerprint.
+     */
+    private void openPage() {
         numPages++;
         if (currentPage != null) {
             closePage();
+            if (volumeSink != null) {
+                try {
+                    checkVolume();
+                } catch (IOException ex) {
+                    volumeFailed(ex);
+                }
+            }
         }
 
         currentPage = new PDPage();
@@ -460,7 +910,8 @@ public class HexPDF extends PDDocument {
         cursorX = contentStartX;
         cursorY = contentStartY;
         try {
-            cs = new PDPageContentStream(this, currentPage);
+            cs = new PDPageContentStream(this, currentPage, false, compressWhileDrawing());
+            wordSpacing = 0;
             cs.setFont(font, fontSize);
         } catch (IOException ex) {
             Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
@@ -471,18 +922,14 @@ public class HexPDF extends PDDocument {
      * Save and close the document.
      *
      * @param filename Path to saved document
+     * @throws IllegalStateException if the document is split into volumes
      * @see #save(java.lang.String)
      * @see #close()
      */
     public void finish(String filename) {
+        checkNoVolumes();
         try {
-            setTextColor(footer.getTextColor());
-            setFont(footer.getFont());
-            setFontSize(footer.getFontsize());
-
-            closePage();
-            drawFooters();
-            savedoc(filename);
+            writeDocument(new BufferedOutputStream(new FileOutputStream(filename)));
             close();
         } catch (IOException ex) {
             Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
@@ -490,213 +937,825 @@ public class HexPDF extends PDDocument {
     }
 
     /**
-     * Move cursor to a new position on the current page.
+     * Add footers and save the document to a stream. The stream is closed
+     * when done.
+     * <p>
+     * Unlike {@link #finish(java.lang.String)}, the document itself is left
+     * open, so that it can be cleared with {@link #reset()} and used for
+     * another document. Call {@link #close()} when the instance is no longer
+     * needed.
      *
-     * @param x cursor x-position (horizontal)
-     * @param y cursor y-position (vertical)
-     * @see #setCursor(float[])
+     * @param out stream to write the document to
+     * @throws IllegalStateException if the document is split into volumes
+     * @see #reset()
      */
-    public void setCursor(float x, float y) {
-        cursorX = x;
-        cursorY = y;
+    public void finish(OutputStream out) {
+        try {
+            finishOrThrow(out);
+        } catch (IOException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+        }
     }
 
-    /**
-     * Move cursor to a new position on the current page.
-     *
-     * @param point a two-element float array giving x and y position of cursor
-     * @see #setCursor(float, float)
+    /*
+     * As finish, but errors are thrown, for callers that must not pass on a
+     * broken document.
      */
-    public void setCursor(float[] point) {
-        setCursor(point[0], point[1]);
+    void finishOrThrow(OutputStream out) throws IOException {
+        checkNoVolumes();
+        PDFont oldFont = font;
+        float oldFontSize = fontSize;
+        float oldFixedAdvance = fixedAdvance;
+        try {
+            writeDocument(out);
+        } finally {
+            // Footers use their own font, keep the document font for reuse
+            font = oldFont;
+            fontSize = oldFontSize;
+            fixedAdvance = oldFixedAdvance;
+            lineSep = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+        }
     }
 
     /**
-     * Get current cursor position on current page.
-     *
-     * @return two-element float array giving x and y position of cursor
+     * Add footers, save the document to a stream and report what its bytes
+     * are spent on. The stream is closed when done, and the document is left
+     * open as with {@link #finish(java.io.OutputStream)}.
+     * <p>
+     * The document is saved to memory and parsed again for the report, so
+     * this takes more time and memory than <code>finish</code>.</p>
+     *
+     * @param out stream to write the document to
+     * @return the size report
+     * @throws IOException if the document could not be saved or written
+     * @throws IllegalStateException if the document is split into volumes
+     * @see SizeReport
+     */
+    public SizeReport finishWithReport(OutputStream out) throws IOException {
+        checkNoVolumes();
+        PDFont oldFont = font;
+        float oldFontSize = fontSize;
+        float oldFixedAdvance = fixedAdvance;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try {
+            writeDocument(buf);
+        } finally {
+            font = oldFont;
+            fontSize = oldFontSize;
+            fixedAdvance = oldFixedAdvance;
+            lineSep = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+        }
+        byte[] pdf = buf.toByteArray();
+        try {
+            out.write(pdf);
+        } finally {
+            out.close();
+        }
+        return SizeReport.analyse(pdf);
+    }
+
+    /*
+     * Finish the pages as when saving, with footers, compressed streams and
+     * subset fonts, so that they can be copied to another document.
      */
-    public float[] getCursor() {
-        float[] ret = {cursorX, cursorY};
-        return ret;
+    void finishForCopy() throws IOException {
+        checkNoVolumes();
+        if (fingerprint != null) {
+            // Anything drawn from here on is not part of this document
+            fingerprint = new Fingerprint();
+            fingerprint.taint();
+        }
+        PDFont oldFont = font;
+        float oldFontSize = fontSize;
+        float oldFixedAdvance = fixedAdvance;
+        completeDocument();
+        font = oldFont;
+        fontSize = oldFontSize;
+        fixedAdvance = oldFixedAdvance;
+        lineSep = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+        compressStreams();
+        subsetFonts();
+    }
+
+    // Close the last page and add footers to all pages
+    private void completeDocument() {
+        if (footer != null && currentPage != null) {
+            setTextColor(footer.getTextHexColor());
+            setFont(footer.getFont());
+            setFontSize(footer.getFontsize());
+        }
+        closePage();
+        drawFooters(0, numPages, numPages, 1);
     }
 
     /**
-     * Retrieve the current cursors horizontal position.
-     *
-     * @return x value of current cursor position
-     * @see #getCursor()
-     */
-    public float getCursorX() {
-        return cursorX;
+     * Clear the document for reuse. All pages are removed and the cursor is
+     * reset, as if the instance was just created. Configuration is kept:
+     * page size, orientation, margins, fonts, font sizes, colours, footer,
+     * image prefetcher, render cache, deterministic and output settings. Images already added to the document are kept as
+     * well, so they are not encoded again when drawn in the next document.
+     * <p>
+     * Typically used after {@link #finish(java.io.OutputStream)}, or to throw
+     * away a document that is only partly done.</p>
+     * <p>
+     * Embedded fonts loaded to be subset are cut down to the characters used
+     * when the document is saved, and cannot be used for another document.
+     * Once such a document is saved it cannot be reset: load the fonts with
+     * <code>PDType0Font.load(doc, in, false)</code> to embed them in full.</p>
+     *
+     * @throws IllegalStateException if fonts were subset when the document
+     * was saved
+     * @see HexPDFPool
+     */
+    public void reset() {
+        if (fontsSubset) {
+            throw new IllegalStateException("Fonts subset when the document was saved cannot be reused, embed them in full instead");
+        }
+        if (currentPage != null) {
+            try {
+                cs.close();
+            } catch (IOException ex) {
+                Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            currentPage = null;
+        }
+        releasePages(getDocumentCatalog().getPages().getCOSObject());
+        getDocumentCatalog().getCOSObject().setItem(COSName.PAGES, new PDPageTree().getCOSObject());
+        getDocument().getTrailer().removeItem(COSName.ID);
+        numPages = 0;
+        wordSpacing = 0;
+        clearVolumes();
+        cursorX = 0;
+        cursorY = 0;
+        startFingerprint();
     }
 
     /**
-     * Retrieve the current cursor vertical position.
-     *
-     * @return y value of current cursor position
-     * @see #getCursor()
+     * @return false if fonts were subset when the document was saved, so
+     * that it cannot be reset
      */
-    public float getCursorY() {
-        return cursorY;
+    boolean canReset() {
+        return !fontsSubset;
     }
 
-    private int makeLine(String[] words, int first, float maxlen) {
-        int num = 0;
-        String result = "";
-        if (words[first].equals(HexPDF.TXT_NEWLINE)) {
-            return -1;
+    /*
+     * Close the streams of pages being dropped: content streams, and images
+     * drawn on them that are not kept for later documents. PDFBox only gives
+     * back the memory, or scratch file space, of a stream when it is closed,
+     * and the document holds on to every stream made until it is closed.
+     */
+    private void releasePages(COSDictionary pages) {
+        Set<COSBase> kept = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+        Set<COSBase> released = Collections.newSetFromMap(new IdentityHashMap<COSBase, Boolean>());
+        for (PDImageXObject ximage : imageRegistry.values()) {
+            keepImage(ximage, kept);
         }
-        for (int i = first; i < words.length; i++) {
-            if (words[i].equals(HexPDF.TXT_NEWLINE)) {
-                return num;
-            }
-            String word = words[i].trim();
-            if (num == 0) {
-                if (textWidth(" " + word) > maxlen) {
-                    return 0;
-                } else {
-                    result = word;
-                    num++;
+        for (PDImageXObject ximage : rasterRegistry.values()) {
+            keepImage(ximage, kept);
+        }
+        for (PDPage page : new PDPageTree(pages)) {
+            COSDictionary dict = page.getCOSObject();
+            COSBase contents = dict.getDictionaryObject(COSName.CONTENTS);
+            if (contents instanceof COSArray) {
+                for (int i = 0; i < ((COSArray) contents).size(); i++) {
+                    releaseStream(((COSArray) contents).getObject(i), kept, released);
                 }
-            } else if (textWidth(result + " " + word) > maxlen) {
-                return num;
             } else {
-                result += " " + word;
-                num++;
+                releaseStream(contents, kept, released);
+            }
+            COSBase resources = dict.getDictionaryObject(COSName.RESOURCES);
+            COSBase xobjects = (resources instanceof COSDictionary)
+                    ? ((COSDictionary) resources).getDictionaryObject(COSName.XOBJECT) : null;
+            if (xobjects instanceof COSDictionary) {
+                for (COSBase xobject : ((COSDictionary) xobjects).getValues()) {
+                    xobject = (xobject instanceof COSObject) ? ((COSObject) xobject).getObject() : xobject;
+                    if (xobject instanceof COSStream) {
+                        releaseStream(((COSStream) xobject).getDictionaryObject(COSName.SMASK), kept, released);
+                    }
+                    releaseStream(xobject, kept, released);
+                }
             }
         }
-        return num;
-    }
-
-    private void doDrawText(String line) {
-        try {
-            cs.beginText();
-            cs.moveTextPositionByAmount(cursorX, cursorY);
-            cs.drawString(line);
-            cs.endText();
-            cursorX += font.getStringWidth(line) * fontSize / 1000;
-        } catch (IOException ex) {
-            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+        if (!released.isEmpty()) {
+            forgetStreams(released);
         }
     }
 
-    private String join(String[] words, int first, int num) {
-        String ret = "";
-        String sep = "";
-        for (int i = first; i < first + num; i++) {
-            if (i < words.length) {
-                ret += sep + words[i];
-                sep = " ";
+    private static void keepImage(PDImageXObject ximage, Set<COSBase> kept) {
+        if (ximage != null) {
+            kept.add(ximage.getCOSObject());
+            COSBase mask = ximage.getCOSObject().getDictionaryObject(COSName.SMASK);
+            if (mask != null) {
+                kept.add(mask);
             }
         }
-        return ret;
     }
 
-    // Estimate height of a table cell. Used by rowHeight to determine
-    // if page break should be inserted in a table
-    private float elemHeight(Object elem, float startx, float endx, int flags) {
-        String txt;
-        if (elem instanceof BufferedImage) {
-            return ((BufferedImage) elem).getHeight();
+    private static void releaseStream(COSBase stream, Set<COSBase> kept, Set<COSBase> released) {
+        stream = (stream instanceof COSObject) ? ((COSObject) stream).getObject() : stream;
+        if (stream instanceof COSStream && kept.add(stream)) {
+            try {
+                ((COSStream) stream).close();
+            } catch (IOException ex) {
+                Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            released.add(stream);
         }
-        txt = (String) elem;
-
-        float cystart = cursorY;
-        float cxstart = cursorX;
+    }
 
-        int align = HexPDF.LEFT;
-        if ((flags & HexPDF.CENTER) > 0) {
-            align = HexPDF.CENTER;
-        } else if ((flags & HexPDF.RIGHT) > 0) {
-            align = HexPDF.RIGHT;
-        } else if ((flags & HexPDF.JUSTIFY) > 0) {
-            align = HexPDF.JUSTIFY;
-        }
-        //noinspection Since15
-        if (txt == null || txt.isEmpty()) {
-            return 0;
+    // Drop closed streams from the list the document closes them from
+    private void forgetStreams(Set<COSBase> released) {
+        if (COS_STREAMS == null) {
+            return;
         }
-        txt = txt.replace("\n", " " + HexPDF.TXT_NEWLINE + " ");
-        String[] words = txt.split("\\s+");
-        int i = 0;
-        float height = 0;
-        while (i < words.length) {
-            int num = makeLine(words, i, endx - cursorX);
-            if (num == -1) { // newline
-                i++;
-                cursorX = startx;
-                cursorY -= lineSep;
-                height += lineSep;
-            } else if (num == 0) {
-                if (cursorX > startx) {
-                    // Something on line from start. Try a newline first, then recheck.
-                    cursorX = startx;
-                    cursorY -= lineSep;
-                } else {
-                    // a single word is too big for the box. Draw it!
-                    cursorY -= lineSep;
-                    cursorX = startx;
-                    i++;
-                }
-            } else {
-                String toDraw = join(words, i, num);
-                float strlen = textWidth(toDraw);
-                if ((cursorX == startx) && (align == HexPDF.RIGHT || align == HexPDF.CENTER || align == HexPDF.JUSTIFY)) {
-                    boolean newline_after = ((i + num) >= words.length || words[i + num].equals(HexPDF.TXT_NEWLINE));
-                    if (align == HexPDF.JUSTIFY) {
-                        if (newline_after == false) {
-                            cursorX = endx;
-                        } else {
-                            cursorX += strlen;
-                        }
-                    } else {
-                        cursorX += (align == HexPDF.RIGHT) ? endx : cursorX + strlen;
-                    }
-                } else {
-                    cursorX += strlen;
+        try {
+            Iterator<?> it = ((List<?>) COS_STREAMS.get(getDocument())).iterator();
+            while (it.hasNext()) {
+                if (released.contains(it.next())) {
+                    it.remove();
                 }
-
-                i += num;
             }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.WARNING, "Closed streams cannot be dropped, they are kept until the document is closed", ex);
         }
-        height = lineSep + cystart - cursorY;
-        setCursor(cxstart, cystart);
-        return height;
     }
 
-    // Estimate heght of a table row. Used for determining page breaks within
-    // a table
-    private float rowHeight(float x, float y, float[] w, Object[] cells, int[] flags) {
-        float maxh = 0, thish, cellx = x;
-        for (int i = 0; i < cells.length; i++) {
-            thish = (elemHeight(cells[i], cellx, w[i], flags[i]));
-            cellx += w[i];
-            maxh = (thish > maxh) ? thish : maxh;
+    /*
+     * COSDocument keeps every stream made until it is closed, and the list
+     * is not public. The document cannot be replaced either, so the list is
+     * reached by reflection.
+     */
+    private static Field cosStreamsField() {
+        try {
+            Field f = COSDocument.class.getDeclaredField("streams");
+            if (!List.class.isAssignableFrom(f.getType())) {
+                throw new NoSuchFieldException("streams is not a List");
+            }
+            f.setAccessible(true);
+            return f;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.WARNING, "Closed streams cannot be dropped, they are kept until the document is closed", ex);
+            return null;
         }
-        return maxh;
     }
 
     /**
-     * Draw a text from the current cursor position. The text can be multi-line
-     * and even multi-page. When crossing page boundaries
-     * (<code>contentEndY</code>) a new page is created. Newline characters
-     * force explicit lineshift. Normal word-wrap is performed to keep the text
-     * between the stated boundaries <code>startx</code> and <code>endx</code>
+     * Check that reset documents give back the memory of the pages dropped.
+     * Without it, a document reused many times keeps growing.
      *
-     * @param txt    The text to be drawn
-     * @param startx Left edge of area available for drawing
-     * @param endx   Right edge of area available for drawing
-     * @param flags  One of
-     *               <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT | HexPDF.JUSTIFY</code>
-     *               for text alignment between startx and endx
-     * @return Actual height of the string drawn
-     * @see #drawText(java.lang.String, int)
-     * @see #drawText(java.lang.String, float, float, int)
+     * @throws IllegalStateException if streams of dropped pages are kept
      */
-    protected float _drawText(String txt, float startx, float endx, int flags) {
-        float cystart = cursorY;
-        int align = HexPDF.LEFT;
+    static void checkReleasesStreams() {
+        if (COS_STREAMS == null) {
+            throw new IllegalStateException("This PDFBox version keeps the streams of reset documents, which cannot be reused without leaking memory");
+        }
+    }
+
+    /**
+     * Split the document into volumes, each saved as a document of its own
+     * as soon as it is full. Only the volume being filled is kept in memory,
+     * so documents of any number of pages can be made. A volume is full when
+     * it has <code>maxPages</code> pages, or when another page would make it
+     * larger than <code>maxBytes</code>. The size is estimated from the
+     * streams and objects the pages use, and comes out on the high side when
+     * streams are compressed at save. A page larger than the limit gets a
+     * volume of its own.
+     * <p>
+     * Footers are added to each volume as it is saved, numbered from the
+     * start of each volume unless set otherwise in the footer. When the
+     * footer shows the total page count of all volumes, volumes are kept
+     * until {@link #finishVolumes()} instead, when the total is known.</p>
+     * <p>
+     * Set this before the first page, and finish the document with
+     * {@link #finishVolumes()} rather than <code>finish</code>. Volumes use
+     * the same fonts, so embedded fonts must not be subset: load them with
+     * <code>PDType0Font.load(doc, in, false)</code>.</p>
+     *
+     * @param sink     where the volumes are written, or null for one document
+     * @param maxPages pages in each volume, or 0 for no limit
+     * @param maxBytes bytes in each volume, or 0 for no limit
+     * @see Footer#setGLOBAL_PAGENUM(boolean)
+     * @see Footer#setGLOBAL_NUMPAGES(boolean)
+     */
+    public void setVolumes(VolumeSink sink, int maxPages, long maxBytes) {
+        setVolumes(sink, maxPages, maxBytes, null);
+    }
+
+    /**
+     * Split the document into volumes, and write them on an executor. Each
+     * volume is saved to memory as it is full, and written to the stream
+     * opened by the sink on the executor while the next volume is drawn.
+     *
+     * @param sink     where the volumes are written, or null for one document
+     * @param maxPages pages in each volume, or 0 for no limit
+     * @param maxBytes bytes in each volume, or 0 for no limit
+     * @param writer   executor for writing the volumes, or null to write them
+     *                 on this thread
+     * @see #setVolumes(VolumeSink, int, long)
+     */
+    public void setVolumes(VolumeSink sink, int maxPages, long maxBytes, ExecutorService writer) {
+        if (maxPages < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Volume limits must not be negative");
+        }
+        this.volumeSink = sink;
+        this.volumeMaxPages = maxPages;
+        this.volumeMaxBytes = maxBytes;
+        this.volumeWriter = writer;
+        if (fingerprint != null && sink != null) {
+            // Volumes are not cached
+            fingerprint.taint();
+        }
+    }
+
+    /**
+     * @return where volumes are written, or null if the document is not split
+     * @see #setVolumes(VolumeSink, int, long)
+     */
+    public VolumeSink getVolumeSink() {
+        return volumeSink;
+    }
+
+    /**
+     * Close the last page and write the volumes not yet written. Returns when
+     * all volumes are written, also those written on the writer executor.
+     * <p>
+     * Like {@link #finish(java.io.OutputStream)}, the document is left open,
+     * and can be cleared with {@link #reset()} for the next document.</p>
+     *
+     * @return the number of volumes
+     * @throws IOException if a volume could not be saved or written, the first
+     *                     error if several
+     * @see #setVolumes(VolumeSink, int, long)
+     */
+    public int finishVolumes() throws IOException {
+        if (volumeSink == null) {
+            throw new IllegalStateException("The document is not split into volumes");
+        }
+        PDFont oldFont = font;
+        float oldFontSize = fontSize;
+        float oldFixedAdvance = fixedAdvance;
+        try {
+            if (currentPage != null) {
+                closePage();
+                checkVolume();
+            }
+            closeVolume();
+            int before = 0;
+            for (HeldVolume held : heldVolumes) {
+                getDocumentCatalog().getCOSObject().setItem(COSName.PAGES, held.pages);
+                if (volumeError == null) {
+                    writeVolume(held.number, before, volumePagesBefore);
+                }
+                before += held.numPages;
+            }
+        } catch (IOException ex) {
+            volumeFailed(ex);
+        } finally {
+            releaseHeldVolumes();
+            getDocumentCatalog().getCOSObject().setItem(COSName.PAGES, new PDPageTree().getCOSObject());
+            font = oldFont;
+            fontSize = oldFontSize;
+            fixedAdvance = oldFixedAdvance;
+            lineSep = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+        }
+        for (Future<?> write : volumeWrites) {
+            try {
+                write.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                volumeFailed(new IOException(ex));
+                break;
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                volumeFailed((cause instanceof IOException) ? (IOException) cause : new IOException(cause));
+            }
+        }
+        volumeWrites.clear();
+        if (volumeError != null) {
+            throw volumeError;
+        }
+        return volume - 1;
+    }
+
+    private void checkNoVolumes() {
+        if (volumeSink != null) {
+            throw new IllegalStateException("The document is split into volumes, use finishVolumes()");
+        }
+    }
+
+    /*
+     * Start a new volume if the page just closed fills the volume being
+     * filled, or does not fit in it.
+     */
+    private void checkVolume() throws IOException {
+        PDPageTree pages = getDocumentCatalog().getPages();
+        int count = pages.getCount();
+        PDPage page = pages.get(count - 1);
+        long bytes = pageBytes(page);
+        if (volumeMaxBytes > 0 && count > 1 && volumeBytes + bytes > volumeMaxBytes) {
+            pages.remove(page);
+            closeVolume();
+            addPage(page);
+            bytes = pageBytes(page);
+            count = 1;
+        }
+        volumeBytes += bytes;
+        if (volumeMaxPages > 0 && count >= volumeMaxPages) {
+            closeVolume();
+        }
+    }
+
+    // Estimated size of the objects of a page that are new to the volume
+    private long pageBytes(PDPage page) {
+        long bytes = PAGE_OVERHEAD;
+        List<COSBase> refs = new ArrayList<COSBase>();
+        ObjectWriter.references(page.getCOSObject(), refs);
+        while (!refs.isEmpty()) {
+            COSBase obj = refs.remove(refs.size() - 1);
+            if (obj instanceof COSDictionary) {
+                // Parent, and links to other pages
+                COSBase type = ((COSDictionary) obj).getDictionaryObject(COSName.TYPE);
+                if (COSName.PAGE.equals(type) || COSName.PAGES.equals(type)) {
+                    continue;
+                }
+            }
+            if (!volumeObjects.add(obj)) {
+                continue;
+            }
+            bytes += OBJECT_OVERHEAD;
+            if (obj instanceof COSStream) {
+                bytes += ((COSStream) obj).getLength();
+            }
+            ObjectWriter.references(obj, refs);
+        }
+        return bytes;
+    }
+
+    /*
+     * Finish the volume being filled, if it has any pages: save it now, or
+     * keep it until the total page count is known. The next volume starts
+     * with an empty page tree.
+     */
+    private void closeVolume() throws IOException {
+        PDPageTree pages = getDocumentCatalog().getPages();
+        int count = pages.getCount();
+        if (count > 0) {
+            boolean held = false;
+            try {
+                if (footer != null && footer.isGLOBAL_NUMPAGES()) {
+                    heldVolumes.add(new HeldVolume(pages.getCOSObject(), volume, count));
+                    held = true;
+                } else if (volumeError == null) {
+                    writeVolume(volume, volumePagesBefore, volumePagesBefore + count);
+                }
+            } finally {
+                if (!held) {
+                    // Saved, or failed, the pages are not needed again
+                    releasePages(pages.getCOSObject());
+                }
+                getDocumentCatalog().getCOSObject().setItem(COSName.PAGES, new PDPageTree().getCOSObject());
+                volume++;
+                volumePagesBefore += count;
+            }
+        }
+        volumeBytes = VOLUME_OVERHEAD;
+        volumeObjects.clear();
+    }
+
+    /*
+     * Add footers to the pages in the document and save them as a volume,
+     * directly to the sink, or to memory and then to the sink on the writer
+     * executor. COS objects are shared between volumes, so they are only
+     * used on this thread, and the streams of the pages can be closed as
+     * soon as this returns.
+     */
+    private void writeVolume(final int number, int pagesBefore, int totalPages) throws IOException {
+        Set<PDFont> fonts = fontsToSubset();
+        if (fonts != null && !fonts.isEmpty()) {
+            throw new IOException("Fonts to be subset cannot be used in volumes, embed them in full instead");
+        }
+        PDFont oldFont = font;
+        float oldFontSize = fontSize;
+        float oldFixedAdvance = fixedAdvance;
+        drawFooters(pagesBefore, getNumberOfPages(), totalPages, number);
+        font = oldFont;
+        fontSize = oldFontSize;
+        fixedAdvance = oldFixedAdvance;
+        lineSep = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+
+        byte[] id = volumeId(number);
+        if (id != null) {
+            COSArray ids = new COSArray();
+            ids.add(new COSString(id));
+            ids.add(new COSString(id));
+            getDocument().getTrailer().setItem(COSName.ID, ids);
+        } else {
+            getDocument().getTrailer().removeItem(COSName.ID);
+        }
+        if (volumeWriter == null) {
+            saveDocument(volumeSink.openVolume(number));
+            return;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        saveDocument(buf);
+        final byte[] pdf = buf.toByteArray();
+        final VolumeSink sink = volumeSink;
+        volumeWrites.add(volumeWriter.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                OutputStream out = sink.openVolume(number);
+                try {
+                    out.write(pdf);
+                } finally {
+                    out.close();
+                }
+                return null;
+            }
+        }));
+    }
+
+    /*
+     * ID of a volume, when IDs are not made anew on every save: from the
+     * document ID if set, otherwise from the content of the pages.
+     */
+    private byte[] volumeId(int number) throws IOException {
+        if (documentId == null && !deterministic) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+        digest.update(ObjectWriter.bytes("volume " + number));
+        if (documentId != null) {
+            digest.update(documentId);
+        } else {
+            byte[] buf = new byte[16384];
+            for (PDPage page : getPages()) {
+                InputStream in = page.getContents();
+                try {
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        digest.update(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        return Arrays.copyOf(digest.digest(), 16);
+    }
+
+    // Keep the first error, later volumes are not written
+    private void volumeFailed(IOException ex) {
+        Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+        if (volumeError == null) {
+            volumeError = ex;
+        }
+    }
+
+    private void clearVolumes() {
+        for (Future<?> write : volumeWrites) {
+            write.cancel(false);
+        }
+        volumeWrites.clear();
+        releaseHeldVolumes();
+        volumeObjects.clear();
+        volume = 1;
+        volumePagesBefore = 0;
+        volumeBytes = VOLUME_OVERHEAD;
+        volumeError = null;
+    }
+
+    private void releaseHeldVolumes() {
+        for (HeldVolume held : heldVolumes) {
+            releasePages(held.pages);
+        }
+        heldVolumes.clear();
+    }
+
+    // Page tree of a volume kept until the total page count is known
+    private static final class HeldVolume {
+
+        final COSDictionary pages;
+        final int number;
+        final int numPages;
+
+        HeldVolume(COSDictionary pages, int number, int numPages) {
+            this.pages = pages;
+            this.number = number;
+            this.numPages = numPages;
+        }
+    }
+
+    /**
+     * Move cursor to a new position on the current page.
+     *
+     * @param x cursor x-position (horizontal)
+     * @param y cursor y-position (vertical)
+     * @see #setCursor(float[])
+     */
+    public void setCursor(float x, float y) {
+        if (fingerprint != null) {
+            fingerprint.op("setCursor").add(x).add(y);
+        }
+        moveCursor(x, y);
+    }
+
+    private void moveCursor(float x, float y) {
+        cursorX = x;
+        cursorY = y;
+    }
+
+    /**
+     * Move cursor to a new position on the current page.
+     *
+     * @param point a two-element float array giving x and y position of cursor
+     * @see #setCursor(float, float)
+     */
+    public void setCursor(float[] point) {
+        setCursor(point[0], point[1]);
+    }
+
+    /**
+     * Get current cursor position on current page.
+     *
+     * @return two-element float array giving x and y position of cursor
+     */
+    public float[] getCursor() {
+        float[] ret = {cursorX, cursorY};
+        return ret;
+    }
+
+    /**
+     * Retrieve the current cursors horizontal position.
+     *
+     * @return x value of current cursor position
+     * @see #getCursor()
+     */
+    public float getCursorX() {
+        return cursorX;
+    }
+
+    /**
+     * Retrieve the current cursor vertical position.
+     *
+     * @return y value of current cursor position
+     * @see #getCursor()
+     */
+    public float getCursorY() {
+        return cursorY;
+    }
+
+    private int makeLine(TextTokens words, int first, float maxlen) {
+        return metrics().makeLine(words, first, maxlen);
+    }
+
+    // Returns the common glyph advance of a fixed-pitch font, or zero if the
+    // font is proportional. Standard 14 fonts do not carry the FixedPitch
+    // flag, so a few glyphs of very different width are compared as well.
+    private static float detectFixedPitch(PDFont font) {
+        synchronized (font) {
+            try {
+                float advance = font.getStringWidth(" ");
+                if (advance <= 0) {
+                    return 0;
+                }
+                if (font.getFontDescriptor() != null && font.getFontDescriptor().isFixedPitch()) {
+                    return advance;
+                }
+                for (String probe : new String[]{"i", "W", "m", "1", "."}) {
+                    if (font.getStringWidth(probe) != advance) {
+                        return 0;
+                    }
+                }
+                return advance;
+            } catch (IOException | IllegalArgumentException ex) {
+                // Glyphs not encodable in this font, measure the normal way
+                return 0;
+            }
+        }
+    }
+
+    private void doDrawText(String line) {
+        doDrawText(line, textWidth(line));
+    }
+
+    // Draw a line of text already known to be width points wide
+    private void doDrawText(String line, float width) {
+        try {
+            cs.beginText();
+            resetWordSpacing();
+            cs.moveTextPositionByAmount(cursorX, cursorY);
+            showText(line);
+            cs.endText();
+            cursorX += width;
+        } catch (IOException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    // Draw a line of text already known to be width points wide, stretched by
+    // space points spread evenly over the gaps between words.
+    private void doDrawJustified(String line, float width, int gaps, float space) {
+        float extra = space / gaps;
+        try {
+            cs.beginText();
+            cs.moveTextPositionByAmount(cursorX, cursorY);
+            if (font instanceof PDType0Font || (fontFallback != null && !fontFallback.covers(font, line))) {
+                // Word spacing only applies to single byte spaces, so place
+                // each word of a composite font, or of several fonts, by
+                // itself.
+                float spaceWidth = textWidth(" ");
+                float offset = 0;
+                for (String word : line.split(" ")) {
+                    if (offset > 0) {
+                        cs.moveTextPositionByAmount(offset, 0);
+                    }
+                    showText(word);
+                    offset = textWidth(word) + spaceWidth + extra;
+                }
+            } else {
+                cs.setWordSpacing(extra);
+                wordSpacing = extra;
+                drawString(font, line);
+            }
+            cs.endText();
+            cursorX += width + space;
+        } catch (IOException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    // Show text in the current font, and the characters it does not have in
+    // fallback fonts
+    private void showText(String text) throws IOException {
+        if (fontFallback == null || fontFallback.covers(font, text)) {
+            drawString(font, text);
+            return;
+        }
+        for (FontFallback.Run run : fontFallback.runs(font, text)) {
+            cs.setFont(run.font, fontSize);
+            drawString(run.font, run.text);
+        }
+        cs.setFont(font, fontSize);
+    }
+
+    /*
+     * Fonts may be shared with documents on other threads, through a style.
+     * PDFBox caches encodings and widths in plain maps as they are used, so
+     * every use of a font is locked on the font.
+     */
+    private void drawString(PDFont f, String text) throws IOException {
+        synchronized (f) {
+            cs.drawString(text);
+        }
+    }
+
+    // Set word spacing back to zero, if a justified line has changed it
+    private void resetWordSpacing() throws IOException {
+        if (wordSpacing != 0) {
+            cs.setWordSpacing(0);
+            wordSpacing = 0;
+        }
+    }
+
+    private String join(TextTokens words, int first, int num) {
+        return TextMetrics.join(words, first, num);
+    }
+
+    /**
+     * Draw a text from the current cursor position. The text can be multi-line
+     * and even multi-page. When crossing page boundaries
+     * (<code>contentEndY</code>) a new page is created. Newline characters
+     * force explicit lineshift. Normal word-wrap is performed to keep the text
+     * between the stated boundaries <code>startx</code> and <code>endx</code>
+     *
+     * @param txt    The text to be drawn
+     * @param startx Left edge of area available for drawing
+     * @param endx   Right edge of area available for drawing
+     * @param flags  One of
+     *               <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT | HexPDF.JUSTIFY</code>
+     *               for text alignment between startx and endx
+     * @return Actual height of the string drawn
+     * @see #drawText(java.lang.String, int)
+     * @see #drawText(java.lang.String, float, float, int)
+     */
+    protected float _drawText(String txt, float startx, float endx, int flags) {
+        //noinspection Since15
+        if (txt == null || txt.isEmpty()) {
+            return 0;
+        }
+        return _drawText(new TextTokens(txt), startx, endx, flags);
+    }
+
+    // Lay out and draw text read from words, releasing words as they are drawn
+    private float _drawText(TextTokens words, float startx, float endx, int flags) {
+        float cystart = cursorY;
+        int align = HexPDF.LEFT;
         if ((flags & HexPDF.CENTER) > 0) {
             align = HexPDF.CENTER;
         } else if ((flags & HexPDF.RIGHT) > 0) {
@@ -704,15 +1763,10 @@ public class HexPDF extends PDDocument {
         } else if ((flags & HexPDF.JUSTIFY) > 0) {
             align = HexPDF.JUSTIFY;
         }
-        //noinspection Since15
-        if (txt == null || txt.isEmpty()) {
-            return 0;
-        }
-        txt = txt.replace("\n", " " + HexPDF.TXT_NEWLINE + " ");
-        String[] words = txt.split("\\s+");
         int i = 0;
         float height = 0;
-        while (i < words.length) {
+        while (words.has(i)) {
+            words.release(i);
             int num = makeLine(words, i, endx - cursorX);
             if (num == -1) { // newline
                 i++;
@@ -720,7 +1774,7 @@ public class HexPDF extends PDDocument {
                 cursorY -= lineSep;
                 // New page?
                 if (ignorePagebleed == false && ((cursorY - lineSep) < contentEndY)) {
-                    newPage();
+                    openPage();
                     cursorX = startx;
                 }
                 height += lineSep;
@@ -731,18 +1785,18 @@ public class HexPDF extends PDDocument {
                     cursorY -= lineSep;
                     // New page?
                     if (ignorePagebleed == false && ((cursorY - lineSep) < contentEndY)) {
-                        newPage();
+                        openPage();
                         cursorX = startx;
                     }
                 } else {
                     // a single word is too big for the box. Draw it!
-                    doDrawText(words[i]);
+                    doDrawText(words.get(i));
                     cursorY -= lineSep;
                     cursorX = startx;
                     i++;
                     // New page?
                     if (ignorePagebleed == false && ((cursorY - lineSep) < contentEndY)) {
-                        newPage();
+                        openPage();
                         cursorX = startx;
                     }
                 }
@@ -751,18 +1805,12 @@ public class HexPDF extends PDDocument {
                 if ((cursorX == startx) && (align == HexPDF.RIGHT || align == HexPDF.CENTER || align == HexPDF.JUSTIFY)) {
                     float strlen = textWidth(toDraw);
                     float space = endx - startx - strlen;
-                    boolean newline_after = ((i + num) >= words.length || words[i + num].equals(HexPDF.TXT_NEWLINE));
+                    boolean newline_after = (!words.has(i + num) || words.get(i + num).equals(TextTokens.NEWLINE));
                     if (align == HexPDF.JUSTIFY) {
-                        if (newline_after == false) {
+                        if (newline_after == false && num > 1) {
                             // Only justify if this is the not last line of the paragraph.
-                            try {
-                                cs.appendRawCommands(String.format("%f Tc\n", space / (toDraw.length() - 1)).replace(',', '.'));
-                                doDrawText(toDraw);
-                                toDraw = null;
-                                cs.appendRawCommands("0 Tc\n");
-                            } catch (IOException ex) {
-                                Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
-                            }
+                            doDrawJustified(toDraw, strlen, num - 1, space);
+                            toDraw = null;
                         }
                     } else {
                         cursorX += (align == HexPDF.RIGHT) ? space : space / 2;
@@ -794,240 +1842,983 @@ public class HexPDF extends PDDocument {
      * @see #_drawText(java.lang.String, float, float, int)
      */
     public float drawText(String txt, int flags) {
+        if (fingerprint != null) {
+            fingerprint.op("drawText").add(txt).add(flags);
+        }
         return _drawText(txt, contentStartX, contentEndX, flags);
     }
 
     /**
-     * Draw a left-aligned text from the current cursor position. The text can
-     * be multi-line and even multi-page. When crossing page boundaries
-     * (<code>contentEndY</code>) a new page is automatically created. Newline
-     * characters force explicit lineshift. Normal word-wrap is performed to
-     * keep the text between the current <code>leftMargin</code> and
-     * <code>rightMargin</code>
+     * Draw a left-aligned text from the current cursor position. The text can
+     * be multi-line and even multi-page. When crossing page boundaries
+     * (<code>contentEndY</code>) a new page is automatically created. Newline
+     * characters force explicit lineshift. Normal word-wrap is performed to
+     * keep the text between the current <code>leftMargin</code> and
+     * <code>rightMargin</code>
+     *
+     * @param txt The text to be drawn
+     * @return height of text drawn
+     * @see #drawText(java.lang.String, int)
+     * @see #_drawText(java.lang.String, float, float, int)
+     */
+    public float drawText(String txt) {
+        return drawText(txt, HexPDF.LEFT);
+    }
+
+    /**
+     * Draw a text read from a character stream, starting at the current
+     * cursor position. Layout is the same as for
+     * {@link #drawText(java.lang.String, int)}, but the text is read, split
+     * and drawn a chunk at a time, creating new pages as needed. Memory use
+     * does not depend on the size of the text. The reader is not closed.
+     *
+     * @param reader the text to be drawn
+     * @param flags  One of
+     *               <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT | HexPDF.JUSTIFY</code>
+     *               for text alignment between startx and endx
+     * @return Actual height of the string drawn
+     * @see #drawText(java.nio.file.Path, java.nio.charset.Charset, int)
+     */
+    public float drawText(Reader reader, int flags) {
+        if (fingerprint == null) {
+            return _drawText(new TextTokens(reader), contentStartX, contentEndX, flags);
+        }
+        fingerprint.op("drawTextReader").add(flags);
+        float height = _drawText(new TextTokens(fingerprint.reader(reader)), contentStartX, contentEndX, flags);
+        fingerprint.op("end");
+        return height;
+    }
+
+    /**
+     * Draw the contents of a text file, starting at the current cursor
+     * position. The file is read and drawn a chunk at a time.
+     *
+     * @param path    the text file
+     * @param charset character encoding of the file
+     * @param flags   One of
+     *                <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT | HexPDF.JUSTIFY</code>
+     *                for text alignment between startx and endx
+     * @return Actual height of the string drawn
+     * @see #drawText(java.io.Reader, int)
+     */
+    public float drawText(Path path, Charset charset, int flags) {
+        try (Reader reader = Files.newBufferedReader(path, charset)) {
+            return drawText(reader, flags);
+        } catch (IOException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+            return 0;
+        }
+    }
+
+    /**
+     * Draw a text from the specified position. The text can be multi-line and
+     * even multi-page. When crossing page boundaries (<code>contentEndY</code>)
+     * a new page is automatically created. Newline characters force explicit
+     * lineshift. Normal word-wrap is performed to keep the text between the
+     * current <code>leftMargin</code> and <code>rightMargin</code>
+     *
+     * @param txt   The text to be drawn
+     * @param x     Starting x-position for the text
+     * @param y     Starting y-position for the text
+     * @param flags One of
+     *              <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT | HexPDF.JUSTIFY</code>
+     *              for text alignment between startx and endx
+     * @return Actual height of the string drawn
+     * @see #drawText(java.lang.String, int)
+     * @see #_drawText(java.lang.String, float, float, int)
+     */
+    public float drawText(String txt, float x, float y, int flags) {
+        setCursor(x, y);
+        return drawText(txt, flags);
+    }
+
+    /**
+     * Draw an image starting at current cursor location. If no flags are given,
+     * the top-left corner of the image is positioned at the current cursor
+     * position. If one of the flags
+     * <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT</code> is set, the image
+     * is adjusted between <code>leftMargin, rightMargin</code> accordingly. The
+     * cursor location is kept unchanged unless the flag
+     * <code>HexPDF.NEWLINE</code> is set. This is useful for adding pictures as
+     * layers. If <code>HexPDF.NEWLINE</code> is set, the cursor is positioned
+     * at <code>leftMargin</code> immediately below the image.
+     *
+     * @param image the image to be added
+     * @param flags see description
+     */
+    public void drawImage(BufferedImage image, int flags) {
+        if (fingerprint != null) {
+            fingerprint.op("drawImage").add(image).add(flags);
+        }
+        placeImage(image, flags);
+    }
+
+    private void placeImage(BufferedImage image, int flags) {
+        PDImageXObject ximage = null;
+        try {
+            ximage = encodeImage(image);
+        } catch (IOException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        placeImage(ximage, image.getWidth(), image.getHeight(), flags);
+    }
+
+    /**
+     * Draw an image starting at current cursor location. The image is fetched
+     * and decoded only now, and is drawn with the width and height declared
+     * by the image source. If the same image source is drawn again in this
+     * document, the image is not loaded again. Alignment and cursor movement
+     * is the same as for {@link #drawImage(java.awt.image.BufferedImage, int)}.
+     *
+     * @param image the image to be added
+     * @param flags see {@link #drawImage(java.awt.image.BufferedImage, int)}
+     * @see ImageSource
+     */
+    public void drawImage(ImageSource image, int flags) {
+        if (fingerprint != null) {
+            fingerprint.op("drawImageSource").add(image).add(flags);
+        }
+        placeImage(image, flags);
+    }
+
+    private void placeImage(ImageSource image, int flags) {
+        placeImage(resolveImage(image), image.getWidth(), image.getHeight(), flags);
+    }
+
+    /**
+     * Draw an image at the given location, fetching and decoding the image
+     * only now.
+     *
+     * @param image The image to be added
+     * @param x     wanted x-value of image top-left corner on the page
+     * @param y     wanted y-value of image top-left corner on the page
+     * @param flags see {@link #drawImage(java.awt.image.BufferedImage, float, float, int)}
+     * @see ImageSource
+     */
+    public void drawImage(ImageSource image, float x, float y, int flags) {
+        setCursor(x, y);
+        drawImage(image, flags);
+    }
+
+    /**
+     * Draw an image given as pixels or JPEG data, starting at current cursor
+     * location, without using AWT. Alignment and cursor movement is the same
+     * as for {@link #drawImage(java.awt.image.BufferedImage, int)}. If the
+     * same instance is drawn again in this document, it is not added again.
+     *
+     * @param image the image to be added
+     * @param flags see {@link #drawImage(java.awt.image.BufferedImage, int)}
+     * @see RasterImage
+     */
+    public void drawImage(RasterImage image, int flags) {
+        if (fingerprint != null) {
+            fingerprint.op("drawRasterImage").add(image).add(flags);
+        }
+        placeImage(image, flags);
+    }
+
+    private void placeImage(RasterImage image, int flags) {
+        PDImageXObject ximage = rasterRegistry.get(image);
+        if (ximage == null) {
+            try {
+                ximage = image.toImageXObject(this, compressionExecutor == null);
+                rasterRegistry.put(image, ximage);
+                COSStream stream = ximage.getCOSObject();
+                if (compressionExecutor != null && COSName.FLATE_DECODE.equals(stream.getItem(COSName.FILTER))) {
+                    deferredImages.add(stream);
+                    COSBase mask = stream.getDictionaryObject(COSName.SMASK);
+                    if (mask instanceof COSStream) {
+                        deferredImages.add((COSStream) mask);
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        placeImage(ximage, image.getWidth(), image.getHeight(), flags);
+    }
+
+    /**
+     * Draw an image given as pixels or JPEG data at the given location.
+     *
+     * @param image The image to be added
+     * @param x     wanted x-value of image top-left corner on the page
+     * @param y     wanted y-value of image top-left corner on the page
+     * @param flags see {@link #drawImage(java.awt.image.BufferedImage, float, float, int)}
+     * @see RasterImage
+     */
+    public void drawImage(RasterImage image, float x, float y, int flags) {
+        setCursor(x, y);
+        drawImage(image, flags);
+    }
+
+    // Load an image source, or reuse it if already added to this document
+    private PDImageXObject resolveImage(ImageSource source) {
+        PDImageXObject ximage = imageRegistry.get(source);
+        if (ximage == null) {
+            try {
+                if (sharedImages != null) {
+                    ximage = sharedImages.get(this, source, imagePrefetcher, imageDiskCache);
+                } else {
+                    BufferedImage image = (imagePrefetcher != null) ? imagePrefetcher.get(source) : source.load();
+                    ximage = encodeImage(image);
+                }
+                imageRegistry.put(source, ximage);
+            } catch (IOException ex) {
+                Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return ximage;
+    }
+
+    // JPEG encode an image, or take it from the disk cache if set
+    private PDImageXObject encodeImage(BufferedImage image) throws IOException {
+        return (imageDiskCache != null) ? imageDiskCache.get(this, image) : JPEGFactory.createFromImage(this, image);
+    }
+
+    private void placeImage(PDImageXObject ximage, float imW, float imH, int flags) {
+        // newpage if image cannot fit on rest of current page
+        if ((cursorY - imH) < contentEndY) {
+            openPage();
+        }
+        float imgX = alignX(imW, flags);
+        float imgY = cursorY - imH;
+
+        if (ximage != null) {
+            try {
+                cs.drawXObject(ximage, imgX, imgY, imW, imH);
+            } catch (IOException ex) {
+                Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        if ((flags & HexPDF.NEWLINE) > 0) {
+            moveCursor(contentStartX, imgY - lineSep);
+        }
+    }
+
+    // Left side of an image or graphic w points wide, aligned by flags
+    private float alignX(float w, int flags) {
+        if ((flags & HexPDF.CENTER) > 0) {
+            return contentStartX + ((contentWidth - w) / 2);
+        } else if ((flags & HexPDF.LEFT) > 0) {
+            return contentStartX;
+        } else if ((flags & HexPDF.RIGHT) > 0) {
+            return contentEndX - w;
+        }
+        return cursorX;
+    }
+
+    /**
+     * Draw a vector graphic starting at current cursor location. Alignment,
+     * page breaks and cursor movement is the same as for
+     * {@link #drawImage(java.awt.image.BufferedImage, int)}, with the graphic
+     * taking the place of the image. The graphic is written as path operators
+     * and text, so it stays sharp at any zoom and takes little space.
+     *
+     * @param graphic the graphic to be added
+     * @param flags   see {@link #drawImage(java.awt.image.BufferedImage, int)}
+     * @see VectorGraphic
+     * @see Charts
+     */
+    public void drawGraphic(VectorGraphic graphic, int flags) {
+        if (fingerprint != null) {
+            fingerprint.op("drawGraphic").add(graphic).add(flags);
+        }
+        placeGraphic(graphic, flags);
+    }
+
+    private void placeGraphic(VectorGraphic graphic, int flags) {
+        float h = graphic.getHeight();
+        if ((cursorY - h) < contentEndY) {
+            openPage();
+        }
+        float x = alignX(graphic.getWidth(), flags);
+        float y = cursorY;
+        try {
+            graphic.writeTo(cs, font, x, y);
+        } catch (IOException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        if ((flags & HexPDF.NEWLINE) > 0) {
+            moveCursor(contentStartX, y - h - lineSep);
+        }
+    }
+
+    /**
+     * Draw a vector graphic at the given location.
+     *
+     * @param graphic the graphic to be added
+     * @param x       wanted x-value of graphic top-left corner on the page
+     * @param y       wanted y-value of graphic top-left corner on the page
+     * @param flags   see {@link #drawImage(java.awt.image.BufferedImage, float, float, int)}
+     * @see VectorGraphic
+     */
+    public void drawGraphic(VectorGraphic graphic, float x, float y, int flags) {
+        setCursor(x, y);
+        drawGraphic(graphic, flags);
+    }
+
+    /**
+     * Draw an image at the given location. If no flags are given, the top-left
+     * corner of the image is positioned at the specified <code>x, y</code>
+     * location. If one of the flags
+     * <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT</code> is set, the image
+     * is adjusted horizontally between <code>leftMargin, rightMargin</code>
+     * accordingly. The top of the image will always be at the given
+     * <code>y</code> position. The cursor location is kept unchanged unless the
+     * flag <code>HexPDF.NEWLINE</code> is set. This is useful for adding
+     * pictures as layers. If <code>HexPDF.NEWLINE</code> is set, the cursor is
+     * positioned at <code>leftMargin</code> immediately below the image.
+     *
+     * @param image The image to be added
+     * @param x     wanted x-value of image top-left corner on the page
+     * @param y     wanted y-value of image top-left corner on the page
+     * @param flags see description
+     */
+    public void drawImage(BufferedImage image, float x, float y, int flags) {
+        setCursor(x, y);
+        drawImage(image, flags);
+    }
+
+    // TABLE functions
+
+    // Add a text cell to table
+    private float addCell(float x, float y, float w, String txt, int flags) {
+        moveCursor(x + tableCellMargin, y - 0.8f * lineSep);
+        return _drawText(txt, x + tableCellMargin, x + w - tableCellMargin, flags);
+    }
+
+    // Add a single line text cell of known width to table
+    private float addCell(float x, float y, float w, String txt, float textw, int flags) {
+        //noinspection Since15
+        if (txt == null || txt.isEmpty()) {
+            return 0;
+        }
+        float space = w - 2 * tableCellMargin - textw;
+        if ((flags & HexPDF.CENTER) > 0) {
+            moveCursor(x + tableCellMargin + space / 2, y - 0.8f * lineSep);
+        } else if ((flags & HexPDF.RIGHT) > 0) {
+            moveCursor(x + tableCellMargin + space, y - 0.8f * lineSep);
+        } else {
+            moveCursor(x + tableCellMargin, y - 0.8f * lineSep);
+        }
+        doDrawText(txt, textw);
+        return lineSep;
+    }
+
+    // Add an image cell to table
+    private float addCell(float x, float y, float w, BufferedImage image, int flags) {
+        if ((flags & HexPDF.CENTER) > 0) {
+            moveCursor(x + 0.5f * (w - image.getWidth()), y);// - tableCellMargin);
+        } else if ((flags & HexPDF.RIGHT) > 0) {
+            moveCursor(x + w - image.getWidth(), y);// - tableCellMargin);
+        } else {
+            moveCursor(x + tableCellMargin, y);// - tableCellMargin);
+        }
+        placeImage(image, 0);
+        return (image.getHeight());// + 2 * tableCellMargin);
+    }
+
+    // Add an image cell to table, given without AWT
+    private float addCell(float x, float y, float w, RasterImage image, int flags) {
+        if ((flags & HexPDF.CENTER) > 0) {
+            moveCursor(x + 0.5f * (w - image.getWidth()), y);
+        } else if ((flags & HexPDF.RIGHT) > 0) {
+            moveCursor(x + w - image.getWidth(), y);
+        } else {
+            moveCursor(x + tableCellMargin, y);
+        }
+        placeImage(image, 0);
+        return image.getHeight();
+    }
+
+    // Add an image cell to table, loading the image only now
+    private float addCell(float x, float y, float w, ImageSource image, int flags) {
+        if ((flags & HexPDF.CENTER) > 0) {
+            moveCursor(x + 0.5f * (w - image.getWidth()), y);
+        } else if ((flags & HexPDF.RIGHT) > 0) {
+            moveCursor(x + w - image.getWidth(), y);
+        } else {
+            moveCursor(x + tableCellMargin, y);
+        }
+        placeImage(image, 0);
+        return image.getHeight();
+    }
+
+    // Add a vector graphic cell to table
+    private float addCell(float x, float y, float w, VectorGraphic graphic, int flags) {
+        if ((flags & HexPDF.CENTER) > 0) {
+            moveCursor(x + 0.5f * (w - graphic.getWidth()), y);
+        } else if ((flags & HexPDF.RIGHT) > 0) {
+            moveCursor(x + w - graphic.getWidth(), y);
+        } else {
+            moveCursor(x + tableCellMargin, y);
+        }
+        placeGraphic(graphic, 0);
+        return graphic.getHeight();
+    }
+
+    private float addRow(float x, float y, float[] w, TableRows rows, int row, int[] flags, TableGrid grid) {
+        float maxh = 0;
+        float thish = 0;
+        float cellx = x;
+        int i;
+        for (i = 0; i < w.length; i++) {
+            thish = 0;
+            Object cell = rows.cell(row, i);
+            if (cell instanceof String) {
+                float textw = rows.cellWidth(row, i, font, fontSize);
+                if (textw >= 0 && textw <= w[i] - 2 * tableCellMargin) {
+                    thish = addCell(cellx, y, w[i], (String) cell, textw, flags[i]);
+                } else {
+                    thish = addCell(cellx, y, w[i], (String) cell, flags[i]);
+                }
+            } else if (cell instanceof VectorGraphic) {
+                thish = addCell(cellx, y, w[i], (VectorGraphic) cell, flags[i]);
+            } else if (cell instanceof RasterImage) {
+                thish = addCell(cellx, y, w[i], (RasterImage) cell, flags[i]);
+            } else if (cell instanceof ImageSource) {
+                thish = addCell(cellx, y, w[i], (ImageSource) cell, flags[i]);
+            } else if (cell instanceof BufferedImage) {
+                thish = addCell(cellx, y, w[i], (BufferedImage) cell, flags[i]);
+            }
+            cellx += w[i];
+            maxh = (thish > maxh) ? thish : maxh;
+        }
+        cellx = x;
+        for (i = 0; i < w.length; i++) {
+            grid.addCell(cellx, y, w[i], maxh);
+            cellx += w[i];
+        }
+        return maxh;
+    }
+
+    /**
+     * Add a table to the document starting at current cursor location. The
+     * input table must be a two-dimensional array of <code>Object</code>, all
+     * rows must have the same number of columns.
+     * <p>
+     * If the table extends beyond the page boundary <code>contentEndY</code> a
+     * new page is automatically created and the table continues.
+     * <p>
+     * Normal word-wrap is performed within each cell if the text is longer than
+     * the column´ designated width.
+     * <p>
+     * A table element (Object) can be either a String, a BufferedImage, a
+     * RasterImage, an ImageSource or a VectorGraphic, such as a sparkline from
+     * {@link Charts}. Image sources are loaded only when their row is placed,
+     * and if an image prefetcher is set, the images of the rows ahead are
+     * loaded in the background. Tables of text, RasterImage and VectorGraphic
+     * do not use AWT.
+     *
+     * @param table        the table data. Objects should be String, BufferedImage,
+     *                     RasterImage, ImageSource or VectorGraphic
+     * @param column_width array of column widths
+     * @param column_flag  array of flags for text alignment within columns, one
+     *                     of <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT</code>
+     * @param table_align  flag for alignment of the table itself
+     * @return the height of the table - if multipage then return the height on
+     * the last page.
+     */
+    public float drawTable(Object[][] table, float[] column_width, int[] column_flag, int table_align) {
+        return drawTable(TableRows.of(table), column_width, column_flag, table_align);
+    }
+
+    /**
+     * Add a table given as typed columns to the document, starting at current
+     * cursor location. Layout and page breaking is the same as for
+     * {@link #drawTable(java.lang.Object[][], float[], int[], int)}, but cells
+     * are formatted from the column data only as each row is placed. Numeric
+     * cells that fit their column are placed directly without word-wrap.
+     * <p>
+     * If any column has a header, a header row is added on top of the table.
+     *
+     * @param columns      the table data, one entry per column
+     * @param column_width array of column widths
+     * @param column_flag  array of flags for text alignment within columns, one
+     *                     of <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT</code>
+     * @param table_align  flag for alignment of the table itself
+     * @return the height of the table - if multipage then return the height on
+     * the last page.
+     * @see TableColumn
+     */
+    public float drawTable(TableColumn[] columns, float[] column_width, int[] column_flag, int table_align) {
+        return drawTable(TableRows.of(columns), column_width, column_flag, table_align);
+    }
+
+    private float drawTable(TableRows table, float[] column_width, int[] column_flag, int table_align) {
+        if (fingerprint != null) {
+            fingerprint.op("drawTable").add(column_width).add(column_flag).add(table_align).add(table.size());
+            // Images are not asked for before their row is placed
+            for (int col = 0; col < column_width.length; col++) {
+                if (table.isSupplied(col)) {
+                    fingerprint.taint();
+                }
+            }
+            for (int row = 0; row < table.size() && !fingerprint.isTainted(); row++) {
+                fingerprint.add(table.isEmpty(row));
+                for (int col = 0; col < column_width.length && !table.isEmpty(row); col++) {
+                    fingerprint.addCell(table.cell(row, col));
+                }
+            }
+        }
+        float tabheight = 0;
+        float rowheight = 0;
+        boolean oldIgnoreBleed = ignorePagebleed;
+        ignorePagebleed = true; // No unintended page-breaks while adding table
+        float x = tableX(column_width, table_align);
+        float y = cursorY;
+
+        // With a pool all rows are measured and the page breaks placed before
+        // drawing. Otherwise each row is measured just before it is placed,
+        // so that cells are formatted and images loaded in row order.
+        TablePlan plan = (tablePool != null) ? planTable(table, x, column_width, column_flag) : null;
+        TextMetrics rowMetrics = (plan == null) ? metrics() : null;
+        float space = y - contentEndY;
+        double used = 0;
+        boolean rowsOnPage = false;
+        int prefetched = 0;
+        TableGrid grid = new TableGrid();
+        for (int row = 0; row < table.size(); row++) {
+            if (!table.isEmpty(row)) {
+                if (imagePrefetcher != null) {
+                    int last = Math.min(table.size(), row + 1 + imagePrefetcher.getLookahead());
+                    prefetchImages(table, Math.max(prefetched, row + 1), last, column_width.length);
+                    prefetched = Math.max(prefetched, last);
+                }
+                if (plan == null) {
+                    // A row that does not fit goes on the next page, unless
+                    // the page has no rows yet
+                    float height = rowMetrics.rowHeight(table, row, x, column_width, column_flag);
+                    if (rowsOnPage && used + height > space) {
+                        strokeGrid(grid);
+                        openPage();
+                        tabheight = 0;
+                        y = contentStartY;
+                        space = contentStartY - contentEndY;
+                        used = 0;
+                    }
+                    used += height;
+                }
+                rowheight = addRow(x, y - tabheight, column_width, table, row, column_flag, grid);
+                tabheight += rowheight;
+                rowsOnPage = true;
+                if (plan != null && plan.isBreakAfter(row)) {
+                    strokeGrid(grid);
+                    openPage();
+                    tabheight = 0;
+                    y = contentStartY;
+                }
+            }
+        }
+        if (plan == null && used > space) {
+            // The last row ran past the bottom of the page
+            strokeGrid(grid);
+            openPage();
+            tabheight = 0;
+        }
+        strokeGrid(grid);
+        cursorX = contentStartX;
+        cursorY -= (rowheight + tableCellMargin);
+        ignorePagebleed = oldIgnoreBleed;
+        return tabheight;
+    }
+
+    /**
+     * Measure a table and work out where it breaks over pages, without
+     * drawing it. The plan holds for the table drawn with
+     * {@link #drawTable(java.lang.Object[][], float[], int[], int)} from the
+     * current cursor position, in the current font.
+     *
+     * @param table        the table data
+     * @param column_width array of column widths
+     * @param column_flag  array of flags for text alignment within columns
+     * @param table_align  flag for alignment of the table itself
+     * @return row heights and page breaks of the table
+     * @see #setTablePool(java.util.concurrent.ForkJoinPool)
+     */
+    public TablePlan planTable(Object[][] table, float[] column_width, int[] column_flag, int table_align) {
+        return planTable(TableRows.of(table), tableX(column_width, table_align), column_width, column_flag);
+    }
+
+    /**
+     * Measure a table given as typed columns and work out where it breaks
+     * over pages, without drawing it.
+     *
+     * @param columns      the table data, one entry per column
+     * @param column_width array of column widths
+     * @param column_flag  array of flags for text alignment within columns
+     * @param table_align  flag for alignment of the table itself
+     * @return row heights and page breaks of the table
+     * @see #planTable(java.lang.Object[][], float[], int[], int)
+     */
+    public TablePlan planTable(TableColumn[] columns, float[] column_width, int[] column_flag, int table_align) {
+        return planTable(TableRows.of(columns), tableX(column_width, table_align), column_width, column_flag);
+    }
+
+    private TablePlan planTable(TableRows table, float x, float[] column_width, int[] column_flag) {
+        return TablePlan.plan(table, column_width, column_flag, x, metrics(), cursorY - contentEndY,
+                contentStartY - contentEndY, tablePool);
+    }
+
+    // Left edge of a table at the cursor
+    private float tableX(float[] column_width, int table_align) {
+        float table_width = 0;
+        for (float colwidth : column_width) {
+            table_width += colwidth;
+        }
+        float free_space = this.contentWidth - table_width;
+        float x = cursorX;
+        if (table_align == HexPDF.CENTER || table_align == HexPDF.RIGHT) {
+            x += ((table_align == HexPDF.CENTER) ? free_space / 2 : free_space);
+        }
+        return x;
+    }
+
+    // Draw the table borders collected for the current page
+    private void strokeGrid(TableGrid grid) {
+        try {
+            grid.stroke(cs);
+        } catch (IOException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    // Start loading the images of the rows following the row being placed
+    private void prefetchImages(TableRows table, int first, int last, int columns) {
+        for (int row = first; row < last; row++) {
+            if (!table.isEmpty(row)) {
+                for (int col = 0; col < columns; col++) {
+                    ImageSource source = table.imageSource(row, col);
+                    if (source != null && !imageRegistry.containsKey(source)) {
+                        imagePrefetcher.prefetch(source);
+                    }
+                }
+            }
+        }
+    }
+
+    // Setters and getters
+
+    /**
+     * Set a prefetcher used for loading table images ahead of the row being
+     * placed. The prefetcher is not closed by the document.
+     *
+     * @param prefetcher image prefetcher, or null to load images when placed
+     * @see ImagePrefetcher
+     */
+    public void setImagePrefetcher(ImagePrefetcher prefetcher) {
+        this.imagePrefetcher = prefetcher;
+    }
+
+    /**
+     * Get the image prefetcher used for table images.
+     *
+     * @return image prefetcher, or null if none is set
+     */
+    public ImagePrefetcher getImagePrefetcher() {
+        return imagePrefetcher;
+    }
+
+    /**
+     * Measure the rows of large tables in parallel on a fork/join pool
+     * before they are drawn. Rows are drawn on the thread drawing the
+     * document, and the output is the same as without a pool. The pool is
+     * not shut down by the document, and may be shared between documents,
+     * for instance <code>ForkJoinPool.commonPool()</code>.
+     * <p>
+     * Without a pool each row is measured just before it is placed. With a
+     * pool every cell is looked at up front, so images from
+     * {@link TableColumn#of(int, java.util.function.IntFunction)} are asked
+     * for twice and image sources without a declared size are read ahead of
+     * the table.</p>
+     *
+     * @param pool where to measure table rows, or null to measure them on
+     *             the thread drawing
+     * @see #planTable(java.lang.Object[][], float[], int[], int)
+     */
+    public void setTablePool(ForkJoinPool pool) {
+        this.tablePool = pool;
+    }
+
+    /**
+     * @return where table rows are measured, or null if on the drawing
+     * thread
+     * @see #setTablePool(java.util.concurrent.ForkJoinPool)
+     */
+    public ForkJoinPool getTablePool() {
+        return tablePool;
+    }
+
+    /**
+     * Share encoded images with other documents. Images drawn from an
+     * {@link ImageSource} are then loaded and encoded once for all documents
+     * using the same SharedImages.
+     *
+     * @param sharedImages the shared images, or null to encode images per
+     *                     document
+     * @see SharedImages
+     */
+    public void setSharedImages(SharedImages sharedImages) {
+        this.sharedImages = sharedImages;
+    }
+
+    /**
+     * Get the images shared with other documents.
+     *
+     * @return the shared images, or null if none are set
+     */
+    public SharedImages getSharedImages() {
+        return sharedImages;
+    }
+
+    /**
+     * Keep encoded images on disk, for use by later documents and later
+     * runs. Images drawn as a <code>BufferedImage</code> or from an
+     * {@link ImageSource} are then looked up by their pixels before they are
+     * encoded. With shared images as well, the disk is only looked at by the
+     * first document drawing each image source.
+     *
+     * @param cache the cache, or null to encode images every time
+     * @see ImageDiskCache
+     */
+    public void setImageDiskCache(ImageDiskCache cache) {
+        this.imageDiskCache = cache;
+    }
+
+    /**
+     * Get the disk cache of encoded images.
+     *
+     * @return the cache, or null if none is set
+     */
+    public ImageDiskCache getImageDiskCache() {
+        return imageDiskCache;
+    }
+
+    /**
+     * Make output repeatable. Saving the same calls with the same arguments
+     * then gives identical bytes: the date shown by {@link Footer#DATE} is
+     * taken from the clock set with {@link #setClock(java.time.Clock)}, or
+     * 1 Jan 1970 UTC if none is set, {@link Footer#USER} is the user set with
+     * {@link #setUser(java.lang.String)}, or empty, and the document ID is
+     * derived from the calls unless set with {@link #setDocumentId(byte[])}.
+     * <p>
+     * Set this before the first page. Calls made earlier are not known, and
+     * the document ID of such a document only reflects later calls.</p>
+     *
+     * @param deterministic true for repeatable output
+     */
+    public void setDeterministic(boolean deterministic) {
+        boolean wasActive = fingerprint != null;
+        this.deterministic = deterministic;
+        if (wasActive != (renderCache != null || deterministic)) {
+            startFingerprint();
+        }
+    }
+
+    /**
+     * @return true if output is repeatable
+     * @see #setDeterministic(boolean)
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /**
+     * Save as PDF 1.5 with object streams and a cross-reference stream. All
+     * objects other than streams, such as pages, fonts and annotations, are
+     * then packed into compressed object streams, and the cross-reference
+     * table is a compressed stream as well. This typically makes documents of
+     * many pages a good deal smaller, and faster for viewers to open. The
+     * output needs a PDF 1.5 reader, which is Acrobat 6 (2003) or newer.
+     * <p>
+     * Encrypted documents are always saved the PDFBox way, as PDF 1.4.</p>
      *
-     * @param txt The text to be drawn
-     * @return height of text drawn
-     * @see #drawText(java.lang.String, int)
-     * @see #_drawText(java.lang.String, float, float, int)
+     * @param compactOutput true for PDF 1.5 object streams
+     * @see #setCompressionLevel(int)
      */
-    public float drawText(String txt) {
-        return drawText(txt, HexPDF.LEFT);
+    public void setCompactOutput(boolean compactOutput) {
+        this.compactOutput = compactOutput;
     }
 
     /**
-     * Draw a text from the specified position. The text can be multi-line and
-     * even multi-page. When crossing page boundaries (<code>contentEndY</code>)
-     * a new page is automatically created. Newline characters force explicit
-     * lineshift. Normal word-wrap is performed to keep the text between the
-     * current <code>leftMargin</code> and <code>rightMargin</code>
-     *
-     * @param txt   The text to be drawn
-     * @param x     Starting x-position for the text
-     * @param y     Starting y-position for the text
-     * @param flags One of
-     *              <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT | HexPDF.JUSTIFY</code>
-     *              for text alignment between startx and endx
-     * @return Actual height of the string drawn
-     * @see #drawText(java.lang.String, int)
-     * @see #_drawText(java.lang.String, float, float, int)
+     * @return true if saved with object streams
+     * @see #setCompactOutput(boolean)
      */
-    public float drawText(String txt, float x, float y, int flags) {
-        setCursor(x, y);
-        return drawText(txt, flags);
+    public boolean isCompactOutput() {
+        return compactOutput;
     }
 
     /**
-     * Draw an image starting at current cursor location. If no flags are given,
-     * the top-left corner of the image is positioned at the current cursor
-     * position. If one of the flags
-     * <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT</code> is set, the image
-     * is adjusted between <code>leftMargin, rightMargin</code> accordingly. The
-     * cursor location is kept unchanged unless the flag
-     * <code>HexPDF.NEWLINE</code> is set. This is useful for adding pictures as
-     * layers. If <code>HexPDF.NEWLINE</code> is set, the cursor is positioned
-     * at <code>leftMargin</code> immediately below the image.
+     * Save linearized, also known as "fast web view". The objects are
+     * ordered so that the first page and everything it uses come first,
+     * followed by the other pages in order, with hint tables telling where
+     * each page is. A viewer reading the document over the network can then
+     * show the first page as soon as its part of the file has arrived, and
+     * fetch other pages with range requests instead of waiting for the whole
+     * file. Worthwhile for large documents served from a web server.
+     * <p>
+     * Linearized documents use a cross-reference table rather than object
+     * streams, so this takes precedence over compact output. Encrypted
+     * documents are always saved the PDFBox way, not linearized.</p>
      *
-     * @param image the image to be added
-     * @param flags see description
+     * @param linearized true to save linearized
+     * @see #setCompactOutput(boolean)
      */
-    public void drawImage(BufferedImage image, int flags) {
-        PDImageXObject ximage = null;
-        float imW = 0;
-        float imH = 0;
-        try {
-            ximage = JPEGFactory.createFromImage(this, image);
-            imW = ximage.getWidth();
-            imH = ximage.getHeight();
-        } catch (IOException ex) {
-            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        // newpage if image cannot fit on rest of current page
-        if ((cursorY - imH) < contentEndY) {
-            newPage();
-        }
-        float imgX = cursorX;
-        float imgY = cursorY - imH;
-        if ((flags & HexPDF.CENTER) > 0) {
-            imgX = contentStartX + ((contentWidth - imW) / 2);
-        } else if ((flags & HexPDF.LEFT) > 0) {
-            imgX = contentStartX;
-        } else if ((flags & HexPDF.RIGHT) > 0) {
-            imgX = contentEndX - imW;
-        }
-
-        try {
-            cs.drawXObject(ximage, imgX, imgY, imW, imH);
-        } catch (IOException ex) {
-            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
-        }
+    public void setLinearized(boolean linearized) {
+        this.linearized = linearized;
+    }
 
-        if ((flags & HexPDF.NEWLINE) > 0) {
-            setCursor(contentStartX, imgY - lineSep);
-        }
+    /**
+     * @return true if saved linearized
+     * @see #setLinearized(boolean)
+     */
+    public boolean isLinearized() {
+        return linearized;
     }
 
     /**
-     * Draw an image at the given location. If no flags are given, the top-left
-     * corner of the image is positioned at the specified <code>x, y</code>
-     * location. If one of the flags
-     * <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT</code> is set, the image
-     * is adjusted horizontally between <code>leftMargin, rightMargin</code>
-     * accordingly. The top of the image will always be at the given
-     * <code>y</code> position. The cursor location is kept unchanged unless the
-     * flag <code>HexPDF.NEWLINE</code> is set. This is useful for adding
-     * pictures as layers. If <code>HexPDF.NEWLINE</code> is set, the cursor is
-     * positioned at <code>leftMargin</code> immediately below the image.
+     * Set the Flate compression level of page content streams, and of object
+     * and cross-reference streams with compact output. Level 1 is fastest, 9
+     * gives the smallest files, and 0 leaves content streams uncompressed,
+     * which is mainly useful for reading them while debugging. With the
+     * default, <code>Deflater.DEFAULT_COMPRESSION</code> (-1), content
+     * streams are compressed by PDFBox while drawing, otherwise they are
+     * compressed at the chosen level when the document is saved.
+     * <p>
+     * Set this before the first page.</p>
      *
-     * @param image The image to be added
-     * @param x     wanted x-value of image top-left corner on the page
-     * @param y     wanted y-value of image top-left corner on the page
-     * @param flags see description
+     * @param level -1 for the default, or 0 to 9
+     * @throws IllegalArgumentException if the level is out of range
+     * @see #setCompactOutput(boolean)
      */
-    public void drawImage(BufferedImage image, float x, float y, int flags) {
-        setCursor(x, y);
-        drawImage(image, flags);
+    public void setCompressionLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be -1 to 9, but is " + level);
+        }
+        this.compressionLevel = level;
     }
 
-    // TABLE functions
+    /**
+     * @return Flate compression level, -1 for the default
+     * @see #setCompressionLevel(int)
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
 
-    // Add a text cell to table
-    private float addCell(float x, float y, float w, String txt, int flags) {
-        setCursor(x + tableCellMargin, y - 0.8f * lineSep);
-        return _drawText(txt, x + tableCellMargin, x + w - tableCellMargin, flags);
+    /**
+     * Compress streams in parallel when the document is saved. Page content
+     * streams and images given as pixels are then kept uncompressed while
+     * drawing, and compressed on the executor by
+     * {@link #finish(java.io.OutputStream)}, each at the level it would
+     * otherwise have. The streams are still written in page order, and the
+     * output is byte for byte the same as without an executor. This mostly
+     * pays off for documents of many pages on machines with many cores. The
+     * executor is not shut down by the document, and may be shared between
+     * documents.
+     * <p>
+     * Set this before the first page.</p>
+     *
+     * @param executor where to compress, or null to compress on the thread
+     *                 drawing, as it goes
+     * @see #setCompressionLevel(int)
+     */
+    public void setCompressionExecutor(ExecutorService executor) {
+        this.compressionExecutor = executor;
     }
 
-    // Add an image cell to table
-    private float addCell(float x, float y, float w, BufferedImage image, int flags) {
-        if ((flags & HexPDF.CENTER) > 0) {
-            setCursor(x + 0.5f * (w - image.getWidth()), y);// - tableCellMargin);
-        } else if ((flags & HexPDF.RIGHT) > 0) {
-            setCursor(x + w - image.getWidth(), y);// - tableCellMargin);
-        } else {
-            setCursor(x + tableCellMargin, y);// - tableCellMargin);
-        }
-        drawImage(image, 0);
-        return (image.getHeight());// + 2 * tableCellMargin);
+    /**
+     * @return where streams are compressed, or null if on the drawing thread
+     * @see #setCompressionExecutor(java.util.concurrent.ExecutorService)
+     */
+    public ExecutorService getCompressionExecutor() {
+        return compressionExecutor;
     }
 
-    private void addCellBorder(float x, float y, float w, float h) {
-        try {
-            cs.drawLine(x, y, x + w, y);
-            cs.drawLine(x + w, y, x + w, y - h);
-            cs.drawLine(x + w, y - h, x, y - h);
-            cs.drawLine(x, y - h, x, y);
-        } catch (IOException ex) {
-            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
-        }
+    /**
+     * Set the clock used for the date shown by {@link Footer#DATE}.
+     *
+     * @param clock the clock, or null for the system clock and time zone
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
     }
 
-    private float addRow(float x, float y, float[] w, Object[] cells, int[] flags) {
-        float maxh = 0;
-        float thish = 0;
-        float cellx = x;
-        int i;
-        for (i = 0; i < w.length; i++) {
-            thish = 0;
-            if (cells[i] instanceof String) {
-                thish = addCell(cellx, y, w[i], (String) cells[i], flags[i]);
-            } else if (cells[i] instanceof BufferedImage) {
-                thish = addCell(cellx, y, w[i], (BufferedImage) cells[i], flags[i]);
-            }
-            cellx += w[i];
-            maxh = (thish > maxh) ? thish : maxh;
-        }
-        cellx = x;
-        for (i = 0; i < w.length; i++) {
-            addCellBorder(cellx, y, w[i], maxh);
-            cellx += w[i];
-        }
-        return maxh;
+    /**
+     * Set the user name shown by {@link Footer#USER}.
+     *
+     * @param user user name, or null for the <code>user.name</code> system
+     *             property
+     */
+    public void setUser(String user) {
+        this.user = user;
     }
 
     /**
-     * Add a table to the document starting at current cursor location. The
-     * input table must be a two-dimensional array of <code>Object</code>, all
-     * rows must have the same number of columns.
-     * <p>
-     * If the table extends beyond the page boundary <code>contentEndY</code> a
-     * new page is automatically created and the table continues.
-     * <p>
-     * Normal word-wrap is performed within each cell if the text is longer than
-     * the column´ designated width.
-     * <p>
-     * A table element (Object) can be either a String or a BufferedImage
+     * Set the ID written in the document trailer. PDF readers use the ID to
+     * tell documents apart, by default a new one is made on every save.
      *
-     * @param table        the table data. Objects should be String or BufferedImage
-     * @param column_width array of column widths
-     * @param column_flag  array of flags for text alignment within columns, one
-     *                     of <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT</code>
-     * @param table_align  flag for alignment of the table itself
-     * @return the height of the table - if multipage then return the height on
-     * the last page.
+     * @param documentId the ID, usually 16 bytes, or null for the default
      */
-    public float drawTable(Object[][] table, float[] column_width, int[] column_flag, int table_align) {
-        float tabheight = 0;
-        float rowheight = 0;
-        float table_width = 0;
-        boolean oldIgnoreBleed = ignorePagebleed;
-        ignorePagebleed = true; // No unintended page-breaks while adding table
-        for (float colwidth : column_width) {
-            table_width += colwidth;
+    public void setDocumentId(byte[] documentId) {
+        this.documentId = (documentId != null) ? documentId.clone() : null;
+    }
+
+    /**
+     * Use a render cache. When a document is finished, it is looked up by a
+     * fingerprint of all calls made to it since the cache was set or the
+     * document was reset, and the cached bytes are written if found.
+     * Otherwise the document is saved and added to the cache.
+     * <p>
+     * Set this before the first page. Documents with pages added before the
+     * cache was set, or written to directly through
+     * {@link #getPDPageContentStream()}, or with images given as bytes, are
+     * never cached. Images read from files or URLs are known by their
+     * location, and are assumed not to change.</p>
+     *
+     * @param renderCache the cache, or null for none
+     * @see MemoryRenderCache
+     */
+    public void setRenderCache(RenderCache renderCache) {
+        boolean wasActive = fingerprint != null;
+        this.renderCache = renderCache;
+        if (wasActive != (renderCache != null || deterministic)) {
+            startFingerprint();
         }
-        float free_space = this.contentWidth - table_width;
+    }
 
-        float x = cursorX;
-        float y = cursorY;
+    /**
+     * @return the render cache, or null if none is set
+     */
+    public RenderCache getRenderCache() {
+        return renderCache;
+    }
 
-        if (table_align == HexPDF.CENTER || table_align == HexPDF.RIGHT) {
-            x += ((table_align == HexPDF.CENTER) ? free_space / 2 : free_space);
+    // Start recording calls if needed for the cache or the document ID
+    private void startFingerprint() {
+        if (renderCache == null && !deterministic) {
+            fingerprint = null;
+            return;
         }
-        int rownum = 1;
-        for (Object[] row : table) {
-            if (row != null) {
-                // Can the next row it fit on same page? Find the height of next
-                // row and make a new page after adding this row if necessary.
-                float guessRowHeight = 0;
-                if (rownum < table.length) {
-                    guessRowHeight = rowHeight(x, contentStartY, column_width, table[rownum], column_flag);
-                }
-                rowheight = addRow(x, y - tabheight, column_width, row, column_flag);
-                tabheight += rowheight;
-                // Ne page before next row?
-                if ((y - tabheight - guessRowHeight) < contentEndY) {
-                    newPage();
-                    tabheight = 0;
-                    y = contentStartY;
-                }
-            }
-            rownum++;
+        fingerprint = new Fingerprint();
+        recordState("start");
+        if (currentPage != null || numPages > 0) {
+            fingerprint.taint();
         }
-        cursorX = contentStartX;
-        cursorY -= (rowheight + tableCellMargin);
-        ignorePagebleed = oldIgnoreBleed;
-        return tabheight;
     }
 
-    // Setters and getters
+    // Record all settings that affect the layout
+    private void recordState(String op) {
+        fingerprint.op(op).add(font).add(fontSize).add(fixedAdvance)
+                .add(normalFontSize).add(title1FontSize).add(title2FontSize)
+                .add(normalColor).add(titleColor)
+                .add(topMargin).add(bottomMargin).add(leftMargin).add(rightMargin)
+                .add(orientation).add(pageSize).add(tableCellMargin).add(fontFallback)
+                .add(cursorX).add(cursorY);
+    }
 
     /**
      * Set current font-size and color to a title-1 style.
@@ -1079,6 +2870,9 @@ public class HexPDF extends PDDocument {
      * @param fs font size in points
      */
     public void setFontSize(float fs) {
+        if (fingerprint != null) {
+            fingerprint.op("setFontSize").add(fs);
+        }
         this.fontSize = fs;
         if (currentPage != null) {
             try {
@@ -1107,6 +2901,12 @@ public class HexPDF extends PDDocument {
      * @see PDFont
      */
     public void setFont(PDFont font) {
+        if (fingerprint != null) {
+            fingerprint.op("setFont").add(font);
+        }
+        if (font != this.font) {
+            this.fixedAdvance = detectFixedPitch(font);
+        }
         this.font = font;
         try {
             cs.setFont(font, fontSize);
@@ -1116,6 +2916,72 @@ public class HexPDF extends PDDocument {
         lineSep = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
     }
 
+    /**
+     * Draw the characters the current font does not have in other fonts.
+     * Text is split into runs by font when measured, word-wrapped and drawn,
+     * also in tables and footers. With fallback fonts set, text in a
+     * fixed-pitch font is word-wrapped by measuring it, as other fonts may
+     * have other widths.
+     *
+     * @param fallback fonts to use, or null to draw all text in the current
+     *                 font
+     * @see FontFallback
+     */
+    public void setFontFallback(FontFallback fallback) {
+        if (fingerprint != null) {
+            fingerprint.op("setFontFallback").add(fallback);
+        }
+        this.fontFallback = fallback;
+    }
+
+    /**
+     * @return fonts used for characters the current font does not have, or
+     * null if none are set
+     * @see #setFontFallback(FontFallback)
+     */
+    public FontFallback getFontFallback() {
+        return fontFallback;
+    }
+
+    /**
+     * Tells whether the current font is laid out as a fixed-pitch font. Line
+     * breaking for fixed-pitch fonts is done by counting characters, without
+     * measuring the text. Fixed-pitch fonts such as Courier are detected
+     * automatically when set.
+     *
+     * @return true if the current font is treated as fixed-pitch
+     * @see #setFixedPitch(boolean)
+     */
+    public boolean isFixedPitch() {
+        return fixedAdvance > 0;
+    }
+
+    /**
+     * Declare whether the current font should be laid out as a fixed-pitch
+     * font. When true, every character is assumed to be as wide as the space
+     * character. Use this for fonts that are fixed-pitch in practice but not
+     * detected as such. The setting lasts until the next font change.
+     *
+     * @param fixedPitch true to lay out text by character count only
+     * @see #isFixedPitch()
+     */
+    public void setFixedPitch(boolean fixedPitch) {
+        if (fingerprint != null) {
+            fingerprint.op("setFixedPitch").add(fixedPitch);
+        }
+        if (fixedPitch) {
+            try {
+                synchronized (font) {
+                    fixedAdvance = font.getStringWidth(" ");
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } else {
+            fixedAdvance = 0;
+        }
+    }
+
     /**
      * Retrieve the height of the top margin.
      *
@@ -1132,6 +2998,9 @@ public class HexPDF extends PDDocument {
      * @param topMargin new height of top margin in points
      */
     public void setTopMargin(float topMargin) {
+        if (fingerprint != null) {
+            fingerprint.op("setTopMargin").add(topMargin);
+        }
         this.topMargin = topMargin;
         setDimensions();
     }
@@ -1152,6 +3021,9 @@ public class HexPDF extends PDDocument {
      * @param bottomMargin new height of top margin in points
      */
     public void setBottomMargin(float bottomMargin) {
+        if (fingerprint != null) {
+            fingerprint.op("setBottomMargin").add(bottomMargin);
+        }
         this.bottomMargin = bottomMargin;
         setDimensions();
     }
@@ -1172,6 +3044,9 @@ public class HexPDF extends PDDocument {
      * @param leftMargin new height of top margin in points
      */
     public void setLeftMargin(float leftMargin) {
+        if (fingerprint != null) {
+            fingerprint.op("setLeftMargin").add(leftMargin);
+        }
         this.leftMargin = leftMargin;
         setDimensions();
     }
@@ -1228,6 +3103,9 @@ public class HexPDF extends PDDocument {
      * @param rightMargin new height of top margin in points
      */
     public void setRightMargin(float rightMargin) {
+        if (fingerprint != null) {
+            fingerprint.op("setRightMargin").add(rightMargin);
+        }
         this.rightMargin = rightMargin;
         setDimensions();
     }
@@ -1240,6 +3118,9 @@ public class HexPDF extends PDDocument {
      * @see #DEFAULT_NORMAL_FONT_SIZE
      */
     public void setNormalFontSize(float fontSize) {
+        if (fingerprint != null) {
+            fingerprint.op("setNormalFontSize").add(fontSize);
+        }
         normalFontSize = fontSize;
     }
 
@@ -1251,6 +3132,9 @@ public class HexPDF extends PDDocument {
      * @see #DEFAULT_TITLE1_FONT_SIZE
      */
     public void setTitle1FontSize(float fontSize) {
+        if (fingerprint != null) {
+            fingerprint.op("setTitle1FontSize").add(fontSize);
+        }
         title1FontSize = fontSize;
     }
 
@@ -1262,6 +3146,9 @@ public class HexPDF extends PDDocument {
      * @see #DEFAULT_TITLE2_FONT_SIZE
      */
     public void setTitle2FontSize(float fontSize) {
+        if (fingerprint != null) {
+            fingerprint.op("setTitle2FontSize").add(fontSize);
+        }
         title2FontSize = fontSize;
     }
 
@@ -1272,6 +3159,9 @@ public class HexPDF extends PDDocument {
      * @see #DEFAULT_TABLE_CELL_MARGIN
      */
     public void settableCellMargin(float cellMargin) {
+        if (fingerprint != null) {
+            fingerprint.op("settableCellMargin").add(cellMargin);
+        }
         tableCellMargin = cellMargin;
     }
 
@@ -1284,6 +3174,14 @@ public class HexPDF extends PDDocument {
      * @return PDPageContentStream in use
      */
     public PDPageContentStream getPDPageContentStream() {
+        if (fingerprint != null) {
+            fingerprint.taint();
+        }
+        try {
+            resetWordSpacing();
+        } catch (IOException ex) {
+            Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
+        }
         return cs;
     }
 
@@ -1296,9 +3194,23 @@ public class HexPDF extends PDDocument {
      * @see #setNormalColor(java.awt.Color)
      */
     public void setTextColor(Color color) {
+        setTextColor(HexColor.of(color));
+    }
+
+    /**
+     * Set text color, without using AWT.
+     * This will be reset if you change style.
+     *
+     * @param color the new text color
+     * @see #setTitleColor(HexColor)
+     * @see #setNormalColor(HexColor)
+     */
+    public void setTextColor(HexColor color) {
+        if (fingerprint != null) {
+            fingerprint.op("setTextColor").add(color);
+        }
         try {
-            cs.setNonStrokingColor(color);
-            //textColor = color;
+            cs.setNonStrokingColor(color.toPDColor());
         } catch (IOException ex) {
             Logger.getLogger(HexPDF.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -1330,6 +3242,16 @@ public class HexPDF extends PDDocument {
      * @return Color
      */
     public Color getTitleColor() {
+        return (titleColor != null) ? titleColor.toColor() : null;
+    }
+
+    /**
+     * Get the color currently used for title style writing, without using
+     * AWT.
+     *
+     * @return color
+     */
+    public HexColor getTitleHexColor() {
         return titleColor;
     }
 
@@ -1339,6 +3261,18 @@ public class HexPDF extends PDDocument {
      * @param titleColor Color
      */
     public void setTitleColor(Color titleColor) {
+        setTitleColor(HexColor.of(titleColor));
+    }
+
+    /**
+     * Set the color to use for title style writing, without using AWT.
+     *
+     * @param titleColor color
+     */
+    public void setTitleColor(HexColor titleColor) {
+        if (fingerprint != null) {
+            fingerprint.op("setTitleColor").add(titleColor);
+        }
         this.titleColor = titleColor;
     }
 
@@ -1348,6 +3282,16 @@ public class HexPDF extends PDDocument {
      * @return color    Color
      */
     public Color getNormalColor() {
+        return (normalColor != null) ? normalColor.toColor() : null;
+    }
+
+    /**
+     * Get the color currently used for normal style writing, without using
+     * AWT.
+     *
+     * @return color
+     */
+    public HexColor getNormalHexColor() {
         return normalColor;
     }
 
@@ -1357,6 +3301,18 @@ public class HexPDF extends PDDocument {
      * @param color Color
      */
     public void setNormalColor(Color color) {
+        setNormalColor(HexColor.of(color));
+    }
+
+    /**
+     * Set the color to use for normal style writing, without using AWT.
+     *
+     * @param color color
+     */
+    public void setNormalColor(HexColor color) {
+        if (fingerprint != null) {
+            fingerprint.op("setNormalColor").add(color);
+        }
         this.normalColor = color;
     }
 
@@ -1403,6 +3359,9 @@ public class HexPDF extends PDDocument {
      * @param orientation HexPDF.LANDSCAPE | HexPDF.PORTRAIT
      */
     public void setOrientation(int orientation) {
+        if (fingerprint != null) {
+            fingerprint.op("setOrientation").add(orientation);
+        }
         this.orientation = orientation;
     }
 
@@ -1415,6 +3374,9 @@ public class HexPDF extends PDDocument {
      * @see PDRectangle
      */
     public void setPageSize(PDRectangle pageSize) {
+        if (fingerprint != null) {
+            fingerprint.op("setPageSize").add(pageSize);
+        }
         this.pageSize = pageSize;
     }
 
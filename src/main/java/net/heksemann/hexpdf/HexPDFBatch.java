@@ -0,0 +1,491 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Generates one document per record, spread over an executor, e.g. for mail
+ * merge runs of personalised letters.
+ * <p>
+ * A template callback draws the document for a record on a fresh HexPDF set
+ * up with the batch style. Documents are made in parallel on the given
+ * executor, which may be a fixed thread pool or, on Java 21 and later,
+ * <code>Executors.newVirtualThreadPerTaskExecutor()</code>. Instances are
+ * reused through a {@link HexPDFPool}, the immutable {@link HexPDFStyle}
+ * shares fonts and width caches between all of them, and images drawn from an
+ * {@link ImageSource} are encoded once for the whole batch through
+ * {@link SharedImages}.</p>
+ * <p>
+ * At most <code>maxInFlight</code> documents are queued, being made or
+ * waiting to be written at any time, so records are read from the source only
+ * as fast as documents are completed. A record whose template or output fails
+ * is reported to the error handler and skipped, the rest of the batch goes
+ * on. Error handler and record source are only used from the thread calling
+ * run, and need not be thread safe.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     HexPDFBatch&lt;Customer&gt; batch = new HexPDFBatch&lt;Customer&gt;(executor, style,
+ *             new BiConsumer&lt;HexPDF, Customer&gt;() {
+ *                 public void accept(HexPDF doc, Customer c) {
+ *                     doc.newPage();
+ *                     doc.drawText("Dear " + c.getName() + "\n");
+ *                 }
+ *             });
+ *     batch.run(customers.iterator(), new HexPDFBatch.Sink&lt;Customer&gt;() {
+ *         public OutputStream open(Customer c, long index) throws IOException {
+ *             return new FileOutputStream("letter-" + c.getId() + ".pdf");
+ *         }
+ *     });
+ * </code>
+ * </pre>
+ *
+ * @param <T> record type
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public class HexPDFBatch<T> {
+
+    /**
+     * Opens the output of a single document.
+     *
+     * @param <T> record type
+     */
+    public interface Sink<T> {
+
+        /**
+         * Open the stream a document is written to. The stream is closed by
+         * the batch. Called on the thread that made the document.
+         *
+         * @param record the record the document was made for
+         * @param index  position of the record, counting from 0
+         * @return stream to write the document to
+         * @throws IOException if the stream cannot be opened
+         */
+        OutputStream open(T record, long index) throws IOException;
+    }
+
+    /**
+     * Receives records that could not be made into a document.
+     *
+     * @param <T> record type
+     */
+    public interface ErrorHandler<T> {
+
+        /**
+         * Called once for each failed record, on the thread calling run.
+         *
+         * @param record the record
+         * @param index  position of the record, counting from 0
+         * @param error  what went wrong
+         */
+        void failed(T record, long index, Throwable error);
+    }
+
+    private final Executor executor;
+    private final HexPDFStyle style;
+    private final BiConsumer<HexPDF, ? super T> template;
+    private int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+    private SharedImages sharedImages = new SharedImages();
+    private ErrorHandler<? super T> errorHandler = new ErrorHandler<T>() {
+        @Override
+        public void failed(T record, long index, Throwable error) {
+            Logger.getLogger(HexPDFBatch.class.getName()).log(Level.SEVERE, "Record " + index + " failed", error);
+        }
+    };
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong pagesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile long startNanos = 0;
+
+    /**
+     * Create a batch.
+     *
+     * @param executor runs the template, one task per record
+     * @param style    style of every document
+     * @param template draws the document for a record. It gets an instance
+     *                 with no pages, and must not finish or close it.
+     */
+    public HexPDFBatch(Executor executor, HexPDFStyle style, BiConsumer<HexPDF, ? super T> template) {
+        this.executor = executor;
+        this.style = style;
+        this.template = template;
+    }
+
+    /**
+     * Set the maximum number of documents in progress. Default is twice the
+     * number of processors. With virtual threads this is also the number of
+     * documents made concurrently.
+     *
+     * @param maxInFlight maximum number of records submitted but not written
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * @return maximum number of records submitted but not written
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Set the handler for failed records. Default logs the error.
+     *
+     * @param errorHandler handler for failed records
+     */
+    public void setErrorHandler(ErrorHandler<? super T> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Set the images shared by documents of the batch, e.g. to share them
+     * with other batches as well. Default is a set of its own.
+     *
+     * @param sharedImages images shared between documents, or null to encode
+     *                     images per document
+     */
+    public void setSharedImages(SharedImages sharedImages) {
+        this.sharedImages = sharedImages;
+    }
+
+    /**
+     * @return images shared between documents of the batch
+     */
+    public SharedImages getSharedImages() {
+        return sharedImages;
+    }
+
+    /**
+     * Make one document per record, each written to its own stream. Returns
+     * when all records are done.
+     *
+     * @param records the records
+     * @param sink    opens the output of each document
+     * @throws InterruptedException if interrupted while waiting. Records
+     *                              already submitted are completed first.
+     */
+    public void run(Iterator<? extends T> records, Sink<? super T> sink) throws InterruptedException {
+        Run<T> run = new Run<T>(this, sink);
+        run.execute(records);
+    }
+
+    /**
+     * Make one document per record, each written to its own stream.
+     *
+     * @param records the records
+     * @param sink    opens the output of each document
+     * @throws InterruptedException if interrupted while waiting
+     * @see #run(java.util.Iterator, net.heksemann.hexpdf.HexPDFBatch.Sink)
+     */
+    public void run(Stream<? extends T> records, Sink<? super T> sink) throws InterruptedException {
+        run(records.iterator(), sink);
+    }
+
+    /**
+     * Make one document per record, and write all of them as one document,
+     * in record order. Failed records are left out.
+     * <p>
+     * The pages of every document are held until the merged document is
+     * written, so prefer per-record sinks for very large batches.</p>
+     *
+     * @param records the records
+     * @param out     stream to write the merged document to, closed when
+     *                done
+     * @throws IOException          if the merged document cannot be written
+     * @throws InterruptedException if interrupted while waiting. Nothing is
+     *                              written in that case.
+     */
+    public void runMerged(Iterator<? extends T> records, OutputStream out) throws IOException, InterruptedException {
+        Run<T> run = new Run<T>(this, null);
+        try {
+            run.execute(records);
+            run.merged.save(out);
+        } finally {
+            run.closeMerged();
+        }
+    }
+
+    /**
+     * Make one document per record, and write all of them as one document.
+     *
+     * @param records the records
+     * @param out     stream to write the merged document to
+     * @throws IOException          if the merged document cannot be written
+     * @throws InterruptedException if interrupted while waiting
+     * @see #runMerged(java.util.Iterator, java.io.OutputStream)
+     */
+    public void runMerged(Stream<? extends T> records, OutputStream out) throws IOException, InterruptedException {
+        runMerged(records.iterator(), out);
+    }
+
+    /**
+     * @return number of records read and submitted
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * @return number of documents made and written
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return number of records that failed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return total number of pages of completed documents
+     */
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /**
+     * @return total size of completed documents in bytes
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Returns the throughput since the first run was started.
+     *
+     * @return completed documents per second
+     */
+    public double getDocumentsPerSecond() {
+        long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return (seconds > 0) ? completed.get() / seconds : 0;
+    }
+
+    // The outcome of one record, handed from worker to the running thread
+    private static final class Result<T> {
+
+        final T record;
+        final long index;
+        byte[] pdf;
+        Throwable error;
+
+        Result(T record, long index) {
+            this.record = record;
+            this.index = index;
+        }
+    }
+
+    // State of a single call to run or runMerged
+    private static final class Run<T> {
+
+        private final HexPDFBatch<T> batch;
+        private final Sink<? super T> sink;
+        private final HexPDFPool pool;
+        private final BlockingQueue<Result<T>> done = new LinkedBlockingQueue<Result<T>>();
+        private int inFlight = 0;
+
+        // Merged output only
+        private final PDDocument merged;
+        private final List<PDDocument> parts = new ArrayList<PDDocument>();
+        private final Map<Long, Result<T>> pending = new HashMap<Long, Result<T>>();
+        private long nextIndex = 0;
+
+        Run(final HexPDFBatch<T> batch, Sink<? super T> sink) {
+            this.batch = batch;
+            this.sink = sink;
+            this.merged = (sink == null) ? new PDDocument() : null;
+            this.pool = new HexPDFPool(batch.maxInFlight, new Supplier<HexPDF>() {
+                @Override
+                public HexPDF get() {
+                    HexPDF doc = new HexPDF(batch.style);
+                    doc.setSharedImages(batch.sharedImages);
+                    return doc;
+                }
+            });
+        }
+
+        void execute(Iterator<? extends T> records) throws InterruptedException {
+            if (batch.startNanos == 0) {
+                batch.startNanos = System.nanoTime();
+            }
+            long index = 0;
+            try {
+                while (records.hasNext()) {
+                    while (inFlight >= batch.maxInFlight) {
+                        collect(done.take());
+                    }
+                    submit(records.next(), index++);
+                }
+            } finally {
+                boolean interrupted = false;
+                while (inFlight > 0) {
+                    try {
+                        collect(done.take());
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+                pool.clear();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        private void submit(final T record, final long index) {
+            batch.submitted.incrementAndGet();
+            inFlight++;
+            try {
+                batch.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        make(new Result<T>(record, index));
+                    }
+                });
+            } catch (RuntimeException ex) {
+                Result<T> result = new Result<T>(record, index);
+                result.error = ex;
+                done.add(result);
+            }
+        }
+
+        // Runs on a worker thread
+        private void make(Result<T> result) {
+            HexPDF doc = null;
+            try {
+                doc = pool.acquire();
+                batch.template.accept(doc, result.record);
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                // Not finish, which only logs a failed save
+                doc.finishOrThrow(buf);
+                byte[] pdf = buf.toByteArray();
+                if (sink != null) {
+                    OutputStream out = sink.open(result.record, result.index);
+                    try {
+                        out.write(pdf);
+                    } finally {
+                        out.close();
+                    }
+                } else {
+                    result.pdf = pdf;
+                }
+                batch.completed.incrementAndGet();
+                batch.pagesWritten.addAndGet(doc.getNumberOfPages());
+                batch.bytesWritten.addAndGet(pdf.length);
+            } catch (Exception ex) {
+                result.error = ex;
+            } catch (Error err) {
+                result.error = err;
+                throw err;
+            } finally {
+                if (doc != null) {
+                    if (result.error == null) {
+                        pool.release(doc);
+                    } else {
+                        // Never reuse an instance left in an unknown state
+                        try {
+                            doc.close();
+                        } catch (IOException ex) {
+                            Logger.getLogger(HexPDFBatch.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                }
+                done.add(result);
+            }
+        }
+
+        // Runs on the thread calling run
+        private void collect(Result<T> result) {
+            if (merged == null) {
+                inFlight--;
+                report(result);
+                return;
+            }
+            // Documents may finish in any order, append them in record order
+            pending.put(result.index, result);
+            Result<T> next;
+            while ((next = pending.remove(nextIndex)) != null) {
+                nextIndex++;
+                inFlight--;
+                if (next.error == null) {
+                    try {
+                        append(next.pdf);
+                    } catch (IOException ex) {
+                        next.error = ex;
+                        batch.completed.decrementAndGet();
+                    }
+                }
+                report(next);
+            }
+        }
+
+        private void report(Result<T> result) {
+            if (result.error != null) {
+                batch.failed.incrementAndGet();
+                batch.errorHandler.failed(result.record, result.index, result.error);
+            }
+        }
+
+        private void append(byte[] pdf) throws IOException {
+            PDDocument part = PDDocument.load(pdf);
+            parts.add(part);
+            for (PDPage page : part.getPages()) {
+                merged.importPage(page);
+            }
+        }
+
+        void closeMerged() throws IOException {
+            for (PDDocument part : parts) {
+                part.close();
+            }
+            merged.close();
+        }
+    }
+}
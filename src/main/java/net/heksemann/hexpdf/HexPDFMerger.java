@@ -0,0 +1,486 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Concatenates many documents into one, writing the pages of each document
+ * as it is added.
+ * <p>
+ * Only the document being added is held in memory. Fonts, images and other
+ * resources that are the same in several documents are written once: each
+ * resource is known by a hash of its content and of the hashes of the
+ * objects it refers to, so a font is shared also when the document it came
+ * from was loaded anew. What is kept between documents is the hash and
+ * number of each distinct resource, and the position of each object
+ * written, so memory grows with the number of distinct resources rather
+ * than with the number of documents.</p>
+ * <p>
+ * Pages are copied with their content, resources and annotations. Links
+ * between pages of the same document are kept, while bookmarks, forms and
+ * other document level parts are not. Encrypted documents cannot be
+ * added.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     HexPDFMerger merger = new HexPDFMerger(new FileOutputStream("batch.pdf"));
+ *     try {
+ *         for (Customer customer : customers) {
+ *             HexPDF doc = pool.acquire();
+ *             try {
+ *                 (draw the document for the customer)
+ *                 merger.add(doc);
+ *             } finally {
+ *                 pool.release(doc);
+ *             }
+ *         }
+ *     } finally {
+ *         merger.close();
+ *     }
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public class HexPDFMerger implements Closeable {
+
+    // Pages under each node of the page tree
+    private static final int PAGES_PER_NODE = 64;
+
+    private final CountingOutputStream out;
+    private long[] offsets = new long[256];
+    private int nextNumber = 1;
+    private float version = 1.4f;
+    private boolean closed = false;
+
+    // Page tree: the root, the nodes below it, and the node being filled
+    private final int root;
+    private int[] nodes = new int[16];
+    private int numNodes = 0;
+    private final int[] kids = new int[PAGES_PER_NODE];
+    private int numKids = 0;
+    private int numPages = 0;
+
+    // Resources written so far, by content hash
+    private final Map<String, Integer> resources = new HashMap<String, Integer>();
+
+    // Objects of the document being added: numbers and content hashes
+    private final Map<COSBase, Integer> numbers = new IdentityHashMap<COSBase, Integer>();
+    private final Map<COSBase, String> hashes = new IdentityHashMap<COSBase, String>();
+    private final MessageDigest sha256;
+
+    private final ObjectWriter copier = new ObjectWriter() {
+        @Override
+        int number(COSBase obj) {
+            // Page tree nodes are not copied, references to them are null
+            Integer number = numbers.get(obj);
+            return (number != null) ? number : 0;
+        }
+    };
+
+    // Writes objects for hashing, with the hashes of the objects referred to
+    // added after each object
+    private final ObjectWriter hasher = new ObjectWriter() {
+        @Override
+        int number(COSBase obj) {
+            return 1;
+        }
+    };
+
+    /**
+     * Start a merged document.
+     *
+     * @param out where the document is written, closed by {@link #close()}
+     * @throws IOException if writing fails
+     */
+    public HexPDFMerger(OutputStream out) throws IOException {
+        this.out = new CountingOutputStream(out);
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+        this.out.write(ObjectWriter.bytes("%PDF-1.4\n%"));
+        this.out.write(new byte[]{(byte) 0xe2, (byte) 0xe3, (byte) 0xcf, (byte) 0xd3, '\n'});
+        root = reserve();
+    }
+
+    /**
+     * Add the pages of a document. A <code>HexPDF</code> document is
+     * finished first, with footers, as if saved. The document is left open,
+     * and is not changed otherwise: reset or close it when done.
+     *
+     * @param doc the document
+     * @throws IOException if the document is encrypted, or writing fails
+     */
+    public void add(PDDocument doc) throws IOException {
+        checkOpen();
+        if (doc.isEncrypted()) {
+            throw new IOException("Encrypted documents cannot be merged");
+        }
+        if (doc instanceof HexPDF) {
+            ((HexPDF) doc).finishForCopy();
+        }
+        version = Math.max(version, doc.getVersion());
+        try {
+            // Numbered up front, so that links between the pages are kept
+            List<COSDictionary> pages = new ArrayList<COSDictionary>();
+            for (PDPage page : doc.getPages()) {
+                pages.add(page.getCOSObject());
+                numbers.put(page.getCOSObject(), reserve());
+            }
+            for (COSDictionary page : pages) {
+                copyPage(page);
+            }
+        } finally {
+            numbers.clear();
+            hashes.clear();
+        }
+    }
+
+    /**
+     * Add the pages of a saved document.
+     *
+     * @param file the document
+     * @throws IOException if the document cannot be read, is encrypted, or
+     *                     writing fails
+     */
+    public void add(File file) throws IOException {
+        PDDocument doc = PDDocument.load(file);
+        try {
+            add(doc);
+        } finally {
+            doc.close();
+        }
+    }
+
+    /**
+     * Add the pages of a saved document read from a stream. The stream is
+     * read to the end, but not closed.
+     *
+     * @param in the document
+     * @throws IOException if the document cannot be read, is encrypted, or
+     *                     writing fails
+     */
+    public void add(InputStream in) throws IOException {
+        PDDocument doc = PDDocument.load(in);
+        try {
+            add(doc);
+        } finally {
+            doc.close();
+        }
+    }
+
+    /**
+     * @return the number of pages added so far
+     */
+    public int getNumberOfPages() {
+        return numPages;
+    }
+
+    /**
+     * Write the page tree, the catalog and the cross-reference table, and
+     * close the stream. Does nothing if already closed.
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (numKids > 0) {
+                writeNode();
+            }
+            StringBuilder dict = new StringBuilder("<</Type /Pages /Kids [");
+            for (int i = 0; i < numNodes; i++) {
+                dict.append(i > 0 ? " " : "").append(nodes[i]).append(" 0 R");
+            }
+            dict.append("] /Count ").append(numPages).append(">>");
+            writeObject(root, dict.toString());
+
+            int catalog = reserve();
+            writeObject(catalog, "<</Type /Catalog /Pages " + root + " 0 R"
+                    + (version > 1.4f ? " /Version /" + version : "") + ">>");
+
+            long xref = out.count;
+            StringBuilder table = new StringBuilder("xref\n0 " + nextNumber + "\n0000000000 65535 f \n");
+            for (int i = 1; i < nextNumber; i++) {
+                String offset = Long.toString(offsets[i]);
+                for (int pad = offset.length(); pad < 10; pad++) {
+                    table.append('0');
+                }
+                table.append(offset).append(" 00000 n \n");
+            }
+            out.write(ObjectWriter.bytes(table.toString()));
+            // The ID is a digest of the document, so the same input gives the same output
+            String id = hex(out.digest());
+            out.write(ObjectWriter.bytes("trailer\n<</Size " + nextNumber + " /Root " + catalog + " 0 R /ID [<"
+                    + id + "> <" + id + ">]>>\nstartxref\n" + xref + "\n%%EOF\n"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The merger is closed");
+        }
+    }
+
+    /*
+     * Write a page with the objects it uses. Attributes inherited from the
+     * page tree of the document are copied into the page, and the parent is
+     * the node of the merged page tree.
+     */
+    private void copyPage(COSDictionary page) throws IOException {
+        ObjectWriter.pushDown(page);
+        if (numKids == 0) {
+            if (numNodes == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * numNodes);
+            }
+            nodes[numNodes++] = reserve();
+        }
+        for (Map.Entry<COSName, COSBase> entry : page.entrySet()) {
+            if (COSName.PARENT.equals(entry.getKey())) {
+                continue;
+            }
+            List<COSBase> refs = new ArrayList<COSBase>();
+            ObjectWriter.valueReferences(entry.getValue(), refs);
+            for (COSBase ref : refs) {
+                resolve(ref, COSName.RESOURCES.equals(entry.getKey()));
+            }
+        }
+
+        int number = numbers.get(page);
+        offset(number);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(ObjectWriter.bytes(number + " 0 obj\n<</Type /Page /Parent " + nodes[numNodes - 1] + " 0 R"));
+        for (Map.Entry<COSName, COSBase> entry : page.entrySet()) {
+            if (COSName.PARENT.equals(entry.getKey()) || COSName.TYPE.equals(entry.getKey())) {
+                continue;
+            }
+            entry.getKey().writePDF(body);
+            body.write(' ');
+            copier.writeValue(entry.getValue(), body);
+        }
+        body.write(ObjectWriter.bytes(">>\nendobj\n"));
+        body.writeTo(out);
+
+        kids[numKids++] = number;
+        numPages++;
+        if (numKids == PAGES_PER_NODE) {
+            writeNode();
+        }
+    }
+
+    /*
+     * Number of an object in the merged document, writing it and the objects
+     * it refers to if not yet written. Resources are looked up by content,
+     * and written once for all documents.
+     */
+    private int resolve(COSBase obj, boolean resource) throws IOException {
+        Integer number = numbers.get(obj);
+        if (number != null) {
+            return number;
+        }
+        if (isPageTree(obj)) {
+            return 0;
+        }
+        String hash = resource ? hash(obj) : null;
+        if (hash != null) {
+            number = resources.get(hash);
+            if (number != null) {
+                numbers.put(obj, number);
+                return number;
+            }
+        }
+        number = reserve();
+        numbers.put(obj, number);
+        if (hash != null) {
+            resources.put(hash, number);
+        }
+        List<COSBase> refs = new ArrayList<COSBase>();
+        ObjectWriter.references(obj, refs);
+        for (COSBase ref : refs) {
+            resolve(ref, resource);
+        }
+
+        offset(number);
+        out.write(ObjectWriter.bytes(number + " 0 obj\n"));
+        copier.writeBody(obj, out);
+        if (obj instanceof COSStream) {
+            out.write(ObjectWriter.bytes("\nstream\n"));
+            ObjectWriter.copyStream(number, (COSStream) obj, out);
+            out.write(ObjectWriter.bytes("\nendstream"));
+        }
+        out.write(ObjectWriter.bytes("\nendobj\n"));
+        return number;
+    }
+
+    /*
+     * Hash of an object, its stream data and the hashes of the objects it
+     * refers to, or null if it refers to a page or, through others, to
+     * itself. Such objects are not shared.
+     */
+    private String hash(COSBase obj) throws IOException {
+        if (hashes.containsKey(obj)) {
+            return hashes.get(obj);
+        }
+        if (isPageTree(obj)) {
+            return null;
+        }
+        // Until done, so that a cycle gives null
+        hashes.put(obj, null);
+        List<COSBase> refs = new ArrayList<COSBase>();
+        ObjectWriter.references(obj, refs);
+        String[] children = new String[refs.size()];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = hash(refs.get(i));
+            if (children[i] == null) {
+                return null;
+            }
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        hasher.writeBody(obj, body);
+        sha256.reset();
+        sha256.update((byte) ((obj instanceof COSStream) ? 'S' : 'O'));
+        sha256.update(body.toByteArray());
+        for (String child : children) {
+            sha256.update(child.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        if (obj instanceof COSStream) {
+            InputStream in = ((COSStream) obj).createRawInputStream();
+            try {
+                byte[] buf = new byte[16384];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    sha256.update(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        String hash = new String(sha256.digest(), StandardCharsets.ISO_8859_1);
+        hashes.put(obj, hash);
+        return hash;
+    }
+
+    private static boolean isPageTree(COSBase obj) {
+        if (!(obj instanceof COSDictionary)) {
+            return false;
+        }
+        COSBase type = ((COSDictionary) obj).getDictionaryObject(COSName.TYPE);
+        return COSName.PAGE.equals(type) || COSName.PAGES.equals(type);
+    }
+
+    private void writeNode() throws IOException {
+        StringBuilder dict = new StringBuilder("<</Type /Pages /Parent " + root + " 0 R /Kids [");
+        for (int i = 0; i < numKids; i++) {
+            dict.append(i > 0 ? " " : "").append(kids[i]).append(" 0 R");
+        }
+        dict.append("] /Count ").append(numKids).append(">>");
+        writeObject(nodes[numNodes - 1], dict.toString());
+        numKids = 0;
+    }
+
+    private void writeObject(int number, String body) throws IOException {
+        offset(number);
+        out.write(ObjectWriter.bytes(number + " 0 obj\n" + body + "\nendobj\n"));
+    }
+
+    private int reserve() {
+        if (nextNumber == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        }
+        return nextNumber++;
+    }
+
+    private void offset(int number) {
+        offsets[number] = out.count;
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder s = new StringBuilder(2 * data.length);
+        for (byte b : data) {
+            s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return s.toString();
+    }
+
+    // Counts the bytes written, and digests them for the document ID
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+        private final MessageDigest md5;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                // Every Java platform is required to support MD5
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            md5.update((byte) b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            md5.update(b, off, len);
+            count += len;
+        }
+
+        byte[] digest() {
+            return md5.digest();
+        }
+    }
+}
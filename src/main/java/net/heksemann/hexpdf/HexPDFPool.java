@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of reusable HexPDF instances for services producing many documents.
+ * <p>
+ * Instances returned to the pool are cleared with {@link HexPDF#reset()} and
+ * handed out again, keeping their configuration and the fonts and images
+ * already set up. The pool is safe for use from several threads, an instance
+ * must only be used by one thread at a time.</p>
+ * <p>
+ * Instances that have saved a document with subset fonts cannot be reset,
+ * and are closed when returned. Embed fonts in full for them to be reused.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     HexPDFPool pool = new HexPDFPool(16);
+ *
+ *     HexPDF doc = pool.acquire();
+ *     try {
+ *         doc.newPage();
+ *         doc.drawText("Hello");
+ *         doc.finish(response.getOutputStream());
+ *     } finally {
+ *         pool.release(doc);
+ *     }
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public class HexPDFPool {
+
+    private final BlockingQueue<HexPDF> idle;
+    private final Supplier<HexPDF> factory;
+
+    /**
+     * Create a pool of default configured instances.
+     *
+     * @param maxIdle maximum number of idle instances kept
+     * @throws IllegalStateException if reset instances would keep the memory
+     * of earlier documents with this PDFBox version
+     */
+    public HexPDFPool(int maxIdle) {
+        this(maxIdle, new Supplier<HexPDF>() {
+            @Override
+            public HexPDF get() {
+                return new HexPDF();
+            }
+        });
+    }
+
+    /**
+     * Create a pool of instances made by the given factory. Use this to set up
+     * page size, margins, fonts and footer once per instance.
+     *
+     * @param maxIdle maximum number of idle instances kept
+     * @param factory creates new instances when the pool is empty
+     * @throws IllegalStateException if reset instances would keep the memory
+     * of earlier documents with this PDFBox version
+     */
+    public HexPDFPool(int maxIdle, Supplier<HexPDF> factory) {
+        HexPDF.checkReleasesStreams();
+        this.idle = new ArrayBlockingQueue<HexPDF>(maxIdle);
+        this.factory = factory;
+    }
+
+    /**
+     * Get an instance from the pool, or a new one if the pool is empty.
+     *
+     * @return a document with no pages
+     */
+    public HexPDF acquire() {
+        HexPDF doc = idle.poll();
+        return (doc != null) ? doc : factory.get();
+    }
+
+    /**
+     * Return an instance to the pool. The instance is reset, and must not be
+     * used by the caller afterwards. Closed instances, e.g. after
+     * {@link HexPDF#finish(java.lang.String)}, instances that cannot be reset
+     * and instances beyond the pool size are dropped.
+     *
+     * @param doc the instance to return
+     */
+    public void release(HexPDF doc) {
+        if (doc == null || doc.getDocument().isClosed()) {
+            return;
+        }
+        if (!doc.canReset()) {
+            Logger.getLogger(HexPDFPool.class.getName()).log(Level.WARNING,
+                    "Instance with subset fonts cannot be reused, embed the fonts in full");
+            closeQuietly(doc);
+            return;
+        }
+        doc.reset();
+        if (!idle.offer(doc)) {
+            closeQuietly(doc);
+        }
+    }
+
+    /**
+     * Returns the number of idle instances in the pool.
+     *
+     * @return number of instances ready for reuse
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Close all idle instances. Instances in use are not affected.
+     */
+    public void clear() {
+        HexPDF doc;
+        while ((doc = idle.poll()) != null) {
+            closeQuietly(doc);
+        }
+    }
+
+    private static void closeQuietly(HexPDF doc) {
+        try {
+            doc.close();
+        } catch (IOException ex) {
+            Logger.getLogger(HexPDFPool.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,991 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Records calls for a document into a compact binary log, to be rendered
+ * later by {@link HexPDFReplayer}.
+ * <p>
+ * The recorder has the drawing and style methods of {@link HexPDF}, and
+ * recording a call only appends a few bytes to the log. The log can be
+ * rendered on another thread, in another process, or again after a failure,
+ * and gives the same document as making the calls on a HexPDF directly.</p>
+ * <p>
+ * Since nothing is laid out while recording, calls returning layout results,
+ * such as the height of drawn text or the cursor position, are not available.
+ * Fonts must be one of the standard 14 fonts of <code>PDType1Font</code>.
+ * Images are stored in the log, except images read from a file or URL, which
+ * are read when the log is rendered. Each image is stored once however often
+ * it is drawn. The date and user shown in footers are those of the rendering
+ * process, unless set with {@link #setClock(java.time.Clock)} and
+ * {@link #setUser(java.lang.String)}.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     HexPDFRecorder rec = new HexPDFRecorder();
+ *     rec.newPage();
+ *     rec.title1Style();
+ *     rec.drawText("Invoice\n", HexPDF.CENTER);
+ *     byte[] log = rec.toByteArray();
+ *
+ *     // Later, elsewhere
+ *     byte[] pdf = new HexPDFReplayer(executor).render(log);
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see HexPDFReplayer
+ */
+public class HexPDFRecorder {
+
+    // Log header and format version
+    static final byte[] MAGIC = {'H', 'X', 'P', 'L'};
+    static final int VERSION = 3;
+
+    // Operations
+    static final int END = 0;
+    static final int NEW_PAGE = 1;
+    static final int SET_CURSOR = 2;
+    static final int DRAW_TEXT = 3;
+    static final int DRAW_IMAGE = 4;
+    static final int DEFINE_BUFFERED_IMAGE = 5;
+    static final int DEFINE_IMAGE_PATH = 6;
+    static final int DEFINE_IMAGE_URL = 7;
+    static final int DEFINE_IMAGE_BYTES = 8;
+    static final int DRAW_TABLE = 9;
+    static final int SET_FONT = 10;
+    static final int SET_FONT_SIZE = 11;
+    static final int SET_FIXED_PITCH = 12;
+    static final int SET_TOP_MARGIN = 13;
+    static final int SET_BOTTOM_MARGIN = 14;
+    static final int SET_LEFT_MARGIN = 15;
+    static final int SET_RIGHT_MARGIN = 16;
+    static final int SET_NORMAL_FONT_SIZE = 17;
+    static final int SET_TITLE1_FONT_SIZE = 18;
+    static final int SET_TITLE2_FONT_SIZE = 19;
+    static final int SET_TABLE_CELL_MARGIN = 20;
+    static final int SET_TEXT_COLOR = 21;
+    static final int SET_TITLE_COLOR = 22;
+    static final int SET_NORMAL_COLOR = 23;
+    static final int TITLE1_STYLE = 24;
+    static final int TITLE2_STYLE = 25;
+    static final int NORMAL_STYLE = 26;
+    static final int SET_ORIENTATION = 27;
+    static final int SET_PAGE_SIZE = 28;
+    static final int SET_FOOTER = 29;
+    static final int SET_STYLE = 30;
+    static final int SET_DETERMINISTIC = 31;
+    static final int SET_CLOCK = 32;
+    static final int SET_USER = 33;
+    static final int SET_DOCUMENT_ID = 34;
+    static final int DEFINE_RASTER_IMAGE = 35;
+    static final int DRAW_GRAPHIC = 36;
+    static final int SET_COMPACT_OUTPUT = 37;
+    static final int SET_COMPRESSION_LEVEL = 38;
+    static final int SET_LINEARIZED = 39;
+
+    // Table cell kinds
+    static final int CELL_EMPTY = 0;
+    static final int CELL_TEXT = 1;
+    static final int CELL_IMAGE = 2;
+    static final int CELL_GRAPHIC = 3;
+
+    // Flags written after END
+    static final int FLAG_FOOTER_ENVIRONMENT = 1;
+
+    /**
+     * The fonts that can be recorded, by their number in the log.
+     */
+    static final PDType1Font[] STANDARD_FONTS = {
+        PDType1Font.TIMES_ROMAN, PDType1Font.TIMES_BOLD, PDType1Font.TIMES_ITALIC, PDType1Font.TIMES_BOLD_ITALIC,
+        PDType1Font.HELVETICA, PDType1Font.HELVETICA_BOLD, PDType1Font.HELVETICA_OBLIQUE,
+        PDType1Font.HELVETICA_BOLD_OBLIQUE, PDType1Font.COURIER, PDType1Font.COURIER_BOLD,
+        PDType1Font.COURIER_OBLIQUE, PDType1Font.COURIER_BOLD_OBLIQUE, PDType1Font.SYMBOL,
+        PDType1Font.ZAPF_DINGBATS
+    };
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final Map<Object, Integer> images = new IdentityHashMap<Object, Integer>();
+    private final Map<Object, Integer> imageKeys = new HashMap<Object, Integer>();
+
+    // Whether footers would show the date or user of the rendering process
+    private boolean footer = false;
+    private boolean clock = false;
+    private boolean user = false;
+    private boolean deterministic = false;
+    private boolean ended = false;
+
+    /**
+     * Start an empty log, rendered with the settings of a new HexPDF.
+     */
+    public HexPDFRecorder() {
+        try {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+        } catch (IOException ex) {
+            // Never thrown by a ByteArrayOutputStream
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Start a log rendered with the given style.
+     *
+     * @param style the style
+     * @see HexPDF#HexPDF(HexPDFStyle)
+     */
+    public HexPDFRecorder(HexPDFStyle style) {
+        this();
+        setStyle(style);
+    }
+
+    /**
+     * Returns the log. Nothing more can be recorded afterwards.
+     *
+     * @return the log
+     */
+    public byte[] toByteArray() {
+        end();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write the log to a stream. Nothing more can be recorded afterwards.
+     *
+     * @param os stream to write to, not closed
+     * @throws IOException if writing fails
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        end();
+        bytes.writeTo(os);
+    }
+
+    /**
+     * @return size of the log so far, in bytes
+     */
+    public int size() {
+        return bytes.size();
+    }
+
+    private void end() {
+        if (!ended) {
+            op(END);
+            int flags = (footer && !deterministic && !(clock && user)) ? FLAG_FOOTER_ENVIRONMENT : 0;
+            writeByte(flags);
+            ended = true;
+        }
+    }
+
+    /**
+     * @see HexPDF#newPage()
+     */
+    public void newPage() {
+        op(NEW_PAGE);
+    }
+
+    /**
+     * @param x cursor x-position
+     * @param y cursor y-position
+     * @see HexPDF#setCursor(float, float)
+     */
+    public void setCursor(float x, float y) {
+        op(SET_CURSOR);
+        writeFloat(x);
+        writeFloat(y);
+    }
+
+    /**
+     * @param txt the text
+     * @see HexPDF#drawText(java.lang.String)
+     */
+    public void drawText(String txt) {
+        drawText(txt, HexPDF.LEFT);
+    }
+
+    /**
+     * @param txt   the text
+     * @param flags text alignment
+     * @see HexPDF#drawText(java.lang.String, int)
+     */
+    public void drawText(String txt, int flags) {
+        op(DRAW_TEXT);
+        writeString(txt);
+        writeInt(flags);
+    }
+
+    /**
+     * @param txt   the text
+     * @param x     starting x-position
+     * @param y     starting y-position
+     * @param flags text alignment
+     * @see HexPDF#drawText(java.lang.String, float, float, int)
+     */
+    public void drawText(String txt, float x, float y, int flags) {
+        setCursor(x, y);
+        drawText(txt, flags);
+    }
+
+    /**
+     * Record a text read from a character stream. The whole text is read and
+     * stored in the log. The reader is not closed.
+     *
+     * @param reader the text
+     * @param flags  text alignment
+     * @throws IOException if reading fails
+     * @see HexPDF#drawText(java.io.Reader, int)
+     */
+    public void drawText(Reader reader, int flags) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[8192];
+        int n;
+        while ((n = reader.read(buf)) > 0) {
+            sb.append(buf, 0, n);
+        }
+        drawText(sb.toString(), flags);
+    }
+
+    /**
+     * Record the contents of a text file. The whole text is read and stored
+     * in the log.
+     *
+     * @param path    the text file
+     * @param charset character encoding of the file
+     * @param flags   text alignment
+     * @throws IOException if reading fails
+     * @see HexPDF#drawText(java.nio.file.Path, java.nio.charset.Charset, int)
+     */
+    public void drawText(Path path, Charset charset, int flags) throws IOException {
+        drawText(new String(Files.readAllBytes(path), charset), flags);
+    }
+
+    /**
+     * Record an image. The image is stored in the log as PNG.
+     *
+     * @param image the image
+     * @param flags image placement
+     * @see HexPDF#drawImage(java.awt.image.BufferedImage, int)
+     */
+    public void drawImage(BufferedImage image, int flags) {
+        int id = defineImage(image);
+        op(DRAW_IMAGE);
+        writeInt(id);
+        writeInt(flags);
+    }
+
+    /**
+     * @param image the image
+     * @param x     cursor x-position
+     * @param y     cursor y-position
+     * @param flags image placement
+     * @see HexPDF#drawImage(java.awt.image.BufferedImage, float, float, int)
+     */
+    public void drawImage(BufferedImage image, float x, float y, int flags) {
+        setCursor(x, y);
+        drawImage(image, flags);
+    }
+
+    /**
+     * Record an image. Images from files and URLs are stored as a reference,
+     * other images are read and stored in the log.
+     *
+     * @param image the image
+     * @param flags image placement
+     * @see HexPDF#drawImage(net.heksemann.hexpdf.ImageSource, int)
+     */
+    public void drawImage(ImageSource image, int flags) {
+        int id = defineImage(image);
+        op(DRAW_IMAGE);
+        writeInt(id);
+        writeInt(flags);
+    }
+
+    /**
+     * @param image the image
+     * @param x     cursor x-position
+     * @param y     cursor y-position
+     * @param flags image placement
+     * @see HexPDF#drawImage(net.heksemann.hexpdf.ImageSource, float, float, int)
+     */
+    public void drawImage(ImageSource image, float x, float y, int flags) {
+        setCursor(x, y);
+        drawImage(image, flags);
+    }
+
+    /**
+     * Record an image given without AWT. The pixels or JPEG data are stored
+     * in the log.
+     *
+     * @param image the image
+     * @param flags image placement
+     * @see HexPDF#drawImage(net.heksemann.hexpdf.RasterImage, int)
+     */
+    public void drawImage(RasterImage image, int flags) {
+        int id = defineImage(image);
+        op(DRAW_IMAGE);
+        writeInt(id);
+        writeInt(flags);
+    }
+
+    /**
+     * @param image the image
+     * @param x     cursor x-position
+     * @param y     cursor y-position
+     * @param flags image placement
+     * @see HexPDF#drawImage(net.heksemann.hexpdf.RasterImage, float, float, int)
+     */
+    public void drawImage(RasterImage image, float x, float y, int flags) {
+        setCursor(x, y);
+        drawImage(image, flags);
+    }
+
+    /**
+     * Record a vector graphic, as it is now. Changes made to the graphic
+     * later are not recorded.
+     *
+     * @param graphic the graphic
+     * @param flags   graphic placement
+     * @see HexPDF#drawGraphic(net.heksemann.hexpdf.VectorGraphic, int)
+     */
+    public void drawGraphic(VectorGraphic graphic, int flags) {
+        op(DRAW_GRAPHIC);
+        writeGraphic(graphic);
+        writeInt(flags);
+    }
+
+    /**
+     * @param graphic the graphic
+     * @param x       cursor x-position
+     * @param y       cursor y-position
+     * @param flags   graphic placement
+     * @see HexPDF#drawGraphic(net.heksemann.hexpdf.VectorGraphic, float, float, int)
+     */
+    public void drawGraphic(VectorGraphic graphic, float x, float y, int flags) {
+        setCursor(x, y);
+        drawGraphic(graphic, flags);
+    }
+
+    /**
+     * Record a table. Cells may be String, BufferedImage, RasterImage,
+     * ImageSource, VectorGraphic or null, other cells are drawn empty.
+     *
+     * @param table         table data
+     * @param column_width  column widths
+     * @param column_flag   column alignment
+     * @param table_align   table alignment
+     * @see HexPDF#drawTable(java.lang.Object[][], float[], int[], int)
+     */
+    public void drawTable(Object[][] table, float[] column_width, int[] column_flag, int table_align) {
+        recordTable(TableRows.of(table), column_width, column_flag, table_align);
+    }
+
+    /**
+     * Record a table given by columns. The cell texts are formatted and
+     * stored in the log.
+     *
+     * @param columns       the columns
+     * @param column_width  column widths
+     * @param column_flag   column alignment
+     * @param table_align   table alignment
+     * @see HexPDF#drawTable(net.heksemann.hexpdf.TableColumn[], float[], int[], int)
+     */
+    public void drawTable(TableColumn[] columns, float[] column_width, int[] column_flag, int table_align) {
+        recordTable(TableRows.of(columns), column_width, column_flag, table_align);
+    }
+
+    private void recordTable(TableRows rows, float[] column_width, int[] column_flag, int table_align) {
+        // Images first, so that they are defined before the table
+        int[][] ids = new int[rows.size()][];
+        for (int row = 0; row < rows.size(); row++) {
+            if (rows.isEmpty(row)) {
+                continue;
+            }
+            ids[row] = new int[column_width.length];
+            for (int col = 0; col < column_width.length; col++) {
+                Object cell = rows.cell(row, col);
+                if (cell == null || cell instanceof String) {
+                    continue;
+                } else if (cell instanceof RasterImage) {
+                    ids[row][col] = defineImage((RasterImage) cell);
+                } else if (cell instanceof ImageSource) {
+                    ids[row][col] = defineImage((ImageSource) cell);
+                } else if (cell instanceof BufferedImage) {
+                    ids[row][col] = defineImage((BufferedImage) cell);
+                }
+            }
+        }
+        op(DRAW_TABLE);
+        writeInt(column_width.length);
+        for (int col = 0; col < column_width.length; col++) {
+            writeFloat(column_width[col]);
+            writeInt(column_flag[col]);
+        }
+        writeInt(table_align);
+        writeInt(rows.size());
+        for (int row = 0; row < rows.size(); row++) {
+            writeBoolean(rows.isEmpty(row));
+            if (rows.isEmpty(row)) {
+                continue;
+            }
+            for (int col = 0; col < column_width.length; col++) {
+                Object cell = rows.cell(row, col);
+                if (cell instanceof String) {
+                    writeByte(CELL_TEXT);
+                    writeString((String) cell);
+                } else if (cell instanceof VectorGraphic) {
+                    writeByte(CELL_GRAPHIC);
+                    writeGraphic((VectorGraphic) cell);
+                } else if (cell instanceof RasterImage || cell instanceof ImageSource
+                        || (cell != null && cell instanceof BufferedImage)) {
+                    writeByte(CELL_IMAGE);
+                    writeInt(ids[row][col]);
+                } else {
+                    writeByte(CELL_EMPTY);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param font one of the standard 14 fonts
+     * @throws IllegalArgumentException if the font is not a standard font
+     * @see HexPDF#setFont(org.apache.pdfbox.pdmodel.font.PDFont)
+     */
+    public void setFont(PDFont font) {
+        int index = fontIndex(font);
+        op(SET_FONT);
+        writeByte(index);
+    }
+
+    /**
+     * @param fs font size in points
+     * @see HexPDF#setFontSize(float)
+     */
+    public void setFontSize(float fs) {
+        op(SET_FONT_SIZE);
+        writeFloat(fs);
+    }
+
+    /**
+     * @param fixedPitch true to lay out the font as fixed-pitch
+     * @see HexPDF#setFixedPitch(boolean)
+     */
+    public void setFixedPitch(boolean fixedPitch) {
+        op(SET_FIXED_PITCH);
+        writeBoolean(fixedPitch);
+    }
+
+    /**
+     * @param topMargin top margin in points
+     * @see HexPDF#setTopMargin(float)
+     */
+    public void setTopMargin(float topMargin) {
+        op(SET_TOP_MARGIN);
+        writeFloat(topMargin);
+    }
+
+    /**
+     * @param bottomMargin bottom margin in points
+     * @see HexPDF#setBottomMargin(float)
+     */
+    public void setBottomMargin(float bottomMargin) {
+        op(SET_BOTTOM_MARGIN);
+        writeFloat(bottomMargin);
+    }
+
+    /**
+     * @param leftMargin left margin in points
+     * @see HexPDF#setLeftMargin(float)
+     */
+    public void setLeftMargin(float leftMargin) {
+        op(SET_LEFT_MARGIN);
+        writeFloat(leftMargin);
+    }
+
+    /**
+     * @param rightMargin right margin in points
+     * @see HexPDF#setRightMargin(float)
+     */
+    public void setRightMargin(float rightMargin) {
+        op(SET_RIGHT_MARGIN);
+        writeFloat(rightMargin);
+    }
+
+    /**
+     * @param fontSize font size in points
+     * @see HexPDF#setNormalFontSize(float)
+     */
+    public void setNormalFontSize(float fontSize) {
+        op(SET_NORMAL_FONT_SIZE);
+        writeFloat(fontSize);
+    }
+
+    /**
+     * @param fontSize font size in points
+     * @see HexPDF#setTitle1FontSize(float)
+     */
+    public void setTitle1FontSize(float fontSize) {
+        op(SET_TITLE1_FONT_SIZE);
+        writeFloat(fontSize);
+    }
+
+    /**
+     * @param fontSize font size in points
+     * @see HexPDF#setTitle2FontSize(float)
+     */
+    public void setTitle2FontSize(float fontSize) {
+        op(SET_TITLE2_FONT_SIZE);
+        writeFloat(fontSize);
+    }
+
+    /**
+     * @param cellMargin table margin in points
+     * @see HexPDF#settableCellMargin(float)
+     */
+    public void settableCellMargin(float cellMargin) {
+        op(SET_TABLE_CELL_MARGIN);
+        writeFloat(cellMargin);
+    }
+
+    /**
+     * @param color the new text color
+     * @see HexPDF#setTextColor(java.awt.Color)
+     */
+    public void setTextColor(Color color) {
+        setTextColor(HexColor.of(color));
+    }
+
+    /**
+     * @param color the new text color
+     * @see HexPDF#setTextColor(net.heksemann.hexpdf.HexColor)
+     */
+    public void setTextColor(HexColor color) {
+        op(SET_TEXT_COLOR);
+        writeColor(color);
+    }
+
+    /**
+     * @param titleColor color of title styles
+     * @see HexPDF#setTitleColor(java.awt.Color)
+     */
+    public void setTitleColor(Color titleColor) {
+        setTitleColor(HexColor.of(titleColor));
+    }
+
+    /**
+     * @param titleColor color of title styles
+     * @see HexPDF#setTitleColor(net.heksemann.hexpdf.HexColor)
+     */
+    public void setTitleColor(HexColor titleColor) {
+        op(SET_TITLE_COLOR);
+        writeColor(titleColor);
+    }
+
+    /**
+     * @param color color of normal style
+     * @see HexPDF#setNormalColor(java.awt.Color)
+     */
+    public void setNormalColor(Color color) {
+        setNormalColor(HexColor.of(color));
+    }
+
+    /**
+     * @param color color of normal style
+     * @see HexPDF#setNormalColor(net.heksemann.hexpdf.HexColor)
+     */
+    public void setNormalColor(HexColor color) {
+        op(SET_NORMAL_COLOR);
+        writeColor(color);
+    }
+
+    /**
+     * @see HexPDF#title1Style()
+     */
+    public void title1Style() {
+        op(TITLE1_STYLE);
+    }
+
+    /**
+     * @see HexPDF#title2Style()
+     */
+    public void title2Style() {
+        op(TITLE2_STYLE);
+    }
+
+    /**
+     * @see HexPDF#normalStyle()
+     */
+    public void normalStyle() {
+        op(NORMAL_STYLE);
+    }
+
+    /**
+     * @param orientation HexPDF.LANDSCAPE | HexPDF.PORTRAIT
+     * @see HexPDF#setOrientation(int)
+     */
+    public void setOrientation(int orientation) {
+        op(SET_ORIENTATION);
+        writeInt(orientation);
+    }
+
+    /**
+     * @param pageSize page dimension
+     * @see HexPDF#setPageSize(org.apache.pdfbox.pdmodel.common.PDRectangle)
+     */
+    public void setPageSize(PDRectangle pageSize) {
+        op(SET_PAGE_SIZE);
+        writeRectangle(pageSize);
+    }
+
+    /**
+     * Record the footer. The footer is stored as it is now, later changes to
+     * it are not recorded.
+     *
+     * @param footer the footer, or null for none
+     * @throws IllegalArgumentException if the footer font is not a standard
+     *                                  font
+     * @see HexPDF#setFooter(net.heksemann.hexpdf.Footer)
+     */
+    public void setFooter(Footer footer) {
+        int index = (footer != null) ? fontIndex(footer.getFont()) : -1;
+        op(SET_FOOTER);
+        writeFooter(footer, index);
+    }
+
+    /**
+     * @param style page and text settings
+     * @throws IllegalArgumentException if a font of the style is not a
+     *                                  standard font
+     * @see HexPDF#setStyle(net.heksemann.hexpdf.HexPDFStyle)
+     */
+    public void setStyle(HexPDFStyle style) {
+        int index = fontIndex(style.getFont());
+        Footer f = style.getFooter();
+        int footerIndex = (f != null) ? fontIndex(f.getFont()) : -1;
+        op(SET_STYLE);
+        writeByte(index);
+        writeFloat(style.getNormalFontSize());
+        writeFloat(style.getTitle1FontSize());
+        writeFloat(style.getTitle2FontSize());
+        writeColor(style.getNormalHexColor());
+        writeColor(style.getTitleHexColor());
+        writeFloat(style.getTopMargin());
+        writeFloat(style.getBottomMargin());
+        writeFloat(style.getLeftMargin());
+        writeFloat(style.getRightMargin());
+        writeInt(style.getOrientation());
+        writeRectangle(style.getPageSize());
+        writeFloat(style.getTableCellMargin());
+        writeFooter(f, footerIndex);
+    }
+
+    /**
+     * @param deterministic true for repeatable output
+     * @see HexPDF#setDeterministic(boolean)
+     */
+    public void setDeterministic(boolean deterministic) {
+        this.deterministic = deterministic;
+        op(SET_DETERMINISTIC);
+        writeBoolean(deterministic);
+    }
+
+    /**
+     * @param compactOutput true for PDF 1.5 object streams
+     * @see HexPDF#setCompactOutput(boolean)
+     */
+    public void setCompactOutput(boolean compactOutput) {
+        op(SET_COMPACT_OUTPUT);
+        writeBoolean(compactOutput);
+    }
+
+    /**
+     * @param linearized true to save linearized
+     * @see HexPDF#setLinearized(boolean)
+     */
+    public void setLinearized(boolean linearized) {
+        op(SET_LINEARIZED);
+        writeBoolean(linearized);
+    }
+
+    /**
+     * @param level -1 for the default, or 0 to 9
+     * @throws IllegalArgumentException if the level is out of range
+     * @see HexPDF#setCompressionLevel(int)
+     */
+    public void setCompressionLevel(int level) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be -1 to 9, but is " + level);
+        }
+        op(SET_COMPRESSION_LEVEL);
+        writeInt(level);
+    }
+
+    /**
+     * Record the current time of a clock, to be used as the date shown in
+     * footers when the log is rendered.
+     *
+     * @param clock the clock, or null for the clock of the rendering process
+     * @see HexPDF#setClock(java.time.Clock)
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock != null;
+        op(SET_CLOCK);
+        writeBoolean(clock != null);
+        if (clock != null) {
+            writeLong(clock.millis());
+            writeString(clock.getZone().getId());
+        }
+    }
+
+    /**
+     * @param user user name, or null for the user of the rendering process
+     * @see HexPDF#setUser(java.lang.String)
+     */
+    public void setUser(String user) {
+        this.user = user != null;
+        op(SET_USER);
+        writeString(user);
+    }
+
+    /**
+     * @param documentId the ID, or null for the default
+     * @see HexPDF#setDocumentId(byte[])
+     */
+    public void setDocumentId(byte[] documentId) {
+        op(SET_DOCUMENT_ID);
+        writeBytes(documentId);
+    }
+
+    static int fontIndex(PDFont font) {
+        for (int i = 0; i < STANDARD_FONTS.length; i++) {
+            if (STANDARD_FONTS[i] == font) {
+                return i;
+            }
+        }
+        if (font != null) {
+            for (int i = 0; i < STANDARD_FONTS.length; i++) {
+                if (STANDARD_FONTS[i].getName().equals(font.getName())) {
+                    return i;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Only the standard 14 fonts can be recorded: " + font);
+    }
+
+    // Store an image once, returning its number in the log
+    private int defineImage(BufferedImage image) {
+        Integer id = images.get(image);
+        if (id != null) {
+            return id;
+        }
+        id = images.size() + imageKeys.size();
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", png);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        op(DEFINE_BUFFERED_IMAGE);
+        writeInt(id);
+        writeBytes(png.toByteArray());
+        images.put(image, id);
+        return id;
+    }
+
+    private int defineImage(RasterImage image) {
+        Integer id = images.get(image);
+        if (id != null) {
+            return id;
+        }
+        id = images.size() + imageKeys.size();
+        op(DEFINE_RASTER_IMAGE);
+        writeInt(id);
+        try {
+            image.writeTo(out);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        images.put(image, id);
+        return id;
+    }
+
+    private int defineImage(ImageSource source) {
+        Integer id = imageKeys.get(source);
+        if (id != null) {
+            return id;
+        }
+        id = images.size() + imageKeys.size();
+        Object key = source.getKey();
+        if (key instanceof Path) {
+            op(DEFINE_IMAGE_PATH);
+            writeInt(id);
+            writeString(key.toString());
+        } else if (key instanceof String) {
+            op(DEFINE_IMAGE_URL);
+            writeInt(id);
+            writeString((String) key);
+        } else {
+            byte[] data;
+            try {
+                InputStream in = source.open();
+                try {
+                    data = IOUtils.toByteArray(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            op(DEFINE_IMAGE_BYTES);
+            writeInt(id);
+            writeBytes(data);
+        }
+        writeInt(source.getDeclaredWidth());
+        writeInt(source.getDeclaredHeight());
+        imageKeys.put(source, id);
+        return id;
+    }
+
+    private void writeFooter(Footer f, int fontIndex) {
+        writeBoolean(f != null);
+        if (f != null) {
+            footer = true;
+            writeColor(f.getTextHexColor());
+            writeString(f.getLeftText());
+            writeString(f.getCenterText());
+            writeString(f.getRightText());
+            writeBoolean(f.isOMIT_FIRSTPAGE());
+            writeBoolean(f.isCOUNT_FIRSTPAGE());
+            writeBoolean(f.isGLOBAL_PAGENUM());
+            writeBoolean(f.isGLOBAL_NUMPAGES());
+            writeByte(fontIndex);
+            writeFloat(f.getFontsize());
+        }
+    }
+
+    private void writeGraphic(VectorGraphic graphic) {
+        try {
+            graphic.writeTo(out);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void writeColor(HexColor color) {
+        writeBoolean(color != null);
+        if (color != null) {
+            writeFloat(color.getRed());
+            writeFloat(color.getGreen());
+            writeFloat(color.getBlue());
+        }
+    }
+
+    private void writeRectangle(PDRectangle rect) {
+        writeFloat(rect.getLowerLeftX());
+        writeFloat(rect.getLowerLeftY());
+        writeFloat(rect.getWidth());
+        writeFloat(rect.getHeight());
+    }
+
+    private void op(int op) {
+        if (ended) {
+            throw new IllegalStateException("Log is already finished");
+        }
+        writeByte(op);
+    }
+
+    /*
+     * Writing to a ByteArrayOutputStream never fails, the helpers below only
+     * keep IOException out of the recording methods.
+     */
+    private void writeByte(int v) {
+        try {
+            out.writeByte(v);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void writeBoolean(boolean v) {
+        writeByte(v ? 1 : 0);
+    }
+
+    private void writeInt(int v) {
+        try {
+            out.writeInt(v);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void writeLong(long v) {
+        try {
+            out.writeLong(v);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void writeFloat(float v) {
+        try {
+            out.writeFloat(v);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void writeBytes(byte[] v) {
+        if (v == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(v.length);
+        try {
+            out.write(v);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void writeString(String v) {
+        writeBytes((v != null) ? v.getBytes(StandardCharsets.UTF_8) : null);
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static net.heksemann.hexpdf.HexPDFRecorder.*;
+
+/**
+ * Renders logs made by {@link HexPDFRecorder} into documents.
+ * <p>
+ * Logs can be rendered on the calling thread, or handed to an executor so
+ * that the thread recording the log does not wait for the document. A failed
+ * render can be tried again a given number of times, since the log is not
+ * changed by rendering. With a {@link RenderCache}, a log that has been
+ * rendered before is not rendered again; the cache key is a hash of the log,
+ * so the cached bytes are returned without laying out anything.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     HexPDFReplayer replayer = new HexPDFReplayer(workers);
+ *     replayer.setRenderCache(new MemoryRenderCache(64 &lt;&lt; 20));
+ *     replayer.renderAsync(log).thenAccept(pdf -&gt; store(pdf));
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see HexPDFRecorder
+ */
+public class HexPDFReplayer {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Executor executor;
+    private RenderCache renderCache = null;
+    private int maxAttempts = 1;
+
+    /**
+     * Create a replayer.
+     *
+     * @param executor runs {@link #renderAsync(byte[])}
+     */
+    public HexPDFReplayer(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Use a render cache for finished documents, keyed by
+     * {@link #key(byte[])}.
+     *
+     * @param renderCache the cache, or null for none
+     */
+    public void setRenderCache(RenderCache renderCache) {
+        this.renderCache = renderCache;
+    }
+
+    /**
+     * @return the render cache, or null if none is set
+     */
+    public RenderCache getRenderCache() {
+        return renderCache;
+    }
+
+    /**
+     * Set how many times a log is rendered before giving up. Default is 1,
+     * i.e. no retries.
+     *
+     * @param maxAttempts number of attempts
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * @return number of attempts to render a log
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Render a log on the calling thread.
+     *
+     * @param log the log
+     * @return the document
+     * @throws IOException if the log is not valid, or the last attempt to
+     *                     render it failed
+     */
+    public byte[] render(byte[] log) throws IOException {
+        String key = null;
+        if (renderCache != null) {
+            key = key(log);
+            byte[] pdf = renderCache.get(key);
+            if (pdf != null) {
+                return pdf;
+            }
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                byte[] pdf = renderOnce(log);
+                if (key != null) {
+                    renderCache.put(key, pdf);
+                }
+                return pdf;
+            } catch (IOException | RuntimeException ex) {
+                if (attempt >= maxAttempts) {
+                    throw (ex instanceof IOException) ? (IOException) ex : new IOException(ex);
+                }
+                Logger.getLogger(HexPDFReplayer.class.getName()).log(Level.WARNING,
+                        "Render attempt " + attempt + " failed, retrying", ex);
+            }
+        }
+    }
+
+    /**
+     * Render a log on the executor.
+     *
+     * @param log the log, must not be changed afterwards
+     * @return the document when done. Fails with an UncheckedIOException
+     * if the log could not be rendered.
+     */
+    public CompletableFuture<byte[]> renderAsync(final byte[] log) {
+        return CompletableFuture.supplyAsync(new Supplier<byte[]>() {
+            @Override
+            public byte[] get() {
+                try {
+                    return render(log);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        }, executor);
+    }
+
+    private static byte[] renderOnce(byte[] log) throws IOException {
+        HexPDF doc = new HexPDF();
+        try {
+            replay(log, doc);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            // Not finish, which only logs a failed save
+            doc.finishOrThrow(out);
+            return out.toByteArray();
+        } finally {
+            doc.close();
+        }
+    }
+
+    /**
+     * Cache key of a log: a hash of the log, and for logs whose footers show
+     * the date or user of the rendering process, today's date and the user.
+     *
+     * @param log the log
+     * @return the key, a hex string
+     */
+    public static String key(byte[] log) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        byte[] hash = digest.digest(log);
+        StringBuilder key = new StringBuilder(hash.length * 2 + 32);
+        for (byte b : hash) {
+            key.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        if (log.length > 0 && (log[log.length - 1] & FLAG_FOOTER_ENVIRONMENT) != 0) {
+            key.append('/').append(new SimpleDateFormat("yyyyMMdd").format(new Date()));
+            key.append('/').append(System.getProperty("user.name"));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Make the calls of a log on a document. The document is not finished.
+     *
+     * @param log the log
+     * @param doc the document
+     * @throws IOException if the log is not valid
+     */
+    public static void replay(byte[] log, HexPDF doc) throws IOException {
+        try {
+            replay(new DataInputStream(new ByteArrayInputStream(log)), doc);
+        } catch (EOFException ex) {
+            throw new IOException("Log is truncated", ex);
+        }
+    }
+
+    private static void replay(DataInputStream in, HexPDF doc) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a HexPDF log");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported log version " + version);
+        }
+
+        List<Object> images = new ArrayList<Object>();
+        int op;
+        while ((op = in.readUnsignedByte()) != END) {
+            switch (op) {
+                case NEW_PAGE:
+                    doc.newPage();
+                    break;
+                case SET_CURSOR:
+                    doc.setCursor(in.readFloat(), in.readFloat());
+                    break;
+                case DRAW_TEXT:
+                    doc.drawText(readString(in), in.readInt());
+                    break;
+                case DRAW_IMAGE: {
+                    Object image = image(images, in.readInt());
+                    int flags = in.readInt();
+                    if (image instanceof RasterImage) {
+                        doc.drawImage((RasterImage) image, flags);
+                    } else if (image instanceof ImageSource) {
+                        doc.drawImage((ImageSource) image, flags);
+                    } else {
+                        doc.drawImage((BufferedImage) image, flags);
+                    }
+                    break;
+                }
+                case DEFINE_BUFFERED_IMAGE:
+                    checkId(images, in.readInt());
+                    BufferedImage image = ImageIO.read(new ByteArrayInputStream(readBytes(in)));
+                    if (image == null) {
+                        throw new IOException("Image " + images.size() + " cannot be decoded");
+                    }
+                    images.add(image);
+                    break;
+                case DRAW_GRAPHIC: {
+                    VectorGraphic graphic = VectorGraphic.readFrom(in);
+                    doc.drawGraphic(graphic, in.readInt());
+                    break;
+                }
+                case DEFINE_RASTER_IMAGE:
+                    checkId(images, in.readInt());
+                    try {
+                        images.add(RasterImage.readFrom(in));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IOException("Image " + images.size() + " is not valid", ex);
+                    }
+                    break;
+                case DEFINE_IMAGE_PATH: {
+                    checkId(images, in.readInt());
+                    String path = readString(in);
+                    images.add(ImageSource.fromPath(Paths.get(path), in.readInt(), in.readInt()));
+                    break;
+                }
+                case DEFINE_IMAGE_URL: {
+                    checkId(images, in.readInt());
+                    URL url = new URL(readString(in));
+                    images.add(ImageSource.fromURL(url, in.readInt(), in.readInt()));
+                    break;
+                }
+                case DEFINE_IMAGE_BYTES: {
+                    checkId(images, in.readInt());
+                    final byte[] data = readBytes(in);
+                    images.add(ImageSource.fromBytes(new Supplier<byte[]>() {
+                        @Override
+                        public byte[] get() {
+                            return data;
+                        }
+                    }, in.readInt(), in.readInt()));
+                    break;
+                }
+                case DRAW_TABLE:
+                    readTable(in, doc, images);
+                    break;
+                case SET_FONT:
+                    doc.setFont(readFont(in));
+                    break;
+                case SET_FONT_SIZE:
+                    doc.setFontSize(in.readFloat());
+                    break;
+                case SET_FIXED_PITCH:
+                    doc.setFixedPitch(in.readBoolean());
+                    break;
+                case SET_TOP_MARGIN:
+                    doc.setTopMargin(in.readFloat());
+                    break;
+                case SET_BOTTOM_MARGIN:
+                    doc.setBottomMargin(in.readFloat());
+                    break;
+                case SET_LEFT_MARGIN:
+                    doc.setLeftMargin(in.readFloat());
+                    break;
+                case SET_RIGHT_MARGIN:
+                    doc.setRightMargin(in.readFloat());
+                    break;
+                case SET_NORMAL_FONT_SIZE:
+                    doc.setNormalFontSize(in.readFloat());
+                    break;
+                case SET_TITLE1_FONT_SIZE:
+                    doc.setTitle1FontSize(in.readFloat());
+                    break;
+                case SET_TITLE2_FONT_SIZE:
+                    doc.setTitle2FontSize(in.readFloat());
+                    break;
+                case SET_TABLE_CELL_MARGIN:
+                    doc.settableCellMargin(in.readFloat());
+                    break;
+                case SET_TEXT_COLOR:
+                    doc.setTextColor(readColor(in));
+                    break;
+                case SET_TITLE_COLOR:
+                    doc.setTitleColor(readColor(in));
+                    break;
+                case SET_NORMAL_COLOR:
+                    doc.setNormalColor(readColor(in));
+                    break;
+                case TITLE1_STYLE:
+                    doc.title1Style();
+                    break;
+                case TITLE2_STYLE:
+                    doc.title2Style();
+                    break;
+                case NORMAL_STYLE:
+                    doc.normalStyle();
+                    break;
+                case SET_ORIENTATION:
+                    doc.setOrientation(in.readInt());
+                    break;
+                case SET_PAGE_SIZE:
+                    doc.setPageSize(readRectangle(in));
+                    break;
+                case SET_FOOTER:
+                    doc.setFooter(readFooter(in));
+                    break;
+                case SET_STYLE:
+                    doc.setStyle(readStyle(in));
+                    break;
+                case SET_DETERMINISTIC:
+                    doc.setDeterministic(in.readBoolean());
+                    break;
+                case SET_COMPACT_OUTPUT:
+                    doc.setCompactOutput(in.readBoolean());
+                    break;
+                case SET_LINEARIZED:
+                    doc.setLinearized(in.readBoolean());
+                    break;
+                case SET_COMPRESSION_LEVEL:
+                    try {
+                        doc.setCompressionLevel(in.readInt());
+                    } catch (IllegalArgumentException ex) {
+                        throw new IOException("Bad compression level in log", ex);
+                    }
+                    break;
+                case SET_CLOCK:
+                    if (in.readBoolean()) {
+                        long millis = in.readLong();
+                        doc.setClock(Clock.fixed(Instant.ofEpochMilli(millis), ZoneId.of(readString(in))));
+                    } else {
+                        doc.setClock(null);
+                    }
+                    break;
+                case SET_USER:
+                    doc.setUser(readString(in));
+                    break;
+                case SET_DOCUMENT_ID:
+                    doc.setDocumentId(readBytes(in));
+                    break;
+                default:
+                    throw new IOException("Unknown operation " + op + " in log");
+            }
+        }
+    }
+
+    private static void readTable(DataInputStream in, HexPDF doc, List<Object> images) throws IOException {
+        int columns = in.readInt();
+        float[] widths = new float[columns];
+        int[] flags = new int[columns];
+        for (int col = 0; col < columns; col++) {
+            widths[col] = in.readFloat();
+            flags[col] = in.readInt();
+        }
+        int align = in.readInt();
+        Object[][] table = new Object[in.readInt()][];
+        for (int row = 0; row < table.length; row++) {
+            if (in.readBoolean()) {
+                continue;
+            }
+            table[row] = new Object[columns];
+            for (int col = 0; col < columns; col++) {
+                int kind = in.readUnsignedByte();
+                if (kind == CELL_TEXT) {
+                    table[row][col] = readString(in);
+                } else if (kind == CELL_IMAGE) {
+                    table[row][col] = image(images, in.readInt());
+                } else if (kind == CELL_GRAPHIC) {
+                    table[row][col] = VectorGraphic.readFrom(in);
+                } else if (kind != CELL_EMPTY) {
+                    throw new IOException("Unknown table cell " + kind + " in log");
+                }
+            }
+        }
+        doc.drawTable(table, widths, flags, align);
+    }
+
+    private static HexPDFStyle readStyle(DataInputStream in) throws IOException {
+        HexPDFStyle.Builder b = HexPDFStyle.builder();
+        b.setFont(readFont(in));
+        b.setNormalFontSize(in.readFloat());
+        b.setTitle1FontSize(in.readFloat());
+        b.setTitle2FontSize(in.readFloat());
+        b.setNormalColor(readColor(in));
+        b.setTitleColor(readColor(in));
+        b.setTopMargin(in.readFloat());
+        b.setBottomMargin(in.readFloat());
+        b.setLeftMargin(in.readFloat());
+        b.setRightMargin(in.readFloat());
+        b.setOrientation(in.readInt());
+        b.setPageSize(readRectangle(in));
+        b.setTableCellMargin(in.readFloat());
+        b.setFooter(readFooter(in));
+        return b.build();
+    }
+
+    private static Footer readFooter(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        Footer footer = new Footer();
+        footer.setTextColor(readColor(in));
+        footer.setLeftText(readString(in));
+        footer.setCenterText(readString(in));
+        footer.setRightText(readString(in));
+        footer.setOMIT_FIRSTPAGE(in.readBoolean());
+        footer.setCOUNT_FIRSTPAGE(in.readBoolean());
+        footer.setGLOBAL_PAGENUM(in.readBoolean());
+        footer.setGLOBAL_NUMPAGES(in.readBoolean());
+        footer.setFont(readFont(in));
+        footer.setFontsize(in.readFloat());
+        return footer;
+    }
+
+    private static Object image(List<Object> images, int id) throws IOException {
+        if (id < 0 || id >= images.size()) {
+            throw new IOException("Image " + id + " used before it is defined");
+        }
+        return images.get(id);
+    }
+
+    private static void checkId(List<Object> images, int id) throws IOException {
+        if (id != images.size()) {
+            throw new IOException("Image " + id + " defined out of order");
+        }
+    }
+
+    private static PDFont readFont(DataInputStream in) throws IOException {
+        int index = in.readUnsignedByte();
+        if (index >= STANDARD_FONTS.length) {
+            throw new IOException("Unknown font " + index + " in log");
+        }
+        return STANDARD_FONTS[index];
+    }
+
+    private static HexColor readColor(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        try {
+            return HexColor.rgb(in.readFloat(), in.readFloat(), in.readFloat());
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Bad colour in log", ex);
+        }
+    }
+
+    private static PDRectangle readRectangle(DataInputStream in) throws IOException {
+        return new PDRectangle(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        if (len > in.available()) {
+            throw new IOException("Log is truncated");
+        }
+        byte[] data = new byte[len];
+        in.readFully(data);
+        return data;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] data = readBytes(in);
+        return (data != null) ? new String(data, StandardCharsets.UTF_8) : null;
+    }
+}
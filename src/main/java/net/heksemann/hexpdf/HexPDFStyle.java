@@ -0,0 +1,522 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import java.awt.Color;
+
+/**
+ * Immutable set of page and text settings that can be shared by any number of
+ * documents and threads without copying or locking.
+ * <p>
+ * A style covers font, font sizes, colours, margins, orientation, page size,
+ * table cell margin and footer. Derived values such as line separation and
+ * the bounds of the writable area are computed once when the style is
+ * built. Apply a style with {@link HexPDF#HexPDF(HexPDFStyle)} or
+ * {@link HexPDF#setStyle(HexPDFStyle)}; later changes to the document do not
+ * affect the style.</p>
+ * <p>
+ * PDFBox fonts fill caches as they are used, so documents lock a font while
+ * they measure or draw text with it. Fonts of a style are therefore shared
+ * safely, but documents using the same font take turns at it.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     static final HexPDFStyle LETTER = HexPDFStyle.builder()
+ *             .setPageSize(PDRectangle.LETTER)
+ *             .setLeftMargin(72)
+ *             .setRightMargin(72)
+ *             .setFooter(new Footer())
+ *             .build();
+ *
+ *     HexPDF doc = new HexPDF(LETTER);
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public final class HexPDFStyle {
+
+    /**
+     * The style of a newly created HexPDF.
+     */
+    public static final HexPDFStyle DEFAULT = builder().build();
+
+    private final PDFont font;
+    private final float normalFontSize;
+    private final float title1FontSize;
+    private final float title2FontSize;
+    private final HexColor normalColor;
+    private final HexColor titleColor;
+    private final float topMargin;
+    private final float bottomMargin;
+    private final float leftMargin;
+    private final float rightMargin;
+    private final int orientation;
+    private final float pageLowerLeftX;
+    private final float pageLowerLeftY;
+    private final float pageSizeWidth;
+    private final float pageSizeHeight;
+    private final float tableCellMargin;
+    private final Footer footer;
+
+    // Derived metrics
+    private final float normalLineSep;
+    private final float title1LineSep;
+    private final float title2LineSep;
+    private final float pageWidth;
+    private final float pageHeight;
+    private final float contentWidth;
+    private final float contentHeight;
+
+    private HexPDFStyle(Builder b) {
+        font = b.font;
+        normalFontSize = b.normalFontSize;
+        title1FontSize = b.title1FontSize;
+        title2FontSize = b.title2FontSize;
+        normalColor = b.normalColor;
+        titleColor = b.titleColor;
+        topMargin = b.topMargin;
+        bottomMargin = b.bottomMargin;
+        leftMargin = b.leftMargin;
+        rightMargin = b.rightMargin;
+        orientation = b.orientation;
+        pageLowerLeftX = b.pageSize.getLowerLeftX();
+        pageLowerLeftY = b.pageSize.getLowerLeftY();
+        pageSizeWidth = b.pageSize.getWidth();
+        pageSizeHeight = b.pageSize.getHeight();
+        tableCellMargin = b.tableCellMargin;
+        footer = (b.footer != null) ? b.footer.freeze() : null;
+
+        float unitHeight = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000;
+        normalLineSep = unitHeight * normalFontSize;
+        title1LineSep = unitHeight * title1FontSize;
+        title2LineSep = unitHeight * title2FontSize;
+        pageWidth = (orientation == HexPDF.PORTRAIT) ? pageSizeWidth : pageSizeHeight;
+        pageHeight = (orientation == HexPDF.PORTRAIT) ? pageSizeHeight : pageSizeWidth;
+        contentWidth = pageWidth - leftMargin - rightMargin;
+        contentHeight = pageHeight - topMargin - bottomMargin;
+    }
+
+    /**
+     * Create a builder initialised with the settings of a new HexPDF.
+     *
+     * @return a new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Create a builder initialised with the settings of this style.
+     *
+     * @return a new builder
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * @return the text font
+     */
+    public PDFont getFont() {
+        return font;
+    }
+
+    /**
+     * @return font size for normal style, in points
+     */
+    public float getNormalFontSize() {
+        return normalFontSize;
+    }
+
+    /**
+     * @return font size for title 1 style, in points
+     */
+    public float getTitle1FontSize() {
+        return title1FontSize;
+    }
+
+    /**
+     * @return font size for title 2 style, in points
+     */
+    public float getTitle2FontSize() {
+        return title2FontSize;
+    }
+
+    /**
+     * @return text colour for normal style
+     */
+    public Color getNormalColor() {
+        return (normalColor != null) ? normalColor.toColor() : null;
+    }
+
+    /**
+     * @return text colour for normal style, without using AWT
+     */
+    public HexColor getNormalHexColor() {
+        return normalColor;
+    }
+
+    /**
+     * @return text colour for title styles
+     */
+    public Color getTitleColor() {
+        return (titleColor != null) ? titleColor.toColor() : null;
+    }
+
+    /**
+     * @return text colour for title styles, without using AWT
+     */
+    public HexColor getTitleHexColor() {
+        return titleColor;
+    }
+
+    /**
+     * @return top margin in points
+     */
+    public float getTopMargin() {
+        return topMargin;
+    }
+
+    /**
+     * @return bottom margin in points
+     */
+    public float getBottomMargin() {
+        return bottomMargin;
+    }
+
+    /**
+     * @return left margin in points
+     */
+    public float getLeftMargin() {
+        return leftMargin;
+    }
+
+    /**
+     * @return right margin in points
+     */
+    public float getRightMargin() {
+        return rightMargin;
+    }
+
+    /**
+     * @return HexPDF.PORTRAIT or HexPDF.LANDSCAPE
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Returns the page size. A new rectangle is returned on each call, since
+     * PDRectangle can be changed.
+     *
+     * @return page size in portrait orientation
+     */
+    public PDRectangle getPageSize() {
+        return new PDRectangle(pageLowerLeftX, pageLowerLeftY, pageSizeWidth, pageSizeHeight);
+    }
+
+    /**
+     * @return margin between table cell border and text, in points
+     */
+    public float getTableCellMargin() {
+        return tableCellMargin;
+    }
+
+    /**
+     * @return the footer, immutable, or null if no footer is used
+     */
+    public Footer getFooter() {
+        return footer;
+    }
+
+    /**
+     * @return line separation of normal style, in points
+     */
+    public float getNormalLineSep() {
+        return normalLineSep;
+    }
+
+    /**
+     * @return line separation of title 1 style, in points
+     */
+    public float getTitle1LineSep() {
+        return title1LineSep;
+    }
+
+    /**
+     * @return line separation of title 2 style, in points
+     */
+    public float getTitle2LineSep() {
+        return title2LineSep;
+    }
+
+    /**
+     * @return page width in points, orientation taken into account
+     */
+    public float getPageWidth() {
+        return pageWidth;
+    }
+
+    /**
+     * @return page height in points, orientation taken into account
+     */
+    public float getPageHeight() {
+        return pageHeight;
+    }
+
+    /**
+     * @return width of the writable area between left and right margins
+     */
+    public float getContentWidth() {
+        return contentWidth;
+    }
+
+    /**
+     * @return height of the writable area between top and bottom margins
+     */
+    public float getContentHeight() {
+        return contentHeight;
+    }
+
+    /**
+     * @return x-coordinate of the left edge of the writable area
+     */
+    public float getContentStartX() {
+        return leftMargin;
+    }
+
+    /**
+     * @return y-coordinate of the top edge of the writable area
+     */
+    public float getContentStartY() {
+        return pageHeight - topMargin;
+    }
+
+    /**
+     * @return x-coordinate of the right edge of the writable area
+     */
+    public float getContentEndX() {
+        return leftMargin + contentWidth;
+    }
+
+    /**
+     * @return y-coordinate of the bottom edge of the writable area
+     */
+    public float getContentEndY() {
+        return bottomMargin;
+    }
+
+    /**
+     * Builder for HexPDFStyle. A builder is not thread safe, the styles it
+     * builds are.
+     */
+    public static final class Builder {
+
+        private PDFont font = PDType1Font.HELVETICA;
+        private float normalFontSize = HexPDF.DEFAULT_NORMAL_FONT_SIZE;
+        private float title1FontSize = HexPDF.DEFAULT_TITLE1_FONT_SIZE;
+        private float title2FontSize = HexPDF.DEFAULT_TITLE2_FONT_SIZE;
+        private HexColor normalColor = HexColor.BLACK;
+        private HexColor titleColor = HexColor.BLUE;
+        private float topMargin = 50f;
+        private float bottomMargin = 50f;
+        private float leftMargin = 50f;
+        private float rightMargin = 50f;
+        private int orientation = HexPDF.PORTRAIT;
+        private PDRectangle pageSize = PDRectangle.A4;
+        private float tableCellMargin = HexPDF.DEFAULT_TABLE_CELL_MARGIN;
+        private Footer footer = null;
+
+        private Builder() {
+        }
+
+        private Builder(HexPDFStyle s) {
+            font = s.font;
+            normalFontSize = s.normalFontSize;
+            title1FontSize = s.title1FontSize;
+            title2FontSize = s.title2FontSize;
+            normalColor = s.normalColor;
+            titleColor = s.titleColor;
+            topMargin = s.topMargin;
+            bottomMargin = s.bottomMargin;
+            leftMargin = s.leftMargin;
+            rightMargin = s.rightMargin;
+            orientation = s.orientation;
+            pageSize = s.getPageSize();
+            tableCellMargin = s.tableCellMargin;
+            footer = s.footer;
+        }
+
+        /**
+         * @param font the text font
+         * @return this builder
+         */
+        public Builder setFont(PDFont font) {
+            this.font = font;
+            return this;
+        }
+
+        /**
+         * @param fontSize font size for normal style, in points
+         * @return this builder
+         */
+        public Builder setNormalFontSize(float fontSize) {
+            this.normalFontSize = fontSize;
+            return this;
+        }
+
+        /**
+         * @param fontSize font size for title 1 style, in points
+         * @return this builder
+         */
+        public Builder setTitle1FontSize(float fontSize) {
+            this.title1FontSize = fontSize;
+            return this;
+        }
+
+        /**
+         * @param fontSize font size for title 2 style, in points
+         * @return this builder
+         */
+        public Builder setTitle2FontSize(float fontSize) {
+            this.title2FontSize = fontSize;
+            return this;
+        }
+
+        /**
+         * @param color text colour for normal style
+         * @return this builder
+         */
+        public Builder setNormalColor(Color color) {
+            return setNormalColor(HexColor.of(color));
+        }
+
+        /**
+         * @param color text colour for normal style
+         * @return this builder
+         */
+        public Builder setNormalColor(HexColor color) {
+            this.normalColor = color;
+            return this;
+        }
+
+        /**
+         * @param color text colour for title styles
+         * @return this builder
+         */
+        public Builder setTitleColor(Color color) {
+            return setTitleColor(HexColor.of(color));
+        }
+
+        /**
+         * @param color text colour for title styles
+         * @return this builder
+         */
+        public Builder setTitleColor(HexColor color) {
+            this.titleColor = color;
+            return this;
+        }
+
+        /**
+         * @param margin top margin in points
+         * @return this builder
+         */
+        public Builder setTopMargin(float margin) {
+            this.topMargin = margin;
+            return this;
+        }
+
+        /**
+         * @param margin bottom margin in points
+         * @return this builder
+         */
+        public Builder setBottomMargin(float margin) {
+            this.bottomMargin = margin;
+            return this;
+        }
+
+        /**
+         * @param margin left margin in points
+         * @return this builder
+         */
+        public Builder setLeftMargin(float margin) {
+            this.leftMargin = margin;
+            return this;
+        }
+
+        /**
+         * @param margin right margin in points
+         * @return this builder
+         */
+        public Builder setRightMargin(float margin) {
+            this.rightMargin = margin;
+            return this;
+        }
+
+        /**
+         * @param orientation HexPDF.PORTRAIT or HexPDF.LANDSCAPE
+         * @return this builder
+         */
+        public Builder setOrientation(int orientation) {
+            this.orientation = orientation;
+            return this;
+        }
+
+        /**
+         * @param pageSize page size in portrait orientation, copied
+         * @return this builder
+         */
+        public Builder setPageSize(PDRectangle pageSize) {
+            this.pageSize = new PDRectangle(pageSize.getLowerLeftX(), pageSize.getLowerLeftY(),
+                    pageSize.getWidth(), pageSize.getHeight());
+            return this;
+        }
+
+        /**
+         * @param margin margin between table cell border and text, in points
+         * @return this builder
+         */
+        public Builder setTableCellMargin(float margin) {
+            this.tableCellMargin = margin;
+            return this;
+        }
+
+        /**
+         * Set the footer. The style keeps an immutable copy, later changes to
+         * the given footer do not affect the style.
+         *
+         * @param footer the footer, or null for no footer
+         * @return this builder
+         */
+        public Builder setFooter(Footer footer) {
+            this.footer = footer;
+            return this;
+        }
+
+        /**
+         * @return a new immutable style
+         */
+        public HexPDFStyle build() {
+            return new HexPDFStyle(this);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.util.Version;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Encoded images kept on disk, for use across documents and across runs.
+ * <p>
+ * When set with {@link HexPDF#setImageDiskCache(ImageDiskCache)}, images
+ * are looked up by a hash of their pixels and of the encoder settings
+ * before they are JPEG encoded. If found, the encoded bytes are embedded
+ * as they are, otherwise the image is encoded and the result stored for
+ * later documents. The image still has to be decoded to be hashed, the
+ * encoding is what is saved.</p>
+ * <p>
+ * Each image is a file of its own, named by the hash and written to a
+ * temporary file that is then moved in place, so readers never see a
+ * partly written file. Large files are memory-mapped when read. When the
+ * files take up more than the given size, the least recently used are
+ * deleted, with a lock file making sure only one process at a time does
+ * so. Several threads and several JVMs on the same host can use the same
+ * directory at once. Problems with the directory are logged, and the
+ * image is then encoded as if there was no cache.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see SharedImages
+ */
+public class ImageDiskCache {
+
+    private static final byte[] MAGIC = {'H', 'X', 'I', 'C'};
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".img";
+    private static final String LOCK = "cache.lock";
+    // Files at least this large are memory-mapped
+    private static final long MAP_THRESHOLD = 64 * 1024;
+    // Last use is recorded in the file time at most this often
+    private static final long TOUCH_INTERVAL = 60 * 1000;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final String encoder;
+    private final AtomicLong size = new AtomicLong();
+    private final ReentrantLock evicting = new ReentrantLock();
+
+    /**
+     * Use a directory as cache, creating it if needed.
+     *
+     * @param dir      the directory, may be shared with other processes
+     * @param maxBytes size the files are kept within
+     * @throws IOException if the directory cannot be created or read
+     */
+    public ImageDiskCache(Path dir, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        // Images encoded by another PDFBox version are not reused
+        this.encoder = "JPEGFactory " + Version.getVersion();
+        Files.createDirectories(dir);
+        long total = 0;
+        for (Entry entry : entries()) {
+            total += entry.size;
+        }
+        size.set(total);
+    }
+
+    /**
+     * @return the cache directory
+     */
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * @return size the files are kept within
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the size of the images stored, as last seen by this instance.
+     * Images stored by other processes are counted when old images are
+     * deleted.
+     *
+     * @return size in bytes
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Get an image for a document, from disk if stored before, otherwise by
+     * encoding it as <code>JPEGFactory.createFromImage</code> does and
+     * storing the result.
+     *
+     * @param doc   document the image is to be drawn in
+     * @param image the image
+     * @return image object belonging to doc
+     * @throws IOException if the image cannot be encoded
+     */
+    PDImageXObject get(PDDocument doc, BufferedImage image) throws IOException {
+        String key = key(image);
+        Path file = dir.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+        try {
+            PDImageXObject cached = read(doc, file);
+            if (cached != null) {
+                return cached;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ImageDiskCache.class.getName()).log(Level.WARNING, "Cannot read " + file, ex);
+        }
+        PDImageXObject ximage = JPEGFactory.createFromImage(doc, image);
+        try {
+            write(file, ximage);
+        } catch (IOException ex) {
+            Logger.getLogger(ImageDiskCache.class.getName()).log(Level.WARNING, "Cannot write " + file, ex);
+        }
+        return ximage;
+    }
+
+    /**
+     * Delete all images. Images in use by documents are not affected.
+     *
+     * @throws IOException if the directory cannot be read
+     */
+    public void clear() throws IOException {
+        for (Entry entry : entries()) {
+            Files.deleteIfExists(entry.path);
+        }
+        size.set(0);
+    }
+
+    // Hash of the pixels, the kind of image and the encoder, as hex
+    private String key(BufferedImage image) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        digest.update((encoder + " " + w + "x" + h + " type " + image.getType()
+                + " components " + image.getColorModel().getNumComponents()
+                + " alpha " + image.getColorModel().hasAlpha()).getBytes(StandardCharsets.UTF_8));
+        int[] row = new int[w];
+        ByteBuffer bytes = ByteBuffer.allocate(4 * w);
+        for (int y = 0; y < h; y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            digest.update(bytes.array());
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    // The image stored in a file, or null if there is none or it is damaged
+    private PDImageXObject read(PDDocument doc, Path file) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        ByteBuffer buf;
+        try {
+            long length = channel.size();
+            if (length >= MAP_THRESHOLD) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } else {
+                buf = ByteBuffer.allocate((int) length);
+                while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                    // Read all
+                }
+                buf.flip();
+            }
+        } finally {
+            channel.close();
+        }
+        PDImageXObject ximage;
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buf.get(magic);
+            ximage = (MessageDigest.isEqual(magic, MAGIC) && buf.getInt() == VERSION) ? readImage(doc, buf) : null;
+        } catch (RuntimeException ex) {
+            // Cut short or otherwise damaged
+            ximage = null;
+        }
+        if (ximage == null) {
+            Logger.getLogger(ImageDiskCache.class.getName()).log(Level.WARNING, "Damaged cache file {0}", file);
+            Files.deleteIfExists(file);
+            return null;
+        }
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        try {
+            if (now.toMillis() - Files.getLastModifiedTime(file).toMillis() > TOUCH_INTERVAL) {
+                Files.setLastModifiedTime(file, now);
+            }
+        } catch (NoSuchFileException ex) {
+            // Deleted meanwhile, the image is read already
+        }
+        return ximage;
+    }
+
+    private static PDImageXObject readImage(PDDocument doc, ByteBuffer buf) throws IOException {
+        int width = buf.getInt();
+        int height = buf.getInt();
+        int bitsPerComponent = buf.getInt();
+        COSName colorSpace = COSName.getPDFName(readName(buf));
+        COSName filter = COSName.getPDFName(readName(buf));
+        int length = buf.getInt();
+        ByteBuffer data = buf.slice();
+        data.limit(length);
+        buf.position(buf.position() + length);
+        PDImageXObject ximage = new PDImageXObject(doc, new ByteBufferInputStream(data), filter,
+                width, height, bitsPerComponent, PDColorSpace.create(colorSpace));
+        if (buf.get() != 0) {
+            ximage.getCOSObject().setItem(COSName.SMASK, readImage(doc, buf));
+        }
+        return ximage;
+    }
+
+    private static String readName(ByteBuffer buf) {
+        byte[] name = new byte[buf.getShort()];
+        buf.get(name);
+        return new String(name, StandardCharsets.ISO_8859_1);
+    }
+
+    /*
+     * Store an image by writing a temporary file and moving it in place.
+     * Images with parts that are not stored, such as a color space that is
+     * not a name, are not cached.
+     */
+    private void write(Path file, PDImageXObject ximage) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), "tmp", ".part");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)));
+            boolean stored;
+            try {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                stored = writeImage(out, ximage);
+            } finally {
+                out.close();
+            }
+            if (!stored) {
+                return;
+            }
+            long length = Files.size(tmp);
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (size.addAndGet(length) > maxBytes) {
+                evict();
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static boolean writeImage(DataOutputStream out, PDImageXObject ximage) throws IOException {
+        COSStream stream = ximage.getCOSObject();
+        COSBase filter = stream.getFilters();
+        COSBase colorSpace = ximage.getColorSpace().getCOSObject();
+        if (!(filter instanceof COSName) || !(colorSpace instanceof COSName)) {
+            return false;
+        }
+        byte[] data;
+        InputStream in = stream.createRawInputStream();
+        try {
+            data = IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        out.writeInt(ximage.getWidth());
+        out.writeInt(ximage.getHeight());
+        out.writeInt(ximage.getBitsPerComponent());
+        writeName(out, (COSName) colorSpace);
+        writeName(out, (COSName) filter);
+        out.writeInt(data.length);
+        out.write(data);
+        PDImageXObject mask = ximage.getSoftMask();
+        out.writeByte((mask != null) ? 1 : 0);
+        return mask == null || writeImage(out, mask);
+    }
+
+    private static void writeName(DataOutputStream out, COSName name) throws IOException {
+        byte[] bytes = name.getName().getBytes(StandardCharsets.ISO_8859_1);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /*
+     * Delete the least recently used images until the files take up less
+     * than nine tenths of the maximum size. Skipped if another thread or
+     * process is at it already.
+     */
+    private void evict() throws IOException {
+        if (!evicting.tryLock()) {
+            return;
+        }
+        try {
+            FileChannel channel = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    return;
+                }
+                try {
+                    List<Entry> entries = entries();
+                    long total = 0;
+                    for (Entry entry : entries) {
+                        total += entry.size;
+                    }
+                    Collections.sort(entries, new Comparator<Entry>() {
+                        @Override
+                        public int compare(Entry a, Entry b) {
+                            return Long.compare(a.used, b.used);
+                        }
+                    });
+                    long target = maxBytes - maxBytes / 10;
+                    for (int i = 0; i < entries.size() && total > target; i++) {
+                        try {
+                            Files.deleteIfExists(entries.get(i).path);
+                            total -= entries.get(i).size;
+                        } catch (IOException ex) {
+                            // In use on a platform that does not allow deleting it
+                            Logger.getLogger(ImageDiskCache.class.getName()).log(Level.FINE, null, ex);
+                        }
+                    }
+                    size.set(total);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                channel.close();
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    // All image files, with size and time of last use
+    private List<Entry> entries() throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        DirectoryStream<Path> subdirs = Files.newDirectoryStream(dir);
+        try {
+            for (Path subdir : subdirs) {
+                if (!Files.isDirectory(subdir)) {
+                    continue;
+                }
+                DirectoryStream<Path> files = Files.newDirectoryStream(subdir, "*" + SUFFIX);
+                try {
+                    for (Path file : files) {
+                        try {
+                            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                            entries.add(new Entry(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                        } catch (NoSuchFileException ex) {
+                            // Deleted meanwhile
+                        }
+                    }
+                } finally {
+                    files.close();
+                }
+            }
+        } finally {
+            subdirs.close();
+        }
+        return entries;
+    }
+
+    private static final class Entry {
+
+        final Path path;
+        final long size;
+        final long used;
+
+        Entry(Path path, long size, long used) {
+            this.path = path;
+            this.size = size;
+            this.used = used;
+        }
+    }
+
+    // Reads a buffer, which may be memory-mapped
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
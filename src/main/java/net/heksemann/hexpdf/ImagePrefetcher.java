@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads images ahead of use on a small pool of background threads. When set on
+ * a document with {@link HexPDF#setImagePrefetcher(ImagePrefetcher)},
+ * <code>drawTable</code> starts fetching the images of the next rows while the
+ * current row is placed.
+ * <p>
+ * At most <code>maxCached</code> decoded images are held at any time. If the
+ * cache is full, the least recently requested image is dropped and will be
+ * loaded again on the calling thread when needed.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see ImageSource
+ */
+public class ImagePrefetcher implements Closeable {
+
+    private final int lookahead;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final Map<ImageSource, Future<BufferedImage>> cache;
+
+    /**
+     * Create a prefetcher with its own pool of daemon threads.
+     *
+     * @param lookahead number of table rows to fetch ahead
+     * @param maxCached maximum number of decoded images held
+     * @param threads   maximum number of images fetched concurrently
+     */
+    public ImagePrefetcher(int lookahead, int maxCached, int threads) {
+        this(lookahead, maxCached, Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HexPDF-image-prefetch");
+                t.setDaemon(true);
+                return t;
+            }
+        }), true);
+    }
+
+    /**
+     * Create a prefetcher using the given executor. The executor is not shut
+     * down by {@link #close()}.
+     *
+     * @param lookahead number of table rows to fetch ahead
+     * @param maxCached maximum number of decoded images held
+     * @param executor  executor used for fetching images
+     */
+    public ImagePrefetcher(int lookahead, int maxCached, ExecutorService executor) {
+        this(lookahead, maxCached, executor, false);
+    }
+
+    private ImagePrefetcher(int lookahead, final int maxCached, ExecutorService executor, boolean ownExecutor) {
+        this.lookahead = lookahead;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.cache = new LinkedHashMap<ImageSource, Future<BufferedImage>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ImageSource, Future<BufferedImage>> eldest) {
+                if (size() > maxCached) {
+                    eldest.getValue().cancel(false);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of rows to fetch ahead.
+     *
+     * @return number of table rows
+     */
+    public int getLookahead() {
+        return lookahead;
+    }
+
+    /**
+     * Start loading an image in the background, unless it is already loaded
+     * or being loaded.
+     *
+     * @param source the image to load
+     */
+    public synchronized void prefetch(final ImageSource source) {
+        if (source != null && !cache.containsKey(source)) {
+            cache.put(source, executor.submit(new Callable<BufferedImage>() {
+                @Override
+                public BufferedImage call() throws Exception {
+                    return source.load();
+                }
+            }));
+        }
+    }
+
+    /**
+     * Get a decoded image, waiting for it if it is being loaded. Images not
+     * prefetched are loaded on the calling thread. The image is removed from
+     * the cache.
+     *
+     * @param source the image to get
+     * @return the decoded image
+     * @throws IOException if the image cannot be loaded
+     */
+    public BufferedImage get(ImageSource source) throws IOException {
+        Future<BufferedImage> future;
+        synchronized (this) {
+            future = cache.remove(source);
+        }
+        if (future == null || future.isCancelled()) {
+            return source.load();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Drop all cached images, and stop the background threads if they were
+     * created by this prefetcher.
+     */
+    @Override
+    public synchronized void close() {
+        for (Future<BufferedImage> future : cache.values()) {
+            future.cancel(false);
+        }
+        cache.clear();
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A reference to an image that is fetched and decoded only when it is placed
+ * in the document. Use instead of a <code>BufferedImage</code> with
+ * {@link HexPDF#drawImage(ImageSource, int)} or as a table cell, so large
+ * tables need not hold every decoded raster in memory.
+ * <p>
+ * The image is drawn with the declared width and height in points, scaled
+ * from whatever size the image actually has. Dimensions not declared are
+ * read from the image header, which still avoids decoding the image until it
+ * is drawn.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see ImagePrefetcher
+ */
+public abstract class ImageSource {
+
+    private final Object key;
+    private final int declaredWidth;
+    private final int declaredHeight;
+    // Written once by probe, and read by any thread laying out the image
+    private volatile int width;
+    private volatile int height;
+
+    private ImageSource(Object key, int width, int height) {
+        this.key = key;
+        this.declaredWidth = width;
+        this.declaredHeight = height;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Open a stream of the encoded image.
+     *
+     * @return image data in any format supported by ImageIO
+     * @throws IOException if the image cannot be read
+     */
+    protected abstract InputStream open() throws IOException;
+
+    /**
+     * Fetch and decode the image.
+     *
+     * @return the decoded image
+     * @throws IOException if the image cannot be read or decoded
+     */
+    public BufferedImage load() throws IOException {
+        try (InputStream in = open()) {
+            BufferedImage image = ImageIO.read(in);
+            if (image == null) {
+                throw new IOException("Unsupported image format: " + key);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Returns the width the image is drawn with. If the size is to be read
+     * from the image and the image cannot be read, the error is logged and
+     * the width is 0.
+     *
+     * @return width in points
+     */
+    public int getWidth() {
+        if (width < 0) {
+            probe();
+        }
+        return width;
+    }
+
+    /**
+     * Returns the height the image is drawn with. If the size is to be read
+     * from the image and the image cannot be read, the error is logged and
+     * the height is 0.
+     *
+     * @return height in points
+     */
+    public int getHeight() {
+        if (height < 0) {
+            probe();
+        }
+        return height;
+    }
+
+    // Read image dimensions from the image header, without decoding pixels
+    private synchronized void probe() {
+        if (width >= 0 && height >= 0) {
+            return;
+        }
+        // Only the dimensions not declared are taken from the image
+        try (InputStream in = open(); ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = (iis != null) ? ImageIO.getImageReaders(iis) : null;
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + key);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                if (width < 0) {
+                    width = w;
+                }
+                if (height < 0) {
+                    height = h;
+                }
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException ex) {
+            // Not retried, the image is left out of the layout
+            Logger.getLogger(ImageSource.class.getName()).log(Level.SEVERE,
+                    "Size of " + key + " could not be read, drawn with size 0", ex);
+            if (width < 0) {
+                width = 0;
+            }
+            if (height < 0) {
+                height = 0;
+            }
+        }
+    }
+
+    /**
+     * @return width as given, or -1 if it is to be taken from the image
+     */
+    int getDeclaredWidth() {
+        return declaredWidth;
+    }
+
+    /**
+     * @return height as given, or -1 if it is to be taken from the image
+     */
+    int getDeclaredHeight() {
+        return declaredHeight;
+    }
+
+    /**
+     * @return the file, URL or object identifying the image
+     */
+    Object getKey() {
+        return key;
+    }
+
+    /*
+     * Compares what was given, so map lookups never fetch the image to probe
+     * its size.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ImageSource)) {
+            return false;
+        }
+        ImageSource other = (ImageSource) obj;
+        return key.equals(other.key) && declaredWidth == other.declaredWidth
+                && declaredHeight == other.declaredHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageSource[" + key + "]";
+    }
+
+    /**
+     * Image read from a local file.
+     *
+     * @param path   the image file
+     * @param width  width in points, or -1 to use the image width
+     * @param height height in points, or -1 to use the image height
+     * @return a new image source
+     */
+    public static ImageSource fromPath(final Path path, int width, int height) {
+        return new ImageSource(path.toAbsolutePath(), width, height) {
+            @Override
+            protected InputStream open() throws IOException {
+                return Files.newInputStream(path);
+            }
+        };
+    }
+
+    /**
+     * Image read from a local file, drawn with the size of the image.
+     *
+     * @param path the image file
+     * @return a new image source
+     */
+    public static ImageSource fromPath(Path path) {
+        return fromPath(path, -1, -1);
+    }
+
+    /**
+     * Image fetched from an URL.
+     *
+     * @param url    location of the image
+     * @param width  width in points, or -1 to use the image width
+     * @param height height in points, or -1 to use the image height
+     * @return a new image source
+     */
+    public static ImageSource fromURL(final URL url, int width, int height) {
+        return new ImageSource(url.toExternalForm(), width, height) {
+            @Override
+            protected InputStream open() throws IOException {
+                return url.openStream();
+            }
+        };
+    }
+
+    /**
+     * Image given as encoded bytes, e.g. a PNG or JPEG file read from a
+     * database. The supplier is called each time the image is needed, and
+     * the bytes are not kept by the image source.
+     *
+     * @param bytes  supplier of the encoded image
+     * @param width  width in points, or -1 to use the image width
+     * @param height height in points, or -1 to use the image height
+     * @return a new image source
+     */
+    public static ImageSource fromBytes(final Supplier<byte[]> bytes, int width, int height) {
+        return new ImageSource(new Object(), width, height) {
+            @Override
+            protected InputStream open() throws IOException {
+                byte[] data = bytes.get();
+                if (data == null) {
+                    throw new IOException("No image data");
+                }
+                return new ByteArrayInputStream(data);
+            }
+        };
+    }
+}
@@ -0,0 +1,639 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a document linearized, as described in annex F of ISO 32000-1, so
+ * that a viewer can show the first page before the rest of the file has
+ * arrived.
+ * <p>
+ * The file starts with the linearization dictionary and a cross-reference
+ * table for the first page, followed by the catalog, the hint stream, and
+ * everything the first page needs. Then come the other pages, each with the
+ * objects only it uses, the objects shared by several pages, the remaining
+ * objects such as the page tree and the document information, and the main
+ * cross-reference table. The hint stream has the page offset and shared
+ * object hint tables. Like Acrobat, the content stream fields of the page
+ * offset hint table describe the whole page.</p>
+ * <p>
+ * Offsets are worked out from the size of each object before anything is
+ * written, so only dictionaries are held in memory. Encryption is not
+ * supported.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+final class LinearizedWriter extends ObjectWriter {
+
+    // Catalog entries whose objects are needed to open the document
+    private static final COSName[] OPEN_KEYS = {
+        COSName.VIEWER_PREFERENCES, COSName.getPDFName("Threads"), COSName.getPDFName("OpenAction"),
+        COSName.ACRO_FORM};
+
+    // Width of numbers filled in after the layout is known
+    private static final int PAD = 10;
+
+    private static final byte[] ENDSTREAM = bytes("\nendstream\nendobj\n");
+
+    private final OutputStream out;
+    private final int level;
+    private final Map<COSBase, Integer> numbers = new IdentityHashMap<COSBase, Integer>();
+
+    /**
+     * @param out   where the document is written, closed when done
+     * @param level Flate level for the hint stream, from
+     *              <code>java.util.zip.Deflater</code>
+     */
+    LinearizedWriter(OutputStream out, int level) {
+        this.out = out;
+        this.level = level;
+    }
+
+    @Override
+    int number(COSBase obj) {
+        Integer number = numbers.get(obj);
+        if (number == null) {
+            throw new IllegalStateException("Object not reached from the document: " + obj);
+        }
+        return number;
+    }
+
+    /**
+     * Write the document and close the stream. Attributes that pages inherit
+     * from the page tree are copied into the pages.
+     *
+     * @param doc the document, with at least one page
+     * @throws IOException if writing fails
+     */
+    void write(PDDocument doc) throws IOException {
+        try {
+            writeLinearized(doc);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeLinearized(PDDocument doc) throws IOException {
+        COSDictionary trailer = doc.getDocument().getTrailer();
+        COSDictionary catalog = doc.getDocumentCatalog().getCOSObject();
+        List<COSDictionary> pages = new ArrayList<COSDictionary>();
+        for (PDPage page : doc.getPages()) {
+            pages.add(page.getCOSObject());
+        }
+        int numPages = pages.size();
+        if (numPages == 0) {
+            throw new IOException("Cannot linearize a document without pages");
+        }
+
+        // Page tree nodes and pages are only reached through their own page
+        Map<COSBase, Boolean> stops = new IdentityHashMap<COSBase, Boolean>();
+        addPageTree(catalog.getDictionaryObject(COSName.PAGES), stops);
+        for (COSDictionary page : pages) {
+            // A linearized page may not inherit attributes
+            pushDown(page);
+            stops.put(page, Boolean.TRUE);
+        }
+
+        // Objects of each page, and the first page using each object
+        List<List<COSBase>> pageObjects = new ArrayList<List<COSBase>>(numPages);
+        Map<COSBase, int[]> users = new IdentityHashMap<COSBase, int[]>();
+        for (int i = 0; i < numPages; i++) {
+            List<COSBase> objs = new ArrayList<COSBase>();
+            reach(pages.get(i), objs, new IdentityHashMap<COSBase, Boolean>(), stops);
+            pageObjects.add(objs);
+            for (COSBase obj : objs) {
+                int[] user = users.get(obj);
+                if (user == null) {
+                    users.put(obj, new int[]{i, 1});
+                } else {
+                    user[1]++;
+                }
+            }
+        }
+
+        // Part 6: all objects of the first page, shared or not
+        Map<COSBase, Boolean> placed = new IdentityHashMap<COSBase, Boolean>();
+        List<COSBase> firstPage = pageObjects.get(0);
+        for (COSBase obj : firstPage) {
+            placed.put(obj, Boolean.TRUE);
+        }
+        // Part 7: each other page with the objects only it uses
+        List<COSBase> otherPages = new ArrayList<COSBase>();
+        int[] pageStart = new int[numPages + 1];
+        for (int i = 1; i < numPages; i++) {
+            pageStart[i] = otherPages.size();
+            for (COSBase obj : pageObjects.get(i)) {
+                int[] user = users.get(obj);
+                if (user[0] == i && user[1] == 1) {
+                    otherPages.add(obj);
+                    placed.put(obj, Boolean.TRUE);
+                }
+            }
+        }
+        pageStart[numPages] = otherPages.size();
+        // Part 8: objects shared by pages other than the first
+        List<COSBase> shared = new ArrayList<COSBase>();
+        for (int i = 1; i < numPages; i++) {
+            for (COSBase obj : pageObjects.get(i)) {
+                if (!placed.containsKey(obj)) {
+                    shared.add(obj);
+                    placed.put(obj, Boolean.TRUE);
+                }
+            }
+        }
+        // Part 4: the catalog and what is needed to open the document
+        List<COSBase> open = new ArrayList<COSBase>();
+        open.add(catalog);
+        placed.put(catalog, Boolean.TRUE);
+        for (COSName key : OPEN_KEYS) {
+            List<COSBase> refs = new ArrayList<COSBase>();
+            valueReferences(catalog.getItem(key), refs);
+            for (COSBase ref : refs) {
+                if (!stops.containsKey(ref)) {
+                    reach(ref, open, placed, stops);
+                }
+            }
+        }
+        // Part 9: everything else, such as the page tree and document info
+        List<COSBase> other = new ArrayList<COSBase>();
+        List<COSBase> roots = new ArrayList<COSBase>();
+        references(trailer, roots);
+        for (List<COSBase> part : Arrays.asList(open, firstPage, otherPages, shared)) {
+            for (COSBase obj : part) {
+                references(obj, roots);
+            }
+        }
+        for (COSBase root : roots) {
+            reach(root, other, placed, null);
+        }
+
+        // The first page section is numbered last, so the main
+        // cross-reference table covers the objects from 1
+        int number = 1;
+        for (List<COSBase> part : Arrays.asList(otherPages, shared, other)) {
+            for (COSBase obj : part) {
+                numbers.put(obj, number++);
+            }
+        }
+        int firstNumber = number++;
+        for (List<COSBase> part : Arrays.asList(open, firstPage)) {
+            for (COSBase obj : part) {
+                numbers.put(obj, number++);
+            }
+        }
+        int hintNumber = number++;
+        int size = number;
+
+        Part[] openParts = serialize(open);
+        Part[] firstParts = serialize(firstPage);
+        Part[] otherParts = serialize(otherPages);
+        Part[] sharedParts = serialize(shared);
+        Part[] otherObjects = serialize(other);
+
+        // The fixed size beginning of the file, filled in at the end
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        head.write(bytes("%PDF-" + doc.getVersion() + "\n%"));
+        head.write(new byte[]{(byte) 0xe2, (byte) 0xe3, (byte) 0xcf, (byte) 0xd3, '\n'});
+        byte[] header = head.toByteArray();
+        int firstPageNumber = numbers.get(pages.get(0));
+        int linLength = linearizationDictionary(firstNumber, 0, 0, 0, firstPageNumber, 0, numPages, 0).length;
+        COSBase infoObject = trailer.getDictionaryObject(COSName.INFO);
+        String trailerEntries = "/Size " + size + " /Root " + numbers.get(catalog) + " 0 R"
+                + ((infoObject instanceof COSDictionary) ? " /Info " + number(infoObject) + " 0 R" : "")
+                + " /ID " + id(trailer.getDictionaryObject(COSName.ID), size);
+        int firstXrefLength = firstPageXref(firstNumber, new long[size - firstNumber], trailerEntries, 0).length;
+
+        // Offsets as if there were no hint stream, which is how the hint
+        // tables give them
+        long pos = header.length + linLength + firstXrefLength;
+        long hintOffset = place(openParts, pos);
+        long firstPageStart = hintOffset;
+        long firstPageEnd = place(firstParts, firstPageStart);
+        long sharedStart = place(otherParts, firstPageEnd);
+        long otherStart = place(sharedParts, sharedStart);
+
+        byte[] hints = hintStream(hintNumber, firstParts, otherParts, sharedParts, pageStart, pageObjects, firstPageStart, sharedStart);
+        long hintLength = hints.length;
+        long mainXref = place(otherObjects, otherStart) + hintLength;
+        for (Part[] part : new Part[][]{firstParts, otherParts, sharedParts, otherObjects}) {
+            for (Part p : part) {
+                p.offset += hintLength;
+            }
+        }
+
+        long[] offsets = new long[size];
+        for (Part[] part : new Part[][]{openParts, firstParts, otherParts, sharedParts, otherObjects}) {
+            for (Part p : part) {
+                offsets[p.number] = p.offset;
+            }
+        }
+        offsets[firstNumber] = header.length;
+        offsets[hintNumber] = hintOffset;
+        byte[] mainXrefBytes = mainXref(firstNumber, offsets, header.length + linLength);
+        long fileLength = mainXref + mainXrefBytes.length;
+        long mainXrefFirstEntry = mainXref + bytes("xref\n0 " + firstNumber).length;
+
+        out.write(header);
+        out.write(linearizationDictionary(firstNumber, fileLength, hintOffset, hintLength, firstPageNumber,
+                firstPageEnd + hintLength, numPages, mainXrefFirstEntry));
+        out.write(firstPageXref(firstNumber, Arrays.copyOfRange(offsets, firstNumber, size), trailerEntries, mainXref));
+        writeParts(openParts);
+        out.write(hints);
+        for (Part[] part : new Part[][]{firstParts, otherParts, sharedParts, otherObjects}) {
+            writeParts(part);
+        }
+        out.write(mainXrefBytes);
+        out.flush();
+    }
+
+    private static void addPageTree(COSBase node, Map<COSBase, Boolean> stops) {
+        if (!(node instanceof COSDictionary) || stops.containsKey(node)) {
+            return;
+        }
+        COSDictionary dict = (COSDictionary) node;
+        if (!COSName.PAGES.equals(dict.getCOSName(COSName.TYPE))) {
+            return;
+        }
+        stops.put(dict, Boolean.TRUE);
+        COSBase kids = dict.getDictionaryObject(COSName.KIDS);
+        if (kids instanceof COSArray) {
+            for (int i = 0; i < ((COSArray) kids).size(); i++) {
+                addPageTree(((COSArray) kids).getObject(i), stops);
+            }
+        }
+    }
+
+    /*
+     * Add an object and the objects reached from it to the list, breadth
+     * first, skipping those already seen and the stops, if any.
+     */
+    private static void reach(COSBase start, List<COSBase> into, Map<COSBase, Boolean> seen, Map<COSBase, Boolean> stops) {
+        if (seen.containsKey(start)) {
+            return;
+        }
+        ArrayDeque<COSBase> todo = new ArrayDeque<COSBase>();
+        seen.put(start, Boolean.TRUE);
+        todo.add(start);
+        List<COSBase> refs = new ArrayList<COSBase>();
+        while (!todo.isEmpty()) {
+            COSBase obj = todo.poll();
+            into.add(obj);
+            refs.clear();
+            references(obj, refs);
+            for (COSBase ref : refs) {
+                if (!seen.containsKey(ref) && (stops == null || !stops.containsKey(ref))) {
+                    seen.put(ref, Boolean.TRUE);
+                    todo.add(ref);
+                }
+            }
+        }
+    }
+
+    // An object ready to be written, with its offset once laid out
+    private static final class Part {
+
+        final int number;
+        final byte[] head;
+        final COSStream stream;
+        final long size;
+        long offset;
+
+        Part(int number, byte[] head, COSStream stream) {
+            this.number = number;
+            this.head = head;
+            this.stream = stream;
+            this.size = head.length + ((stream != null) ? stream.getLength() + ENDSTREAM.length : 0);
+        }
+    }
+
+    private Part[] serialize(List<COSBase> objs) throws IOException {
+        Part[] parts = new Part[objs.size()];
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (int i = 0; i < parts.length; i++) {
+            COSBase obj = objs.get(i);
+            int number = numbers.get(obj);
+            buf.reset();
+            buf.write(bytes(number + " 0 obj\n"));
+            writeBody(obj, buf);
+            if (obj instanceof COSStream) {
+                buf.write(bytes("\nstream\n"));
+                parts[i] = new Part(number, buf.toByteArray(), (COSStream) obj);
+            } else {
+                buf.write(bytes("\nendobj\n"));
+                parts[i] = new Part(number, buf.toByteArray(), null);
+            }
+        }
+        return parts;
+    }
+
+    // Set the offset of each object from the given position, returning the end
+    private static long place(Part[] parts, long pos) {
+        for (Part p : parts) {
+            p.offset = pos;
+            pos += p.size;
+        }
+        return pos;
+    }
+
+    private void writeParts(Part[] parts) throws IOException {
+        for (Part p : parts) {
+            out.write(p.head);
+            if (p.stream != null) {
+                copyStream(p.number, p.stream, out);
+                out.write(ENDSTREAM);
+            }
+        }
+    }
+
+    private static byte[] linearizationDictionary(int number, long length, long hintOffset, long hintLength,
+            int firstPage, long firstPageEnd, int numPages, long mainXrefFirstEntry) {
+        return bytes(number + " 0 obj\n<</Linearized 1 /L " + pad(length)
+                + " /H [" + pad(hintOffset) + " " + pad(hintLength) + "] /O " + firstPage
+                + " /E " + pad(firstPageEnd) + " /N " + numPages + " /T " + pad(mainXrefFirstEntry) + ">>\nendobj\n");
+    }
+
+    private static byte[] firstPageXref(int first, long[] offsets, String trailerEntries, long mainXref) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("xref\n").append(first).append(' ').append(offsets.length).append('\n');
+        for (long offset : offsets) {
+            xrefEntry(sb, offset);
+        }
+        sb.append("trailer\n<<").append(trailerEntries).append(" /Prev ").append(pad(mainXref));
+        sb.append(">>\nstartxref\n0\n%%EOF\n");
+        return bytes(sb.toString());
+    }
+
+    private static byte[] mainXref(int size, long[] offsets, long firstPageXref) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("xref\n0 ").append(size).append("\n0000000000 65535 f\r\n");
+        for (int i = 1; i < size; i++) {
+            xrefEntry(sb, offsets[i]);
+        }
+        sb.append("trailer\n<</Size ").append(size).append(">>\nstartxref\n").append(firstPageXref).append("\n%%EOF\n");
+        return bytes(sb.toString());
+    }
+
+    private static void xrefEntry(StringBuilder sb, long offset) {
+        String s = Long.toString(offset);
+        for (int i = s.length(); i < 10; i++) {
+            sb.append('0');
+        }
+        sb.append(s).append(" 00000 n\r\n");
+    }
+
+    // A number followed by spaces to a fixed width
+    private static String pad(long value) {
+        StringBuilder sb = new StringBuilder(Long.toString(value));
+        while (sb.length() < PAD) {
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+
+    // The document ID, or a new one from the time and size, as COSWriter
+    private String id(COSBase id, int size) throws IOException {
+        COSArray ids;
+        if (id instanceof COSArray && ((COSArray) id).size() == 2) {
+            ids = (COSArray) id;
+        } else {
+            byte[] newId;
+            try {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                md5.update(bytes(System.currentTimeMillis() + " " + size));
+                newId = md5.digest();
+            } catch (NoSuchAlgorithmException ex) {
+                newId = bytes(Long.toString(System.currentTimeMillis()));
+            }
+            ids = new COSArray();
+            ids.add(new COSString(newId));
+            ids.add(new COSString(newId));
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        writeValue(ids, buf);
+        return new String(buf.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /*
+     * The primary hint stream, with the page offset hint table followed by
+     * the shared object hint table. Shared object entries are the objects
+     * of the first page followed by those of the shared part, one object
+     * per group.
+     */
+    private byte[] hintStream(int number, Part[] firstParts, Part[] otherParts, Part[] sharedParts, int[] pageStart,
+            List<List<COSBase>> pageObjects, long firstPageStart, long sharedStart) throws IOException {
+        int numPages = pageObjects.size();
+        Map<Integer, Integer> sharedIds = new HashMap<Integer, Integer>();
+        for (Part p : firstParts) {
+            sharedIds.put(p.number, sharedIds.size());
+        }
+        for (Part p : sharedParts) {
+            sharedIds.put(p.number, sharedIds.size());
+        }
+
+        long[] objects = new long[numPages];
+        long[] lengths = new long[numPages];
+        int[][] sharedRefs = new int[numPages][];
+        objects[0] = firstParts.length;
+        lengths[0] = length(firstParts, 0, firstParts.length);
+        sharedRefs[0] = new int[0];
+        int maxId = 0;
+        for (int i = 1; i < numPages; i++) {
+            objects[i] = pageStart[i + 1] - pageStart[i];
+            lengths[i] = length(otherParts, pageStart[i], pageStart[i + 1]);
+            List<Integer> refs = new ArrayList<Integer>();
+            for (COSBase obj : pageObjects.get(i)) {
+                Integer id = sharedIds.get(numbers.get(obj));
+                if (id != null) {
+                    refs.add(id);
+                    maxId = Math.max(maxId, id);
+                }
+            }
+            sharedRefs[i] = new int[refs.size()];
+            for (int j = 0; j < sharedRefs[i].length; j++) {
+                sharedRefs[i][j] = refs.get(j);
+            }
+        }
+        long minObjects = min(objects);
+        long minLength = min(lengths);
+        int objectBits = bits(max(objects) - minObjects);
+        int lengthBits = bits(max(lengths) - minLength);
+        long maxRefs = 0;
+        for (int[] refs : sharedRefs) {
+            maxRefs = Math.max(maxRefs, refs.length);
+        }
+        int refBits = bits(maxRefs);
+        int idBits = bits(maxId);
+
+        BitWriter w = new BitWriter();
+        w.write(minObjects, 32);
+        w.write(firstPageStart, 32);
+        w.write(objectBits, 16);
+        w.write(minLength, 32);
+        w.write(lengthBits, 16);
+        // Content stream offset and length, given for the whole page
+        w.write(0, 32);
+        w.write(0, 16);
+        w.write(minLength, 32);
+        w.write(lengthBits, 16);
+        w.write(refBits, 16);
+        w.write(idBits, 16);
+        // No fractional positions of shared objects
+        w.write(0, 16);
+        w.write(1, 16);
+        for (int i = 0; i < numPages; i++) {
+            w.write(objects[i] - minObjects, objectBits);
+        }
+        w.align();
+        for (int i = 0; i < numPages; i++) {
+            w.write(lengths[i] - minLength, lengthBits);
+        }
+        w.align();
+        for (int i = 0; i < numPages; i++) {
+            w.write(sharedRefs[i].length, refBits);
+        }
+        w.align();
+        for (int i = 0; i < numPages; i++) {
+            for (int id : sharedRefs[i]) {
+                w.write(id, idBits);
+            }
+        }
+        w.align();
+        // Numerators of zero bits, content stream offsets of zero bits
+        for (int i = 0; i < numPages; i++) {
+            w.write(lengths[i] - minLength, lengthBits);
+        }
+        w.align();
+        int sharedTable = w.size();
+
+        int numShared = firstParts.length + sharedParts.length;
+        long[] groups = new long[numShared];
+        for (int i = 0; i < firstParts.length; i++) {
+            groups[i] = firstParts[i].size;
+        }
+        for (int i = 0; i < sharedParts.length; i++) {
+            groups[firstParts.length + i] = sharedParts[i].size;
+        }
+        long minGroup = min(groups);
+        int groupBits = bits(max(groups) - minGroup);
+        w.write((sharedParts.length > 0) ? sharedParts[0].number : 0, 32);
+        w.write((sharedParts.length > 0) ? sharedStart : 0, 32);
+        w.write(firstParts.length, 32);
+        w.write(numShared, 32);
+        w.write(0, 16);
+        w.write(minGroup, 32);
+        w.write(groupBits, 16);
+        for (long group : groups) {
+            w.write(group - minGroup, groupBits);
+        }
+        w.align();
+        // No signatures, and one object per group
+        for (int i = 0; i < numShared; i++) {
+            w.write(0, 1);
+        }
+        w.align();
+
+        byte[] data = w.toByteArray();
+        String filter = "";
+        if (level != Deflater.NO_COMPRESSION) {
+            data = deflate(data, level);
+            filter = " /Filter /FlateDecode";
+        }
+        ByteArrayOutputStream obj = new ByteArrayOutputStream(data.length + 100);
+        obj.write(bytes(number + " 0 obj\n<</S " + sharedTable + filter + " /Length " + data.length + ">>\nstream\n"));
+        obj.write(data);
+        obj.write(ENDSTREAM);
+        return obj.toByteArray();
+    }
+
+    private static long length(Part[] parts, int from, int to) {
+        long length = 0;
+        for (int i = from; i < to; i++) {
+            length += parts[i].size;
+        }
+        return length;
+    }
+
+    private static long min(long[] values) {
+        long min = Long.MAX_VALUE;
+        for (long v : values) {
+            min = Math.min(min, v);
+        }
+        return values.length > 0 ? min : 0;
+    }
+
+    private static long max(long[] values) {
+        long max = 0;
+        for (long v : values) {
+            max = Math.max(max, v);
+        }
+        return max;
+    }
+
+    // Number of bits needed for a value
+    private static int bits(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    // Packs values into bits, most significant first
+    private static final class BitWriter extends ByteArrayOutputStream {
+
+        private int bits = 0;
+        private int current = 0;
+
+        void write(long value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                if (++bits == 8) {
+                    write(current);
+                    bits = 0;
+                    current = 0;
+                }
+            }
+        }
+
+        // Pad with zero bits to a byte boundary
+        void align() {
+            if (bits > 0) {
+                write(current << (8 - bits));
+                bits = 0;
+                current = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A render cache held in memory, dropping the least recently used documents
+ * when the total size exceeds a limit. Safe for use from several threads.
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public class MemoryRenderCache implements RenderCache {
+
+    private final long maxBytes;
+    private long bytes = 0;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /**
+     * Create an empty cache.
+     *
+     * @param maxBytes maximum total size of the documents held
+     */
+    public MemoryRenderCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public synchronized byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public synchronized void put(String key, byte[] pdf) {
+        if (pdf.length > maxBytes) {
+            return;
+        }
+        byte[] old = entries.put(key, pdf);
+        if (old != null) {
+            bytes -= old.length;
+        }
+        bytes += pdf.length;
+        Iterator<byte[]> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * @return number of documents held
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return total size of the documents held, in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Drop all documents.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+}
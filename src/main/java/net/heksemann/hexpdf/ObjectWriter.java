@@ -0,0 +1,276 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * PDF syntax for the document writers that do not use <code>COSWriter</code>.
+ * <p>
+ * Like <code>COSWriter</code>, dictionaries are indirect objects unless
+ * marked direct, streams are always indirect, arrays are written in place,
+ * and objects wrapped in a <code>COSObject</code> are indirect if they are a
+ * dictionary or an array. Subclasses decide the number of each indirect
+ * object.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see CompactWriter
+ * @see LinearizedWriter
+ */
+abstract class ObjectWriter {
+
+    private static final byte[] NULL = bytes("null");
+
+    // Attributes a page may inherit from the page tree
+    private static final COSName[] INHERITED = {
+        COSName.RESOURCES, COSName.MEDIA_BOX, COSName.CROP_BOX, COSName.ROTATE};
+
+    /**
+     * @param obj an indirect object
+     * @return its object number, or 0 to write null instead of a reference
+     */
+    abstract int number(COSBase obj);
+
+    /**
+     * Write a value in place, or a reference if it is an indirect object.
+     *
+     * @param value the value
+     * @param o     where to write it
+     * @throws IOException if writing fails
+     */
+    final void writeValue(COSBase value, OutputStream o) throws IOException {
+        COSBase target = indirect(value);
+        if (target != null) {
+            int number = number(target);
+            o.write(number > 0 ? bytes(number + " 0 R") : NULL);
+        } else if (value instanceof COSObject) {
+            writeValue(((COSObject) value).getObject(), o);
+        } else if (value instanceof COSDictionary) {
+            writeDictionary((COSDictionary) value, o, false);
+        } else if (value instanceof COSArray) {
+            o.write('[');
+            boolean first = true;
+            for (COSBase item : (COSArray) value) {
+                if (!first) {
+                    o.write(' ');
+                }
+                writeValue(item, o);
+                first = false;
+            }
+            o.write(']');
+        } else if (value instanceof COSName) {
+            ((COSName) value).writePDF(o);
+        } else if (value instanceof COSString) {
+            COSWriter.writeString((COSString) value, o);
+        } else if (value instanceof COSInteger) {
+            ((COSInteger) value).writePDF(o);
+        } else if (value instanceof COSFloat) {
+            ((COSFloat) value).writePDF(o);
+        } else if (value instanceof COSBoolean) {
+            ((COSBoolean) value).writePDF(o);
+        } else if (value == null || value instanceof COSNull) {
+            o.write(NULL);
+        } else {
+            throw new IOException("Cannot write " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Write the body of an indirect object, without the obj and endobj
+     * lines. For a stream this is the dictionary only.
+     *
+     * @param obj the object
+     * @param o   where to write it
+     * @throws IOException if writing fails
+     */
+    final void writeBody(COSBase obj, OutputStream o) throws IOException {
+        if (obj instanceof COSDictionary) {
+            writeDictionary((COSDictionary) obj, o, obj instanceof COSStream);
+        } else {
+            writeValue(obj, o);
+        }
+    }
+
+    private void writeDictionary(COSDictionary dict, OutputStream o, boolean stream) throws IOException {
+        o.write('<');
+        o.write('<');
+        for (Map.Entry<COSName, COSBase> entry : dict.entrySet()) {
+            if (stream && COSName.LENGTH.equals(entry.getKey())) {
+                continue;
+            }
+            entry.getKey().writePDF(o);
+            o.write(' ');
+            writeValue(entry.getValue(), o);
+        }
+        if (stream) {
+            o.write(bytes("/Length " + ((COSStream) dict).getLength()));
+        }
+        o.write('>');
+        o.write('>');
+    }
+
+    /**
+     * Copy the raw data of a stream.
+     *
+     * @param number object number, for the error message
+     * @param stream the stream
+     * @param o      where to write the data
+     * @throws IOException if writing fails, or the data does not match the
+     *                     length of the stream
+     */
+    static void copyStream(int number, COSStream stream, OutputStream o) throws IOException {
+        long length = stream.getLength();
+        long copied = 0;
+        InputStream in = stream.createRawInputStream();
+        try {
+            byte[] buf = new byte[16384];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                o.write(buf, 0, n);
+                copied += n;
+            }
+        } finally {
+            in.close();
+        }
+        if (copied != length) {
+            throw new IOException("Stream " + number + " has " + copied + " bytes, but a length of " + length);
+        }
+    }
+
+    /**
+     * Add the indirect objects referred to by an object, in the order they
+     * are written, without going into them.
+     *
+     * @param obj  an indirect object, or a direct value
+     * @param refs where to add the objects referred to
+     */
+    static void references(COSBase obj, List<COSBase> refs) {
+        if (obj instanceof COSDictionary) {
+            for (COSBase value : ((COSDictionary) obj).getValues()) {
+                valueReferences(value, refs);
+            }
+        } else if (obj instanceof COSArray) {
+            for (COSBase item : (COSArray) obj) {
+                valueReferences(item, refs);
+            }
+        }
+    }
+
+    /**
+     * Add the indirect objects referred to by a value in a dictionary or
+     * array: the value itself if it is indirect, otherwise those within it.
+     *
+     * @param value the value, or null
+     * @param refs  where to add the objects referred to
+     */
+    static void valueReferences(COSBase value, List<COSBase> refs) {
+        COSBase target = indirect(value);
+        if (target != null) {
+            refs.add(target);
+        } else if (value instanceof COSObject) {
+            valueReferences(((COSObject) value).getObject(), refs);
+        } else {
+            references(value, refs);
+        }
+    }
+
+    /**
+     * @param value a value in a dictionary or array
+     * @return the object it refers to if it is written as a reference, or
+     * null if it is written in place
+     */
+    static COSBase indirect(COSBase value) {
+        if (value instanceof COSObject) {
+            COSBase obj = ((COSObject) value).getObject();
+            return (obj instanceof COSDictionary || obj instanceof COSArray) ? obj : null;
+        }
+        if (value instanceof COSStream || (value instanceof COSDictionary && !value.isDirect())) {
+            return value;
+        }
+        return null;
+    }
+
+    /**
+     * Copy the attributes a page inherits from the page tree into the page
+     * itself, for writers that do not keep the page tree as it is.
+     *
+     * @param page the page dictionary
+     */
+    static void pushDown(COSDictionary page) {
+        for (COSName key : INHERITED) {
+            if (page.containsKey(key)) {
+                continue;
+            }
+            COSBase parent = page.getDictionaryObject(COSName.PARENT);
+            while (parent instanceof COSDictionary) {
+                COSBase value = ((COSDictionary) parent).getItem(key);
+                if (value != null) {
+                    page.setItem(key, value);
+                    break;
+                }
+                parent = ((COSDictionary) parent).getDictionaryObject(COSName.PARENT);
+            }
+        }
+    }
+
+    /**
+     * Flate compress data.
+     *
+     * @param data  the data
+     * @param level compression level, from <code>java.util.zip.Deflater</code>
+     * @return the compressed data
+     */
+    static byte[] deflate(byte[] data, int level) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length / 2 + 64);
+        Deflater deflater = new Deflater(level);
+        try {
+            DeflaterOutputStream z = new DeflaterOutputStream(buf, deflater);
+            z.write(data);
+            z.finish();
+        } catch (IOException ex) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        } finally {
+            deflater.end();
+        }
+        return buf.toByteArray();
+    }
+
+    static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Renders logs made by {@link HexPDFRecorder} in a pool of child JVM
+ * processes.
+ * <p>
+ * Huge documents need a lot of memory while they are laid out and saved. In
+ * a child process that memory is taken from the child's heap, so the calling
+ * JVM does not pay for it in garbage collection. Each child has its own heap
+ * limit, set by the JVM options given to the pool. The document is streamed
+ * back as it is saved, and copied to the caller's stream without being held
+ * in memory.</p>
+ * <p>
+ * A child that crashes, runs out of memory or exceeds the time limit is
+ * killed and replaced by a new one. A job whose child died before any output
+ * was written is tried again on a new child, up to the maximum number of
+ * attempts. The pool is safe for use from several threads; at most
+ * <code>workers</code> jobs run at a time, others wait for a free child.</p>
+ * <p>
+ * Children run {@link RenderWorker} with the class path of the calling JVM.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     ProcessRenderPool pool = new ProcessRenderPool(4, Arrays.asList("-Xmx1g"));
+ *
+ *     HexPDFRecorder rec = new HexPDFRecorder();
+ *     (record the report)
+ *     pool.render(rec.toByteArray(), response.getOutputStream());
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see RenderWorker
+ */
+public class ProcessRenderPool implements Closeable {
+
+    private final List<String> command;
+    private final Semaphore slots;
+    private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+    private final ScheduledExecutorService watchdog;
+    private volatile long timeoutMillis = 0;
+    private volatile int maxAttempts = 2;
+    private volatile int maxJobsPerWorker = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a pool of children with default JVM options.
+     *
+     * @param workers maximum number of child processes
+     */
+    public ProcessRenderPool(int workers) {
+        this(workers, new ArrayList<String>());
+    }
+
+    /**
+     * Create a pool of children started with the given JVM options, e.g.
+     * <code>-Xmx512m</code>. Children are started when first needed.
+     *
+     * @param workers    maximum number of child processes
+     * @param jvmOptions options for the child JVMs
+     */
+    public ProcessRenderPool(int workers, List<String> jvmOptions) {
+        this.slots = new Semaphore(workers, true);
+        this.command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(jvmOptions);
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), RenderWorker.class.getName()));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HexPDF-render-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Set the time limit of a job. A child exceeding it is killed.
+     *
+     * @param timeout time limit, 0 for none
+     * @param unit    unit of timeout
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Set how many times a job is started when its child dies before any
+     * output is written. Default is 2.
+     *
+     * @param maxAttempts number of attempts
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Replace children after a number of jobs, e.g. to return memory to the
+     * operating system. Default is 0, never.
+     *
+     * @param maxJobs jobs per child, 0 for no limit
+     */
+    public void setMaxJobsPerWorker(int maxJobs) {
+        this.maxJobsPerWorker = maxJobs;
+    }
+
+    /**
+     * Render a log and return the document.
+     *
+     * @param log the log
+     * @return the document
+     * @throws IOException if the job failed
+     */
+    public byte[] render(byte[] log) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        render(log, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Render a log, writing the document to a stream as it is produced. If
+     * the job fails after output was written, the stream holds a partial
+     * document. The stream is not closed.
+     *
+     * @param log the log
+     * @param out stream to write the document to
+     * @throws IOException if the job failed, or writing to out failed
+     */
+    public void render(byte[] log, OutputStream out) throws IOException {
+        if (closed) {
+            throw new IOException("Pool is closed");
+        }
+        try {
+            slots.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a render worker");
+        }
+        try {
+            for (int attempt = 1; ; attempt++) {
+                Worker worker = idle.poll();
+                if (worker == null || !worker.process.isAlive()) {
+                    if (worker != null) {
+                        worker.destroy();
+                    }
+                    worker = new Worker(command);
+                }
+                Job job = new Job(out);
+                try {
+                    worker.run(log, job);
+                } catch (IOException ex) {
+                    // The child is gone or in an unknown state
+                    worker.destroy();
+                    if (job.timedOut) {
+                        throw new IOException("Render timed out after " + timeoutMillis + " ms", ex);
+                    }
+                    if (job.written || job.outputFailed || attempt >= maxAttempts) {
+                        throw ex;
+                    }
+                    Logger.getLogger(ProcessRenderPool.class.getName()).log(Level.WARNING,
+                            "Render worker died, retrying", ex);
+                    continue;
+                }
+                if (closed || (maxJobsPerWorker > 0 && worker.jobs >= maxJobsPerWorker)) {
+                    worker.shutdown();
+                } else {
+                    idle.offer(worker);
+                }
+                if (job.error != null) {
+                    throw new IOException("Render failed: " + job.error);
+                }
+                return;
+            }
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * Stop all idle children. Jobs running are completed, and their children
+     * stopped afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            worker.shutdown();
+        }
+        watchdog.shutdownNow();
+    }
+
+    // Progress of a single job
+    private static final class Job {
+
+        final OutputStream out;
+        boolean written = false;
+        boolean outputFailed = false;
+        volatile boolean timedOut = false;
+        String error = null;
+
+        Job(OutputStream out) {
+            this.out = out;
+        }
+    }
+
+    // A child process and its pipes
+    private final class Worker {
+
+        final Process process;
+        final DataOutputStream in;
+        final DataInputStream out;
+        int jobs = 0;
+
+        Worker(List<String> command) throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = pb.start();
+            in = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            out = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        // Send a job and copy its result, IOException means the child failed
+        void run(byte[] log, final Job job) throws IOException {
+            jobs++;
+            ScheduledFuture<?> kill = null;
+            if (timeoutMillis > 0) {
+                kill = watchdog.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        job.timedOut = true;
+                        process.destroyForcibly();
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            try {
+                in.writeInt(log.length);
+                in.write(log);
+                in.flush();
+
+                byte[] buf = new byte[RenderWorker.FRAME_SIZE];
+                while (true) {
+                    int type = out.readUnsignedByte();
+                    if (type == RenderWorker.DONE) {
+                        return;
+                    } else if (type == RenderWorker.ERROR) {
+                        job.error = out.readUTF();
+                        return;
+                    } else if (type != RenderWorker.DATA) {
+                        throw new IOException("Unexpected frame " + type + " from render worker");
+                    }
+                    int len = out.readInt();
+                    if (len < 0 || len > buf.length) {
+                        throw new IOException("Bad frame length " + len + " from render worker");
+                    }
+                    out.readFully(buf, 0, len);
+                    try {
+                        job.out.write(buf, 0, len);
+                    } catch (IOException ex) {
+                        job.outputFailed = true;
+                        throw ex;
+                    }
+                    job.written = true;
+                }
+            } finally {
+                if (kill != null) {
+                    kill.cancel(false);
+                }
+            }
+        }
+
+        void shutdown() {
+            try {
+                in.writeInt(-1);
+                in.close();
+            } catch (IOException ex) {
+                // Already gone
+            }
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException ex) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void destroy() {
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A raster image given as pixels or as a JPEG file, immutable.
+ * <p>
+ * Used by HexPDF in place of <code>java.awt.image.BufferedImage</code>, as
+ * loading that class starts AWT, which takes time and memory and is not
+ * available everywhere. Pixels are compressed without loss into the
+ * document. JPEG files are copied into the document as they are, only their
+ * header is read for the size and number of colour components.</p>
+ * <p>
+ * The arrays given are not copied, and must not be changed afterwards. An
+ * image is drawn one point per pixel, like a <code>BufferedImage</code>. The
+ * same instance drawn several times in a document is added only once.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public final class RasterImage {
+
+    private static final int GRAY = 1;
+    private static final int RGB = 3;
+    private static final int ARGB = 4;
+    private static final int JPEG = 8;
+
+    private final int kind;
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+    private final byte[] data;
+    // JPEG only
+    private final int components;
+    private final int bitsPerComponent;
+    private final boolean adobe;
+
+    private RasterImage(int kind, int width, int height, int[] pixels, byte[] data,
+            int components, int bitsPerComponent, boolean adobe) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image size must be positive, but is " + width + "x" + height);
+        }
+        this.kind = kind;
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.data = data;
+        this.components = components;
+        this.bitsPerComponent = bitsPerComponent;
+        this.adobe = adobe;
+    }
+
+    /**
+     * Image from packed <code>0xAARRGGBB</code> pixels, row by row from the
+     * top, as returned by <code>BufferedImage.getRGB</code>. Alpha is kept.
+     *
+     * @param width  width in pixels
+     * @param height height in pixels
+     * @param argb   the pixels
+     * @return the image
+     */
+    public static RasterImage argb(int width, int height, int[] argb) {
+        checkLength(argb.length, width, height, 1);
+        return new RasterImage(ARGB, width, height, argb, null, 3, 8, false);
+    }
+
+    /**
+     * Image from three bytes per pixel, red, green and blue, row by row from
+     * the top.
+     *
+     * @param width  width in pixels
+     * @param height height in pixels
+     * @param rgb    the pixels
+     * @return the image
+     */
+    public static RasterImage rgb(int width, int height, byte[] rgb) {
+        checkLength(rgb.length, width, height, 3);
+        return new RasterImage(RGB, width, height, null, rgb, 3, 8, false);
+    }
+
+    /**
+     * Image from one byte per pixel, 0 for black to 255 for white, row by row
+     * from the top.
+     *
+     * @param width  width in pixels
+     * @param height height in pixels
+     * @param gray   the pixels
+     * @return the image
+     */
+    public static RasterImage gray(int width, int height, byte[] gray) {
+        checkLength(gray.length, width, height, 1);
+        return new RasterImage(GRAY, width, height, null, gray, 1, 8, false);
+    }
+
+    /**
+     * Image from a JPEG file. Gray, RGB and CMYK images are supported.
+     *
+     * @param jpeg contents of the file
+     * @return the image
+     * @throws IllegalArgumentException if the data is not a JPEG file
+     */
+    public static RasterImage jpeg(byte[] jpeg) {
+        if (jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != 0xd8) {
+            throw new IllegalArgumentException("Not a JPEG file");
+        }
+        boolean adobe = false;
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            if ((jpeg[pos] & 0xff) != 0xff) {
+                throw new IllegalArgumentException("Bad JPEG marker at " + pos);
+            }
+            int marker = jpeg[pos + 1] & 0xff;
+            if (marker == 0xff) {
+                pos++; // Fill byte
+                continue;
+            }
+            int len = ((jpeg[pos + 2] & 0xff) << 8) | (jpeg[pos + 3] & 0xff);
+            int seg = pos + 4;
+            if (marker == 0xee && len >= 7 && seg + 5 <= jpeg.length
+                    && jpeg[seg] == 'A' && jpeg[seg + 1] == 'd' && jpeg[seg + 2] == 'o'
+                    && jpeg[seg + 3] == 'b' && jpeg[seg + 4] == 'e') {
+                adobe = true;
+            }
+            // Start of frame, except DHT, JPG and DAC that share the range
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                if (seg + 6 > jpeg.length) {
+                    break;
+                }
+                int bpc = jpeg[seg] & 0xff;
+                int h = ((jpeg[seg + 1] & 0xff) << 8) | (jpeg[seg + 2] & 0xff);
+                int w = ((jpeg[seg + 3] & 0xff) << 8) | (jpeg[seg + 4] & 0xff);
+                int comps = jpeg[seg + 5] & 0xff;
+                if (comps != 1 && comps != 3 && comps != 4) {
+                    throw new IllegalArgumentException("JPEG with " + comps + " components is not supported");
+                }
+                return new RasterImage(JPEG, w, h, null, jpeg, comps, bpc, adobe);
+            }
+            if (marker == 0xda) {
+                break; // Scan data before any frame header
+            }
+            pos += 2 + len;
+        }
+        throw new IllegalArgumentException("No frame header found in JPEG file");
+    }
+
+    private static void checkLength(int length, int width, int height, int perPixel) {
+        if ((long) width * height * perPixel != length) {
+            throw new IllegalArgumentException("Expected " + ((long) width * height * perPixel)
+                    + " pixel values for " + width + "x" + height + ", got " + length);
+        }
+    }
+
+    /**
+     * @return width in pixels, and in points when drawn
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height in pixels, and in points when drawn
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Add the bytes that make up the image to a fingerprint.
+     *
+     * @param fp the fingerprint
+     */
+    void addTo(Fingerprint fp) {
+        fp.add(kind).add(width).add(height);
+        if (pixels != null) {
+            fp.add(pixels);
+        } else {
+            fp.add(data);
+        }
+    }
+
+    /**
+     * Write the image to a HexPDFRecorder log.
+     *
+     * @param out the log
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(kind);
+        if (kind == JPEG) {
+            out.writeInt(data.length);
+            out.write(data);
+            return;
+        }
+        out.writeInt(width);
+        out.writeInt(height);
+        if (pixels != null) {
+            for (int p : pixels) {
+                out.writeInt(p);
+            }
+        } else {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Read an image written by {@link #writeTo(java.io.DataOutputStream)}.
+     *
+     * @param in the log
+     * @return the image
+     * @throws IOException if the image is not valid
+     */
+    static RasterImage readFrom(DataInputStream in) throws IOException {
+        int kind = in.readUnsignedByte();
+        if (kind == JPEG) {
+            byte[] jpeg = new byte[checkSize(in, in.readInt())];
+            in.readFully(jpeg);
+            return jpeg(jpeg);
+        }
+        int w = in.readInt();
+        int h = in.readInt();
+        int perPixel = (kind == GRAY) ? 1 : (kind == RGB) ? 3 : (kind == ARGB) ? 4 : -1;
+        if (perPixel < 0 || w <= 0 || h <= 0) {
+            throw new IOException("Bad image " + kind + " " + w + "x" + h + " in log");
+        }
+        byte[] data = new byte[checkSize(in, (long) w * h * perPixel)];
+        in.readFully(data);
+        if (kind != ARGB) {
+            return new RasterImage(kind, w, h, null, data, perPixel, 8, false);
+        }
+        int[] argb = new int[w * h];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = ((data[4 * i] & 0xff) << 24) | ((data[4 * i + 1] & 0xff) << 16)
+                    | ((data[4 * i + 2] & 0xff) << 8) | (data[4 * i + 3] & 0xff);
+        }
+        return argb(w, h, argb);
+    }
+
+    private static int checkSize(DataInputStream in, long size) throws IOException {
+        if (size < 0 || size > in.available()) {
+            throw new IOException("Log is truncated");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Make the image object for a document.
+     *
+     * @param doc      the document
+     * @param compress false to leave pixels uncompressed for the caller to
+     *                 compress later, though marked as Flate compressed
+     *                 already. JPEG data is always kept as it is.
+     * @return the image
+     * @throws IOException if compression fails
+     */
+    PDImageXObject toImageXObject(PDDocument doc, boolean compress) throws IOException {
+        switch (kind) {
+            case JPEG:
+                return toJPEGObject(doc);
+            case GRAY:
+                return flate(doc, data, 1, PDDeviceGray.INSTANCE, compress);
+            case RGB:
+                return flate(doc, data, 3, PDDeviceRGB.INSTANCE, compress);
+            default:
+                return toARGBObject(doc, compress);
+        }
+    }
+
+    private PDImageXObject toJPEGObject(PDDocument doc) throws IOException {
+        PDColorSpace cs = (components == 1) ? PDDeviceGray.INSTANCE
+                : (components == 3) ? PDDeviceRGB.INSTANCE : PDDeviceCMYK.INSTANCE;
+        PDImageXObject image = new PDImageXObject(doc, new ByteArrayInputStream(data),
+                COSName.DCT_DECODE, width, height, bitsPerComponent, cs);
+        if (components == 4 && adobe) {
+            // Adobe applications write CMYK JPEG files inverted
+            COSArray decode = new COSArray();
+            for (int i = 0; i < 4; i++) {
+                decode.add(COSInteger.ONE);
+                decode.add(COSInteger.ZERO);
+            }
+            image.getCOSObject().setItem(COSName.DECODE, decode);
+        }
+        return image;
+    }
+
+    private PDImageXObject toARGBObject(PDDocument doc, boolean compress) throws IOException {
+        int n = width * height;
+        byte[] rgb = new byte[3 * n];
+        byte[] alpha = null;
+        for (int i = 0; i < n; i++) {
+            int p = pixels[i];
+            rgb[3 * i] = (byte) (p >> 16);
+            rgb[3 * i + 1] = (byte) (p >> 8);
+            rgb[3 * i + 2] = (byte) p;
+            if ((p >>> 24) != 0xff && alpha == null) {
+                // First pixel that is not opaque, all before it were
+                alpha = new byte[n];
+                for (int j = 0; j < i; j++) {
+                    alpha[j] = (byte) 0xff;
+                }
+            }
+            if (alpha != null) {
+                alpha[i] = (byte) (p >>> 24);
+            }
+        }
+        PDImageXObject image = flate(doc, rgb, 3, PDDeviceRGB.INSTANCE, compress);
+        if (alpha != null) {
+            PDImageXObject mask = flate(doc, alpha, 1, PDDeviceGray.INSTANCE, compress);
+            image.getCOSObject().setItem(COSName.SMASK, mask);
+        }
+        return image;
+    }
+
+    private PDImageXObject flate(PDDocument doc, byte[] samples, int comps, PDColorSpace cs, boolean compress)
+            throws IOException {
+        if (!compress) {
+            return new PDImageXObject(doc, new ByteArrayInputStream(samples, 0, width * height * comps),
+                    COSName.FLATE_DECODE, width, height, 8, cs);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(samples.length / 2 + 64);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater, 8192);
+            out.write(samples, 0, width * height * comps);
+            out.finish();
+        } finally {
+            deflater.end();
+        }
+        return new PDImageXObject(doc, new ByteArrayInputStream(bytes.toByteArray()),
+                COSName.FLATE_DECODE, width, height, 8, cs);
+    }
+}
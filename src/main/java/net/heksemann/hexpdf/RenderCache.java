@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+/**
+ * Store of finished documents, keyed by a fingerprint of the calls that made
+ * them.
+ * <p>
+ * When set with {@link HexPDF#setRenderCache(RenderCache)}, a document that
+ * was made with exactly the same calls and arguments as an earlier one is not
+ * saved again, the earlier bytes are written instead. Implementations must be
+ * safe for use from several threads if shared between documents.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see MemoryRenderCache
+ */
+public interface RenderCache {
+
+    /**
+     * Look up a document.
+     *
+     * @param key fingerprint of the document, a hex string
+     * @return the saved document, or null if not cached
+     */
+    byte[] get(String key);
+
+    /**
+     * Store a document.
+     *
+     * @param key fingerprint of the document, a hex string
+     * @param pdf the saved document, must not be changed afterwards
+     */
+    void put(String key, byte[] pdf);
+}
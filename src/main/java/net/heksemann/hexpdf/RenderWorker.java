@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Child process rendering logs for {@link ProcessRenderPool}.
+ * <p>
+ * Reads jobs from standard input and writes results to standard output. A job
+ * is a log length as a 32 bit integer followed by the log, a negative length
+ * ends the process. The result is any number of data frames
+ * (<code>'D'</code>, length, bytes) holding the document as it is saved,
+ * followed by <code>'K'</code> when done or <code>'E'</code> and a message
+ * if the job failed. Anything printed to <code>System.out</code> goes to
+ * standard error, to keep standard output for results. The precomputed
+ * {@link StandardFontMetrics} are used for the Standard 14 fonts.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public final class RenderWorker {
+
+    static final int DATA = 'D';
+    static final int DONE = 'K';
+    static final int ERROR = 'E';
+    static final int FRAME_SIZE = 64 * 1024;
+
+    private RenderWorker() {
+    }
+
+    /**
+     * Serve jobs until standard input is closed.
+     *
+     * @param args not used
+     * @throws IOException if the parent process cannot be reached
+     */
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), FRAME_SIZE + 8));
+        System.setOut(System.err);
+        // Children never render pages to images, so skip the system font scan
+        try {
+            StandardFontMetrics.install();
+        } catch (IOException ex) {
+            Logger.getLogger(RenderWorker.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        while (true) {
+            int len;
+            try {
+                len = in.readInt();
+            } catch (EOFException ex) {
+                return;
+            }
+            if (len < 0) {
+                return;
+            }
+            byte[] log = new byte[len];
+            in.readFully(log);
+
+            try {
+                HexPDF doc = new HexPDF();
+                try {
+                    HexPDFReplayer.replay(log, doc);
+                    // Not finish, which only logs errors: a failed save must
+                    // be reported as an error, not as a finished document
+                    doc.writeDocument(new BufferedOutputStream(new FrameOutputStream(out), FRAME_SIZE));
+                } finally {
+                    doc.close();
+                }
+                out.writeByte(DONE);
+            } catch (OutOfMemoryError err) {
+                // The heap may be in any state, report and let the pool start a new process
+                out.writeByte(ERROR);
+                out.writeUTF("Out of memory");
+                out.flush();
+                System.exit(2);
+            } catch (Exception ex) {
+                out.writeByte(ERROR);
+                String msg = ex.toString();
+                out.writeUTF(msg.length() > 1000 ? msg.substring(0, 1000) : msg);
+            }
+            out.flush();
+        }
+    }
+
+    // Writes blocks as data frames of at most FRAME_SIZE, closing does not close the target
+    private static final class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+
+        FrameOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, FRAME_SIZE);
+                out.writeByte(DATA);
+                out.writeInt(n);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Encoded images shared by any number of documents and threads.
+ * <p>
+ * An image set on a PDF document belongs to that document, so documents made
+ * one after another would normally load and encode the same logo again and
+ * again. When set with {@link HexPDF#setSharedImages(SharedImages)}, each
+ * {@link ImageSource} is loaded and encoded once, by the first document that
+ * draws it. Other documents embed a copy of the encoded bytes, without
+ * decoding or encoding the image.</p>
+ * <p>
+ * Images are kept until {@link #clear()} is called, so use this for images
+ * that recur across documents, such as logos and signatures.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see HexPDFBatch
+ */
+public class SharedImages {
+
+    private final ConcurrentMap<ImageSource, Future<Encoded>> images
+            = new ConcurrentHashMap<ImageSource, Future<Encoded>>();
+
+    /**
+     * Returns the number of images held.
+     *
+     * @return number of encoded images
+     */
+    public int size() {
+        return images.size();
+    }
+
+    /**
+     * Drop all images. Documents already using them are not affected.
+     */
+    public void clear() {
+        images.clear();
+    }
+
+    /**
+     * Get an image for a document, encoding it if no other document has.
+     *
+     * @param doc        document the image is to be drawn in
+     * @param source     the image
+     * @param prefetcher used to load the image if set, otherwise the image is
+     *                   loaded on the calling thread
+     * @param diskCache  looked up before encoding the image if set
+     * @return image object belonging to doc
+     * @throws IOException if the image cannot be loaded or encoded
+     */
+    PDImageXObject get(final PDDocument doc, final ImageSource source, final ImagePrefetcher prefetcher,
+            final ImageDiskCache diskCache) throws IOException {
+        final PDImageXObject[] own = new PDImageXObject[1];
+        FutureTask<Encoded> task = new FutureTask<Encoded>(new Callable<Encoded>() {
+            @Override
+            public Encoded call() throws IOException {
+                BufferedImage image = (prefetcher != null) ? prefetcher.get(source) : source.load();
+                own[0] = (diskCache != null) ? diskCache.get(doc, image) : JPEGFactory.createFromImage(doc, image);
+                return Encoded.of(own[0]);
+            }
+        });
+        Future<Encoded> existing = images.putIfAbsent(source, task);
+        if (existing == null) {
+            task.run();
+            existing = task;
+        }
+        try {
+            Encoded encoded = existing.get();
+            return (own[0] != null) ? own[0] : encoded.create(doc);
+        } catch (ExecutionException ex) {
+            // Let a later document try again
+            images.remove(source, existing);
+            Throwable cause = ex.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+    // The encoded stream and image properties, independent of any document
+    private static final class Encoded {
+
+        private final byte[] data;
+        private final COSBase filter;
+        private final int width;
+        private final int height;
+        private final int bitsPerComponent;
+        private final PDColorSpace colorSpace;
+        private final Encoded softMask;
+
+        private Encoded(byte[] data, COSBase filter, int width, int height, int bitsPerComponent,
+                PDColorSpace colorSpace, Encoded softMask) {
+            this.data = data;
+            this.filter = filter;
+            this.width = width;
+            this.height = height;
+            this.bitsPerComponent = bitsPerComponent;
+            this.colorSpace = colorSpace;
+            this.softMask = softMask;
+        }
+
+        static Encoded of(PDImageXObject ximage) throws IOException {
+            byte[] data;
+            InputStream in = ximage.getCOSObject().createRawInputStream();
+            try {
+                data = IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+            PDImageXObject mask = ximage.getSoftMask();
+            return new Encoded(data, ximage.getCOSObject().getFilters(), ximage.getWidth(), ximage.getHeight(),
+                    ximage.getBitsPerComponent(), ximage.getColorSpace(),
+                    (mask != null) ? of(mask) : null);
+        }
+
+        PDImageXObject create(PDDocument doc) throws IOException {
+            // Filter arrays are mutable, give each document its own
+            COSBase f = (filter instanceof COSArray) ? copy((COSArray) filter) : filter;
+            PDImageXObject ximage = new PDImageXObject(doc, new ByteArrayInputStream(data), f,
+                    width, height, bitsPerComponent, colorSpace);
+            if (softMask != null) {
+                ximage.getCOSObject().setItem(COSName.SMASK, softMask.create(doc));
+            }
+            return ximage;
+        }
+
+        private static COSArray copy(COSArray array) {
+            COSArray copy = new COSArray();
+            copy.addAll(array);
+            return copy;
+        }
+    }
+}
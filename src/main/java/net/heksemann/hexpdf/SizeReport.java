@@ -0,0 +1,789 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What the bytes of a saved PDF document are spent on.
+ * <p>
+ * The file is parsed and each object is measured where it is in the file.
+ * Objects are counted as content streams, images, fonts, page dictionaries
+ * or other objects by how the pages use them, and everything between the
+ * objects, such as cross-reference tables and trailers, as cross-reference
+ * data. Objects packed in object streams get a share of the object stream
+ * by their size before compression. Content streams are also checked for
+ * operators that set what is already set.</p>
+ * <p>
+ * Made by {@link HexPDF#finishWithReport(java.io.OutputStream)}, or from
+ * any saved document with {@link #analyse(byte[])}. The report can be used
+ * to keep documents within a size budget, and printed for a person to
+ * read.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     SizeReport report = doc.finishWithReport(out);
+ *     if (report.getImageBytes() &gt; 5000000) {
+ *         log.warning(report.toString());
+ *     }
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public class SizeReport {
+
+    // Categories, in the order they take precedence when an object is used
+    // in several ways
+    private static final int OTHER = 0;
+    private static final int PAGE = 1;
+    private static final int CONTENT = 2;
+    private static final int FONT = 3;
+    private static final int IMAGE = 4;
+    private static final int XREF = 5;
+
+    private static final byte[] ENDOBJ = "endobj".getBytes(StandardCharsets.ISO_8859_1);
+
+    // Operators that set a part of the graphics state, by the part they set
+    private static final Map<String, String> STATE_PARTS = new HashMap<String, String>();
+    // Value of each part at the start of a page
+    private static final Map<String, String> INITIAL_STATE = new HashMap<String, String>();
+
+    static {
+        for (String op : new String[]{"Tc", "Tw", "Tz", "TL", "Ts", "Tr", "w", "J", "j", "M", "d", "ri", "i", "gs"}) {
+            STATE_PARTS.put(op, op);
+        }
+        STATE_PARTS.put("Tf", "font");
+        for (String op : new String[]{"g", "rg", "k", "sc", "scn"}) {
+            STATE_PARTS.put(op, "fill");
+        }
+        for (String op : new String[]{"G", "RG", "K", "SC", "SCN"}) {
+            STATE_PARTS.put(op, "stroke");
+        }
+        STATE_PARTS.put("cs", "fillSpace");
+        STATE_PARTS.put("CS", "strokeSpace");
+        INITIAL_STATE.put("Tc", "Tc 0.0");
+        INITIAL_STATE.put("Tw", "Tw 0.0");
+        INITIAL_STATE.put("Tz", "Tz 100.0");
+        INITIAL_STATE.put("TL", "TL 0.0");
+        INITIAL_STATE.put("Ts", "Ts 0.0");
+        INITIAL_STATE.put("Tr", "Tr 0.0");
+        INITIAL_STATE.put("w", "w 1.0");
+        INITIAL_STATE.put("J", "J 0.0");
+        INITIAL_STATE.put("j", "j 0.0");
+        INITIAL_STATE.put("M", "M 10.0");
+    }
+
+    private final long totalBytes;
+    private final long[] bytes = new long[XREF + 1];
+    private final List<Image> images;
+    private final long[] pageBytes;
+    private final Map<String, Integer> redundant;
+
+    private SizeReport(long totalBytes, long[] bytes, List<Image> images, long[] pageBytes,
+            Map<String, Integer> redundant) {
+        this.totalBytes = totalBytes;
+        System.arraycopy(bytes, 0, this.bytes, 0, this.bytes.length);
+        this.images = Collections.unmodifiableList(images);
+        this.pageBytes = pageBytes;
+        this.redundant = Collections.unmodifiableMap(redundant);
+    }
+
+    /**
+     * Analyse a saved document.
+     *
+     * @param pdf the document
+     * @return the report
+     * @throws IOException if the document cannot be parsed
+     */
+    public static SizeReport analyse(byte[] pdf) throws IOException {
+        PDDocument doc = PDDocument.load(pdf);
+        try {
+            return new Analyser(pdf, doc).analyse();
+        } finally {
+            doc.close();
+        }
+    }
+
+    /**
+     * Analyse a saved document.
+     *
+     * @param file the document
+     * @return the report
+     * @throws IOException if the document cannot be read or parsed
+     */
+    public static SizeReport analyse(Path file) throws IOException {
+        return analyse(Files.readAllBytes(file));
+    }
+
+    /**
+     * @return size of the document in bytes
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return bytes of page content streams and form XObjects
+     */
+    public long getContentStreamBytes() {
+        return bytes[CONTENT];
+    }
+
+    /**
+     * @return bytes of images, with their soft masks
+     */
+    public long getImageBytes() {
+        return bytes[IMAGE];
+    }
+
+    /**
+     * @return bytes of fonts: dictionaries, widths, descriptors and
+     * embedded font files
+     */
+    public long getFontBytes() {
+        return bytes[FONT];
+    }
+
+    /**
+     * @return bytes of page dictionaries and their resource dictionaries
+     */
+    public long getPageDictionaryBytes() {
+        return bytes[PAGE];
+    }
+
+    /**
+     * @return bytes of cross-reference tables and streams, trailers and the
+     * file header
+     */
+    public long getXrefBytes() {
+        return bytes[XREF];
+    }
+
+    /**
+     * @return bytes of all other objects, such as the catalog, the page
+     * tree, annotations and graphics states
+     */
+    public long getOtherBytes() {
+        return bytes[OTHER];
+    }
+
+    /**
+     * @return the images in the document, largest first
+     */
+    public List<Image> getImages() {
+        return images;
+    }
+
+    /**
+     * @return number of pages
+     */
+    public int getNumberOfPages() {
+        return pageBytes.length;
+    }
+
+    /**
+     * Bytes spent on a page: the page dictionary, and the objects it uses,
+     * with objects used by several pages shared evenly between them.
+     *
+     * @param page page number, starting at 1
+     * @return bytes of the page
+     */
+    public long getPageBytes(int page) {
+        return pageBytes[page - 1];
+    }
+
+    /**
+     * The pages with the most bytes.
+     *
+     * @param n number of pages wanted
+     * @return page numbers, starting at 1, heaviest first
+     * @see #getPageBytes(int)
+     */
+    public List<Integer> getHeaviestPages(int n) {
+        List<Integer> pages = new ArrayList<Integer>(pageBytes.length);
+        for (int i = 1; i <= pageBytes.length; i++) {
+            pages.add(i);
+        }
+        Collections.sort(pages, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Long.compare(pageBytes[b - 1], pageBytes[a - 1]);
+                return (c != 0) ? c : Integer.compare(a, b);
+            }
+        });
+        return pages.subList(0, Math.min(n, pages.size()));
+    }
+
+    /**
+     * Operators in content streams that set a part of the graphics state to
+     * what it is already, by operator. Empty <code>q Q</code> and
+     * <code>BT ET</code> pairs are counted as "q Q" and "BT ET".
+     *
+     * @return number of redundant operators, by operator
+     */
+    public Map<String, Integer> getRedundantOperators() {
+        return redundant;
+    }
+
+    /**
+     * @return number of redundant operators in all
+     * @see #getRedundantOperators()
+     */
+    public int getRedundantOperatorCount() {
+        int count = 0;
+        for (int n : redundant.values()) {
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * The report as text, with the ten largest images and the ten heaviest
+     * pages.
+     *
+     * @return the report
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("%,d bytes, %d pages%n", totalBytes, pageBytes.length));
+        line(s, "Content streams", bytes[CONTENT]);
+        line(s, "Images", bytes[IMAGE]);
+        line(s, "Fonts", bytes[FONT]);
+        line(s, "Page dictionaries", bytes[PAGE]);
+        line(s, "Cross-reference", bytes[XREF]);
+        line(s, "Other", bytes[OTHER]);
+        if (!images.isEmpty()) {
+            s.append(String.format("%d images, largest:%n", images.size()));
+            for (Image image : images.subList(0, Math.min(10, images.size()))) {
+                s.append("  ").append(image).append(String.format("%n"));
+            }
+        }
+        s.append("Heaviest pages:");
+        for (int page : getHeaviestPages(10)) {
+            s.append(String.format(" %d (%,d)", page, pageBytes[page - 1]));
+        }
+        s.append(String.format("%nRedundant operators: %d", getRedundantOperatorCount()));
+        for (Map.Entry<String, Integer> entry : redundant.entrySet()) {
+            s.append(String.format(" %s %d", entry.getKey(), entry.getValue()));
+        }
+        return s.append(String.format("%n")).toString();
+    }
+
+    private void line(StringBuilder s, String name, long n) {
+        s.append(String.format("  %-18s %,14d  %5.1f%%%n", name, n, (totalBytes > 0) ? 100.0 * n / totalBytes : 0.0));
+    }
+
+    /**
+     * Print the report of each document given.
+     *
+     * @param args paths of the documents
+     * @throws IOException if a document cannot be read or parsed
+     */
+    public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            System.out.println(arg);
+            System.out.println(analyse(Paths.get(arg)));
+        }
+    }
+
+    /**
+     * An image in the document.
+     */
+    public static final class Image {
+
+        private final int objectNumber;
+        private final long bytes;
+        private final int width;
+        private final int height;
+        private final int bitsPerComponent;
+        private final String filter;
+        private final String colorSpace;
+        private final boolean softMask;
+
+        Image(int objectNumber, long bytes, int width, int height, int bitsPerComponent, String filter,
+                String colorSpace, boolean softMask) {
+            this.objectNumber = objectNumber;
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+            this.bitsPerComponent = bitsPerComponent;
+            this.filter = filter;
+            this.colorSpace = colorSpace;
+            this.softMask = softMask;
+        }
+
+        /**
+         * @return object number of the image in the document
+         */
+        public int getObjectNumber() {
+            return objectNumber;
+        }
+
+        /**
+         * @return bytes of the image object, without its soft mask
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return width in pixels
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return height in pixels
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return bits per color component
+         */
+        public int getBitsPerComponent() {
+            return bitsPerComponent;
+        }
+
+        /**
+         * @return the encoding, such as "DCTDecode", or "none"
+         */
+        public String getFilter() {
+            return filter;
+        }
+
+        /**
+         * @return name of the color space, such as "DeviceRGB"
+         */
+        public String getColorSpace() {
+            return colorSpace;
+        }
+
+        /**
+         * @return true if this is the soft mask of another image
+         */
+        public boolean isSoftMask() {
+            return softMask;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("object %d: %dx%d %s %s %d bpc%s, %,d bytes", objectNumber, width, height, filter,
+                    colorSpace, bitsPerComponent, softMask ? " soft mask" : "", bytes);
+        }
+    }
+
+    // Works out the report for one document
+    private static final class Analyser {
+
+        private final byte[] pdf;
+        private final PDDocument doc;
+        private final Map<COSBase, Integer> numbers = new IdentityHashMap<COSBase, Integer>();
+        private final Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+        private final Map<Integer, Integer> categories = new HashMap<Integer, Integer>();
+        private final Map<Integer, Image> images = new HashMap<Integer, Image>();
+        private final Map<COSBase, Boolean> forms = new IdentityHashMap<COSBase, Boolean>();
+        private final Map<String, Integer> redundant = new TreeMap<String, Integer>();
+        private long structure;
+
+        Analyser(byte[] pdf, PDDocument doc) {
+            this.pdf = pdf;
+            this.doc = doc;
+        }
+
+        SizeReport analyse() throws IOException {
+            measure();
+
+            int numPages = doc.getNumberOfPages();
+            List<List<Integer>> pageObjects = new ArrayList<List<Integer>>(numPages);
+            Map<Integer, Integer> users = new HashMap<Integer, Integer>();
+            for (PDPage page : doc.getPages()) {
+                COSDictionary dict = page.getCOSObject();
+                classify(dict, PAGE);
+                COSBase contents = dict.getDictionaryObject(COSName.CONTENTS);
+                if (contents instanceof COSArray) {
+                    for (int i = 0; i < ((COSArray) contents).size(); i++) {
+                        classify(((COSArray) contents).getObject(i), CONTENT);
+                    }
+                } else {
+                    classify(contents, CONTENT);
+                }
+                resources(page.getResources() != null ? page.getResources().getCOSObject() : null);
+                countRedundant(new PDFStreamParser(page));
+
+                List<Integer> objects = reach(dict);
+                pageObjects.add(objects);
+                for (int number : objects) {
+                    Integer n = users.get(number);
+                    users.put(number, (n == null) ? 1 : n + 1);
+                }
+            }
+
+            long[] pageBytes = new long[numPages];
+            for (int i = 0; i < numPages; i++) {
+                double total = 0;
+                for (int number : pageObjects.get(i)) {
+                    total += (double) size(number) / users.get(number);
+                }
+                pageBytes[i] = Math.round(total);
+            }
+
+            long[] bytes = new long[XREF + 1];
+            bytes[XREF] = structure;
+            for (Map.Entry<Integer, Long> entry : sizes.entrySet()) {
+                Integer category = categories.get(entry.getKey());
+                bytes[(category != null) ? category : OTHER] += entry.getValue();
+            }
+            List<Image> list = new ArrayList<Image>();
+            for (Image image : images.values()) {
+                list.add(new Image(image.objectNumber, size(image.objectNumber), image.width, image.height,
+                        image.bitsPerComponent, image.filter, image.colorSpace, image.softMask));
+            }
+            Collections.sort(list, new Comparator<Image>() {
+                @Override
+                public int compare(Image a, Image b) {
+                    int c = Long.compare(b.bytes, a.bytes);
+                    return (c != 0) ? c : Integer.compare(a.objectNumber, b.objectNumber);
+                }
+            });
+            return new SizeReport(pdf.length, bytes, list, pageBytes, redundant);
+        }
+
+        /*
+         * Size of each object: from its offset to the end of its endobj
+         * line, or its share of the object stream it is in. What is left is
+         * counted as structure. Cross-reference streams are structure too.
+         */
+        private void measure() throws IOException {
+            COSDocument cos = doc.getDocument();
+            Map<COSObjectKey, Long> xref = cos.getXrefTable();
+            TreeMap<Long, Integer> offsets = new TreeMap<Long, Integer>();
+            Map<Integer, List<Integer>> packed = new HashMap<Integer, List<Integer>>();
+            for (Map.Entry<COSObjectKey, Long> entry : xref.entrySet()) {
+                int number = (int) entry.getKey().getNumber();
+                long offset = entry.getValue();
+                if (offset > 0) {
+                    offsets.put(offset, number);
+                } else if (offset < 0) {
+                    // In an object stream, the offset is the stream number
+                    int stream = (int) -offset;
+                    if (!packed.containsKey(stream)) {
+                        packed.put(stream, new ArrayList<Integer>());
+                    }
+                    packed.get(stream).add(number);
+                }
+                COSObject obj = cos.getObjectFromPool(entry.getKey());
+                if (obj.getObject() != null) {
+                    numbers.put(obj.getObject(), number);
+                }
+            }
+
+            long measured = 0;
+            for (Map.Entry<Long, Integer> entry : offsets.entrySet()) {
+                long start = entry.getKey();
+                Long next = offsets.higherKey(start);
+                long end = endOfObject((int) start, (next != null) ? next.intValue() : pdf.length);
+                sizes.put(entry.getValue(), end - start);
+                measured += end - start;
+                COSBase obj = cos.getObjectFromPool(new COSObjectKey(entry.getValue(), 0)).getObject();
+                if (obj instanceof COSDictionary
+                        && COSName.XREF.equals(((COSDictionary) obj).getCOSName(COSName.TYPE))) {
+                    categories.put(entry.getValue(), XREF);
+                }
+            }
+            structure = pdf.length - measured;
+
+            for (Map.Entry<Integer, List<Integer>> entry : packed.entrySet()) {
+                Long size = sizes.remove(entry.getKey());
+                if (size != null) {
+                    share(entry.getKey(), size, entry.getValue());
+                }
+            }
+        }
+
+        // End of an object, after the last endobj and line end before the limit
+        private long endOfObject(int start, int limit) {
+            for (int i = limit - ENDOBJ.length; i >= start; i--) {
+                int k = 0;
+                while (k < ENDOBJ.length && pdf[i + k] == ENDOBJ[k]) {
+                    k++;
+                }
+                if (k == ENDOBJ.length) {
+                    int end = i + k;
+                    while (end < limit && (pdf[end] == '\r' || pdf[end] == '\n')) {
+                        end++;
+                    }
+                    return end;
+                }
+            }
+            return limit;
+        }
+
+        // Share the size of an object stream by the size of each object in it
+        private void share(int stream, long size, List<Integer> members) throws IOException {
+            Map<Integer, Long> raw = new HashMap<Integer, Long>();
+            long total = 0;
+            COSBase obj = doc.getDocument().getObjectFromPool(new COSObjectKey(stream, 0)).getObject();
+            if (obj instanceof COSStream) {
+                COSStream objStm = (COSStream) obj;
+                int n = objStm.getInt(COSName.N);
+                int first = objStm.getInt(COSName.FIRST);
+                byte[] data;
+                InputStream in = objStm.createInputStream();
+                try {
+                    data = IOUtils.toByteArray(in);
+                } finally {
+                    in.close();
+                }
+                String[] header = new String(data, 0, Math.min(first, data.length), StandardCharsets.ISO_8859_1)
+                        .trim().split("\\s+");
+                for (int i = 0; i < n && 2 * i + 1 < header.length; i++) {
+                    long start = Long.parseLong(header[2 * i + 1]);
+                    long end = (2 * i + 3 < header.length) ? Long.parseLong(header[2 * i + 3]) : data.length - first;
+                    raw.put(Integer.parseInt(header[2 * i]), end - start);
+                    total += end - start;
+                }
+            }
+            // Shares by running sums, so that they add up to the whole stream
+            long sum = 0;
+            long given = 0;
+            for (int i = 0; i < members.size(); i++) {
+                Long r = raw.get(members.get(i));
+                sum += (total > 0 && r != null) ? r : 0;
+                long upTo = (i == members.size() - 1) ? size
+                        : (total > 0) ? size * sum / total : size * (i + 1) / members.size();
+                sizes.put(members.get(i), upTo - given);
+                given = upTo;
+            }
+        }
+
+        private long size(int number) {
+            Long size = sizes.get(number);
+            return (size != null) ? size : 0;
+        }
+
+        // Note the category of an object, unless it is used in a weightier way
+        private void classify(COSBase obj, int category) {
+            Integer number = numbers.get(deref(obj));
+            if (number == null) {
+                return;
+            }
+            Integer old = categories.get(number);
+            if (old == null || old < category) {
+                categories.put(number, category);
+            }
+        }
+
+        // Classify an object and all it refers to, not going into pages
+        private void classifyAll(COSBase obj, int category) {
+            for (int number : reach(deref(obj))) {
+                Integer old = categories.get(number);
+                if (old == null || old < category) {
+                    categories.put(number, category);
+                }
+            }
+        }
+
+        private void resources(COSDictionary resources) throws IOException {
+            if (resources == null) {
+                return;
+            }
+            classify(resources, PAGE);
+            COSBase fonts = resources.getDictionaryObject(COSName.FONT);
+            if (fonts instanceof COSDictionary) {
+                classify(fonts, PAGE);
+                for (COSBase font : ((COSDictionary) fonts).getValues()) {
+                    classifyAll(font, FONT);
+                }
+            }
+            COSBase xobjects = resources.getDictionaryObject(COSName.XOBJECT);
+            if (xobjects instanceof COSDictionary) {
+                classify(xobjects, PAGE);
+                for (COSBase value : ((COSDictionary) xobjects).getValues()) {
+                    COSBase xobject = deref(value);
+                    if (!(xobject instanceof COSStream)) {
+                        continue;
+                    }
+                    COSStream stream = (COSStream) xobject;
+                    if (COSName.IMAGE.equals(stream.getCOSName(COSName.SUBTYPE))) {
+                        image(stream, false);
+                    } else if (!forms.containsKey(stream)) {
+                        forms.put(stream, Boolean.TRUE);
+                        classify(stream, CONTENT);
+                        COSBase formResources = stream.getDictionaryObject(COSName.RESOURCES);
+                        resources((formResources instanceof COSDictionary) ? (COSDictionary) formResources : null);
+                        countRedundant(new PDFStreamParser(new PDFormXObject(stream)));
+                    }
+                }
+            }
+        }
+
+        private void image(COSStream stream, boolean softMask) {
+            Integer number = numbers.get(stream);
+            if (number == null || images.containsKey(number)) {
+                return;
+            }
+            classify(stream, IMAGE);
+            COSBase filter = stream.getFilters();
+            if (filter instanceof COSArray && ((COSArray) filter).size() > 0) {
+                filter = ((COSArray) filter).getObject(0);
+            }
+            COSBase colorSpace = stream.getDictionaryObject(COSName.COLORSPACE);
+            if (colorSpace instanceof COSArray && ((COSArray) colorSpace).size() > 0) {
+                colorSpace = ((COSArray) colorSpace).getObject(0);
+            }
+            images.put(number, new Image(number, 0, stream.getInt(COSName.WIDTH), stream.getInt(COSName.HEIGHT),
+                    stream.getInt(COSName.BITS_PER_COMPONENT),
+                    (filter instanceof COSName) ? ((COSName) filter).getName() : "none",
+                    (colorSpace instanceof COSName) ? ((COSName) colorSpace).getName() : "none", softMask));
+            COSBase mask = stream.getDictionaryObject(COSName.SMASK);
+            if (mask instanceof COSStream) {
+                image((COSStream) mask, true);
+            }
+        }
+
+        // Numbers of the objects reached from an object, not going into pages
+        private List<Integer> reach(COSBase start) {
+            List<Integer> reached = new ArrayList<Integer>();
+            Map<COSBase, Boolean> seen = new IdentityHashMap<COSBase, Boolean>();
+            Deque<COSBase> todo = new ArrayDeque<COSBase>();
+            todo.add(start);
+            seen.put(start, Boolean.TRUE);
+            while (!todo.isEmpty()) {
+                COSBase obj = todo.poll();
+                Integer number = numbers.get(obj);
+                if (number != null) {
+                    reached.add(number);
+                }
+                List<COSBase> refs = new ArrayList<COSBase>();
+                ObjectWriter.references(obj, refs);
+                for (COSBase ref : refs) {
+                    if (!seen.containsKey(ref) && !isPageTree(ref)) {
+                        seen.put(ref, Boolean.TRUE);
+                        todo.add(ref);
+                    }
+                }
+            }
+            return reached;
+        }
+
+        /*
+         * Count operators setting a part of the graphics state to what it
+         * is already. The state is saved and restored by q and Q.
+         */
+        private void countRedundant(PDFStreamParser parser) throws IOException {
+            parser.parse();
+            Map<String, String> state = new HashMap<String, String>(INITIAL_STATE);
+            Deque<Map<String, String>> saved = new ArrayDeque<Map<String, String>>();
+            StringBuilder operands = new StringBuilder();
+            String previous = null;
+            for (Object token : parser.getTokens()) {
+                if (!(token instanceof Operator)) {
+                    operands.append(' ').append((token instanceof COSNumber)
+                            ? Float.toString(((COSNumber) token).floatValue()) : String.valueOf(token));
+                    continue;
+                }
+                String op = ((Operator) token).getName();
+                String part = STATE_PARTS.get(op);
+                if (part != null) {
+                    String value = op + operands;
+                    if (value.equals(state.get(part))) {
+                        count(op);
+                    } else {
+                        state.put(part, value);
+                        // A new color space resets the color, and a color
+                        // operator of another color space sets the space
+                        if ("fillSpace".equals(part)) {
+                            state.remove("fill");
+                        } else if ("strokeSpace".equals(part)) {
+                            state.remove("stroke");
+                        } else if ("fill".equals(part) && !op.startsWith("sc")) {
+                            state.remove("fillSpace");
+                        } else if ("stroke".equals(part) && !op.startsWith("SC")) {
+                            state.remove("strokeSpace");
+                        }
+                    }
+                } else if ("q".equals(op)) {
+                    saved.push(new HashMap<String, String>(state));
+                } else if ("Q".equals(op)) {
+                    if ("q".equals(previous)) {
+                        count("q Q");
+                    }
+                    if (!saved.isEmpty()) {
+                        state = saved.pop();
+                    }
+                } else if ("ET".equals(op) && "BT".equals(previous)) {
+                    count("BT ET");
+                }
+                previous = op;
+                operands.setLength(0);
+            }
+        }
+
+        private void count(String op) {
+            Integer n = redundant.get(op);
+            redundant.put(op, (n == null) ? 1 : n + 1);
+        }
+
+        private static COSBase deref(COSBase obj) {
+            return (obj instanceof COSObject) ? ((COSObject) obj).getObject() : obj;
+        }
+
+        private static boolean isPageTree(COSBase obj) {
+            if (!(obj instanceof COSDictionary)) {
+                return false;
+            }
+            COSBase type = ((COSDictionary) obj).getDictionaryObject(COSName.TYPE);
+            return COSName.PAGE.equals(type) || COSName.PAGES.equals(type);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.fontbox.FontBoxFont;
+import org.apache.fontbox.afm.AFMParser;
+import org.apache.fontbox.afm.CharMetric;
+import org.apache.fontbox.afm.FontMetrics;
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.fontbox.util.BoundingBox;
+import org.apache.pdfbox.pdmodel.font.CIDFontMapping;
+import org.apache.pdfbox.pdmodel.font.FontMapper;
+import org.apache.pdfbox.pdmodel.font.FontMappers;
+import org.apache.pdfbox.pdmodel.font.FontMapping;
+import org.apache.pdfbox.pdmodel.font.PDCIDSystemInfo;
+import org.apache.pdfbox.pdmodel.font.PDFontDescriptor;
+
+import java.awt.geom.GeneralPath;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed metrics of the Standard 14 fonts, for a faster cold start.
+ * <p>
+ * The first time a Standard 14 font is used, PDFBox looks for a matching font
+ * program on the system, to have glyph outlines for rendering pages to
+ * images. This means scanning the system fonts and parsing a fallback
+ * TrueType font, which takes a good part of the time to the first document in
+ * a new JVM. HexPDF never renders pages to images and only needs the names,
+ * widths and bounding boxes of the glyphs, so these are read from a small
+ * binary table made at build time instead.</p>
+ * <p>
+ * {@link #install()} makes PDFBox use the table for the Standard 14 fonts.
+ * Other fonts are mapped as usual. It must be called before any PDFBox font
+ * is used, and affects all of PDFBox in the JVM: Standard 14 fonts are
+ * drawn without glyphs if pages are rendered to images afterwards. PDFBox
+ * still parses its own AFM files for the widths written to the document, so
+ * text is measured the same with or without the table. Only whether a glyph
+ * exists is told by the table, and for the Standard 14 fonts the table is
+ * more accurate than the fallback font PDFBox would otherwise use.</p>
+ * <p>
+ * The table is made by running this class with the output file as argument,
+ * done by the <code>startup</code> build profile.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public final class StandardFontMetrics {
+
+    static final String RESOURCE = "standard14.metrics";
+    private static final int MAGIC = 0x4858464d; // "HXFM"
+    private static final int VERSION = 1;
+    private static final String AFM_PATH = "/org/apache/pdfbox/resources/afm/";
+    private static final String[] FONTS = {
+        "Courier", "Courier-Bold", "Courier-Oblique", "Courier-BoldOblique",
+        "Helvetica", "Helvetica-Bold", "Helvetica-Oblique", "Helvetica-BoldOblique",
+        "Times-Roman", "Times-Bold", "Times-Italic", "Times-BoldItalic",
+        "Symbol", "ZapfDingbats"
+    };
+    private static final List<Number> FONT_MATRIX = Collections.unmodifiableList(
+            Arrays.<Number>asList(0.001f, 0f, 0f, 0.001f, 0f, 0f));
+
+    private static Map<String, FontBoxFont> fonts = null;
+    private static boolean installed = false;
+
+    private StandardFontMetrics() {
+    }
+
+    /**
+     * Make PDFBox use the precomputed metrics for the Standard 14 fonts. Does
+     * nothing if called again.
+     *
+     * @throws IOException if the table cannot be read
+     */
+    public static synchronized void install() throws IOException {
+        if (!installed) {
+            FontMappers.set(new Mapper(getFonts()));
+            installed = true;
+        }
+    }
+
+    /**
+     * @return true if {@link #install()} has been called
+     */
+    public static synchronized boolean isInstalled() {
+        return installed;
+    }
+
+    /**
+     * Font with the metrics of a Standard 14 font.
+     *
+     * @param name font name, e.g. <code>Helvetica</code>
+     * @return the font, or null if not a Standard 14 font
+     * @throws IOException if the table cannot be read
+     */
+    static FontBoxFont getFont(String name) throws IOException {
+        return getFonts().get(name);
+    }
+
+    private static synchronized Map<String, FontBoxFont> getFonts() throws IOException {
+        if (fonts == null) {
+            InputStream in = StandardFontMetrics.class.getResourceAsStream(RESOURCE);
+            if (in == null) {
+                throw new IOException("Resource " + RESOURCE + " not found");
+            }
+            try {
+                fonts = read(new DataInputStream(new BufferedInputStream(in)));
+            } finally {
+                in.close();
+            }
+        }
+        return fonts;
+    }
+
+    /*
+     * Layout: magic, version, glyph name count, glyph names, font count, and
+     * for each font its name, bounding box, glyph count and pairs of glyph
+     * name index and width. Glyph names are shared by all fonts.
+     */
+    private static Map<String, FontBoxFont> read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a font metrics table, or wrong version");
+        }
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        int count = in.readInt();
+        Map<String, FontBoxFont> result = new HashMap<String, FontBoxFont>(2 * count);
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            BoundingBox bbox = new BoundingBox(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+            int glyphs = in.readInt();
+            Map<String, Float> widths = new HashMap<String, Float>(2 * glyphs);
+            for (int g = 0; g < glyphs; g++) {
+                widths.put(names[in.readUnsignedShort()], in.readFloat());
+            }
+            result.put(name, new Metrics(name, bbox, widths));
+        }
+        return result;
+    }
+
+    /**
+     * Make the table from the AFM files in PDFBox.
+     *
+     * @param args name of the file to write
+     * @throws IOException if an AFM file cannot be read or the file written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: StandardFontMetrics <output file>");
+            System.exit(1);
+        }
+        List<FontMetrics> metrics = new ArrayList<FontMetrics>();
+        Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+        for (String font : FONTS) {
+            InputStream in = StandardFontMetrics.class.getResourceAsStream(AFM_PATH + font + ".afm");
+            if (in == null) {
+                throw new IOException("No AFM file for " + font);
+            }
+            try {
+                FontMetrics fm = new AFMParser(in).parse(true);
+                for (CharMetric cm : fm.getCharMetrics()) {
+                    if (!names.containsKey(cm.getName())) {
+                        names.put(cm.getName(), names.size());
+                    }
+                }
+                metrics.add(fm);
+            } finally {
+                in.close();
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[0])));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.size());
+            for (String name : names.keySet()) {
+                out.writeUTF(name);
+            }
+            out.writeInt(metrics.size());
+            for (FontMetrics fm : metrics) {
+                BoundingBox bbox = fm.getFontBBox();
+                out.writeUTF(fm.getFontName());
+                out.writeFloat(bbox.getLowerLeftX());
+                out.writeFloat(bbox.getLowerLeftY());
+                out.writeFloat(bbox.getUpperRightX());
+                out.writeFloat(bbox.getUpperRightY());
+                out.writeInt(fm.getCharMetrics().size());
+                for (CharMetric cm : fm.getCharMetrics()) {
+                    out.writeShort(names.get(cm.getName()));
+                    out.writeFloat(cm.getWx());
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Glyph names and widths of a font, without outlines
+    private static final class Metrics implements FontBoxFont {
+
+        private final String name;
+        private final BoundingBox bbox;
+        private final Map<String, Float> widths;
+
+        Metrics(String name, BoundingBox bbox, Map<String, Float> widths) {
+            this.name = name;
+            this.bbox = bbox;
+            this.widths = widths;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public BoundingBox getFontBBox() {
+            return bbox;
+        }
+
+        @Override
+        public List<Number> getFontMatrix() {
+            return FONT_MATRIX;
+        }
+
+        @Override
+        public GeneralPath getPath(String glyph) {
+            return new GeneralPath();
+        }
+
+        @Override
+        public float getWidth(String glyph) {
+            Float w = widths.get(glyph);
+            return (w != null) ? w : 0;
+        }
+
+        @Override
+        public boolean hasGlyph(String glyph) {
+            return widths.containsKey(glyph);
+        }
+    }
+
+    /*
+     * Maps the Standard 14 fonts to the table, and everything else to the
+     * mapper PDFBox would have used. That one is made when first needed,
+     * which is when the system fonts are scanned.
+     */
+    private static final class Mapper implements FontMapper {
+
+        private final Map<String, FontBoxFont> fonts;
+        private FontMapper delegate = null;
+
+        Mapper(Map<String, FontBoxFont> fonts) {
+            this.fonts = fonts;
+        }
+
+        private synchronized FontMapper delegate() {
+            if (delegate == null) {
+                try {
+                    Constructor<?> c = Class.forName("org.apache.pdfbox.pdmodel.font.FontMapperImpl")
+                            .getDeclaredConstructor();
+                    c.setAccessible(true);
+                    delegate = (FontMapper) c.newInstance();
+                } catch (ReflectiveOperationException ex) {
+                    throw new IllegalStateException("Cannot create the PDFBox font mapper", ex);
+                }
+            }
+            return delegate;
+        }
+
+        @Override
+        public FontMapping<TrueTypeFont> getTrueTypeFont(String baseFont, PDFontDescriptor fontDescriptor) {
+            return delegate().getTrueTypeFont(baseFont, fontDescriptor);
+        }
+
+        @Override
+        public FontMapping<FontBoxFont> getFontBoxFont(String baseFont, PDFontDescriptor fontDescriptor) {
+            FontBoxFont font = fonts.get(baseFont);
+            if (font != null) {
+                return new FontMapping<FontBoxFont>(font, false);
+            }
+            return delegate().getFontBoxFont(baseFont, fontDescriptor);
+        }
+
+        @Override
+        public CIDFontMapping getCIDFont(String baseFont, PDFontDescriptor fontDescriptor, PDCIDSystemInfo cidSystemInfo) {
+            return delegate().getCIDFont(baseFont, fontDescriptor, cidSystemInfo);
+        }
+    }
+}
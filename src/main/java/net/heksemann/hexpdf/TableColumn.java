@@ -0,0 +1,487 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single, typed column of table data for use with
+ * {@link HexPDF#drawTable(TableColumn[], float[], int[], int)}.
+ * <p>
+ * Numeric columns keep their values in primitive arrays and format each cell
+ * only when the row is placed on the page, so large numeric tables need not be
+ * boxed and pre-formatted into an <code>Object[][]</code>. Each column carries
+ * its own formatter and caches the measured width of its cells for the font in
+ * use. Numeric cells are measured by adding up precomputed glyph widths rather
+ * than asking the font for the width of every formatted string.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     TableColumn[] columns = {
+ *         TableColumn.of(names).withHeader("Account"),
+ *         TableColumn.of(balances, 2).withHeader("Balance"),
+ *         TableColumn.of(transactions).withHeader("Transactions")
+ *     };
+ *     doc.drawTable(columns,
+ *                   new float[]{200, 100, 100},
+ *                   new int[]{HexPDF.LEFT, HexPDF.RIGHT, HexPDF.RIGHT},
+ *                   HexPDF.CENTER);
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public abstract class TableColumn {
+
+    private static final String NUMERIC_CHARS = "0123456789-+.,E ";
+    private static final long[] POW10 = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    private String header = null;
+
+    // Width cache, valid for one font and font size. Replaced as a whole,
+    // so that rows can be measured on several threads.
+    private Widths widths = null;
+
+    // Last formatted cell. The table is asked for the same row twice, once
+    // when measuring the row and once when placing it. Rows may be measured
+    // on several threads, see HexPDF.setTablePool.
+    private volatile Cell last = null;
+
+    /**
+     * Only subclasses within this package.
+     */
+    TableColumn() {
+    }
+
+    /**
+     * Number of data rows in this column, not counting the header.
+     *
+     * @return number of rows
+     */
+    public abstract int size();
+
+    /**
+     * Returns the formatted text of a cell. Image columns return null.
+     *
+     * @param row row index, zero based
+     * @return the cell text as it will be typeset
+     */
+    public String getText(int row) {
+        Cell cell = last;
+        if (cell == null || cell.row != row) {
+            cell = new Cell(row, format(row));
+            last = cell;
+        }
+        return cell.text;
+    }
+
+    /**
+     * Set a header text to be typeset above the first row of the column.
+     *
+     * @param header column header
+     * @return this column
+     */
+    public TableColumn withHeader(String header) {
+        this.header = header;
+        return this;
+    }
+
+    /**
+     * Returns the header text of this column.
+     *
+     * @return the column header, or null if none is set
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    // Format the given row as text
+    abstract String format(int row);
+
+    // True if every cell is a single word made of NUMERIC_CHARS only
+    boolean isNumeric() {
+        return false;
+    }
+
+    // Image source of the given row, if this is a column of image sources
+    ImageSource imageSource(int row) {
+        return null;
+    }
+
+    // True if the cells come from a user function
+    boolean isSupplied() {
+        return false;
+    }
+
+    // Table cell content for the given row, a String, BufferedImage,
+    // ImageSource or null
+    Object cell(int row) {
+        return (row < size()) ? getText(row) : null;
+    }
+
+    /*
+     * Width in points of a single-line text cell in the given font, or a
+     * negative value if the cell may need word-wrapping and must be laid out
+     * the normal way.
+     */
+    float cellWidth(int row, PDFont font, float fontSize) {
+        if (row >= size()) {
+            return -1;
+        }
+        Widths cache = widths;
+        if (cache == null || cache.font != font || cache.fontSize != fontSize) {
+            cache = new Widths(font, fontSize, size());
+            widths = cache;
+        }
+        float w = cache.cells[row];
+        if (Float.isNaN(w)) {
+            w = measure(getText(row), cache);
+            cache.cells[row] = w;
+        }
+        return w;
+    }
+
+    private float measure(String txt, Widths cache) {
+        if (txt == null) {
+            return -1;
+        }
+        PDFont font = cache.font;
+        float fontSize = cache.fontSize;
+        if (isNumeric()) {
+            float[] charWidths = cache.chars;
+            if (charWidths == null) {
+                charWidths = new float[NUMERIC_CHARS.length()];
+                for (int i = 0; i < charWidths.length; i++) {
+                    charWidths[i] = stringWidth(NUMERIC_CHARS.substring(i, i + 1), font, fontSize);
+                }
+                cache.chars = charWidths;
+            }
+            float w = 0;
+            for (int i = 0; i < txt.length(); i++) {
+                int idx = NUMERIC_CHARS.indexOf(txt.charAt(i));
+                if (idx < 0) {
+                    return stringWidth(txt, font, fontSize);
+                }
+                w += charWidths[idx];
+            }
+            return w;
+        }
+        for (int i = 0; i < txt.length(); i++) {
+            if (Character.isWhitespace(txt.charAt(i))) {
+                return -1;
+            }
+        }
+        return stringWidth(txt, font, fontSize);
+    }
+
+    // Fonts cache glyph widths in plain maps, and may be shared by documents
+    private static float stringWidth(String txt, PDFont font, float fontSize) {
+        try {
+            synchronized (font) {
+                return font.getStringWidth(txt) * fontSize / 1000;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(TableColumn.class.getName()).log(Level.SEVERE, null, ex);
+            return -1;
+        } catch (IllegalArgumentException ex) {
+            // Characters not in the font, laid out with fallback fonts
+            return -1;
+        }
+    }
+
+    // Measured widths of the cells for one font and font size. Entries are
+    // written by whichever thread measures the cell first.
+    private static final class Widths {
+
+        final PDFont font;
+        final float fontSize;
+        final float[] cells;
+        volatile float[] chars = null;
+
+        Widths(PDFont font, float fontSize, int size) {
+            this.font = font;
+            this.fontSize = fontSize;
+            this.cells = new float[size];
+            Arrays.fill(cells, Float.NaN);
+        }
+    }
+
+    private static final class Cell {
+
+        final int row;
+        final String text;
+
+        Cell(int row, String text) {
+            this.row = row;
+            this.text = text;
+        }
+    }
+
+    /*
+     * Append v with a fixed number of decimals. Plain long arithmetic, falls
+     * back to DecimalFormat only for values too large to scale.
+     */
+    static void appendFixed(StringBuilder sb, double v, int decimals) {
+        if (Double.isNaN(v) || Double.isInfinite(v) || Math.abs(v) * POW10[decimals] >= 9e15) {
+            DecimalFormat df = new DecimalFormat();
+            df.setGroupingUsed(false);
+            df.setMinimumFractionDigits(decimals);
+            df.setMaximumFractionDigits(decimals);
+            sb.append(df.format(v));
+            return;
+        }
+        long scaled = Math.round(Math.abs(v) * POW10[decimals]);
+        if (v < 0 && scaled != 0) {
+            sb.append('-');
+        }
+        sb.append(scaled / POW10[decimals]);
+        if (decimals > 0) {
+            sb.append('.');
+            String frac = Long.toString(scaled % POW10[decimals]);
+            for (int i = frac.length(); i < decimals; i++) {
+                sb.append('0');
+            }
+            sb.append(frac);
+        }
+    }
+
+    /**
+     * Create a text column. Text cells are word-wrapped within the column
+     * width.
+     *
+     * @param values cell texts, null cells are left blank
+     * @return a new column
+     */
+    public static TableColumn of(final String[] values) {
+        return new TableColumn() {
+            @Override
+            public int size() {
+                return values.length;
+            }
+
+            @Override
+            String format(int row) {
+                return values[row];
+            }
+        };
+    }
+
+    /**
+     * Create a column of integers.
+     *
+     * @param values cell values
+     * @return a new column
+     */
+    public static TableColumn of(final int[] values) {
+        return new TableColumn() {
+            @Override
+            public int size() {
+                return values.length;
+            }
+
+            @Override
+            String format(int row) {
+                return Integer.toString(values[row]);
+            }
+
+            @Override
+            boolean isNumeric() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Create a column of long integers.
+     *
+     * @param values cell values
+     * @return a new column
+     */
+    public static TableColumn of(final long[] values) {
+        return new TableColumn() {
+            @Override
+            public int size() {
+                return values.length;
+            }
+
+            @Override
+            String format(int row) {
+                return Long.toString(values[row]);
+            }
+
+            @Override
+            boolean isNumeric() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Create a column of decimal numbers typeset with a fixed number of
+     * decimals, e.g. <code>1234.50</code> for two decimals.
+     *
+     * @param values   cell values
+     * @param decimals number of decimal places, 0 to 9
+     * @return a new column
+     */
+    public static TableColumn of(final double[] values, final int decimals) {
+        if (decimals < 0 || decimals >= POW10.length) {
+            throw new IllegalArgumentException("decimals must be between 0 and " + (POW10.length - 1));
+        }
+        return new TableColumn() {
+            @Override
+            public int size() {
+                return values.length;
+            }
+
+            @Override
+            String format(int row) {
+                StringBuilder sb = new StringBuilder(24);
+                appendFixed(sb, values[row], decimals);
+                return sb.toString();
+            }
+
+            @Override
+            boolean isNumeric() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Create a column of decimal numbers formatted by a
+     * <code>java.text.DecimalFormat</code> pattern, e.g.
+     * <code>"#,##0.00"</code>.
+     *
+     * @param values  cell values
+     * @param pattern DecimalFormat pattern
+     * @return a new column
+     * @see DecimalFormat
+     */
+    public static TableColumn of(final double[] values, String pattern) {
+        final DecimalFormat format = new DecimalFormat(pattern);
+        // DecimalFormat is not thread safe, each measuring thread gets a copy
+        final ThreadLocal<DecimalFormat> df = new ThreadLocal<DecimalFormat>() {
+            @Override
+            protected DecimalFormat initialValue() {
+                return (DecimalFormat) format.clone();
+            }
+        };
+        return new TableColumn() {
+            @Override
+            public int size() {
+                return values.length;
+            }
+
+            @Override
+            String format(int row) {
+                return df.get().format(values[row]);
+            }
+
+            @Override
+            boolean isNumeric() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Create a column of images. Each image is requested from the supplier
+     * only when its row is placed on the page, and is not kept by the column.
+     *
+     * @param rows   number of rows
+     * @param images function returning the image for a given row, or null
+     * @return a new column
+     */
+    public static TableColumn of(final int rows, final IntFunction<BufferedImage> images) {
+        return new TableColumn() {
+            private int lastImageRow = -1;
+            private BufferedImage lastImage = null;
+
+            @Override
+            public int size() {
+                return rows;
+            }
+
+            @Override
+            String format(int row) {
+                return null;
+            }
+
+            @Override
+            boolean isSupplied() {
+                return true;
+            }
+
+            // The supplier is asked on one thread at a time, also when rows
+            // are measured on several threads
+            @Override
+            synchronized Object cell(int row) {
+                if (row >= rows) {
+                    return null;
+                }
+                if (row != lastImageRow) {
+                    lastImage = images.apply(row);
+                    lastImageRow = row;
+                }
+                return lastImage;
+            }
+        };
+    }
+
+    /**
+     * Create a column of images that are fetched and decoded only when their
+     * row is placed on the page.
+     *
+     * @param images image sources, null cells are left blank
+     * @return a new column
+     * @see ImagePrefetcher
+     */
+    public static TableColumn of(final ImageSource[] images) {
+        return new TableColumn() {
+            @Override
+            public int size() {
+                return images.length;
+            }
+
+            @Override
+            String format(int row) {
+                return null;
+            }
+
+            @Override
+            ImageSource imageSource(int row) {
+                return (row < images.length) ? images[row] : null;
+            }
+
+            @Override
+            Object cell(int row) {
+                return imageSource(row);
+            }
+        };
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Collects the cell borders of a table and strokes them as one path.
+ * <p>
+ * Adjacent cells share their edges, so drawing four lines per cell draws every
+ * interior edge twice. The grid keeps the horizontal and vertical edges apart,
+ * drops duplicates, joins edges that continue each other into single lines,
+ * and strokes everything with one operator per page.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+final class TableGrid {
+
+    // Edges that are this close are considered to touch
+    private static final float EPSILON = 0.01f;
+
+    // Horizontal edges as (y, x1, x2), vertical edges as (x, ylow, yhigh)
+    private float[] horizontal = new float[3 * 64];
+    private int numHorizontal = 0;
+    private float[] vertical = new float[3 * 64];
+    private int numVertical = 0;
+
+    /**
+     * Add the border of a cell.
+     *
+     * @param x left edge of the cell
+     * @param y top edge of the cell
+     * @param w width of the cell
+     * @param h height of the cell
+     */
+    void addCell(float x, float y, float w, float h) {
+        addHorizontal(y, x, x + w);
+        addHorizontal(y - h, x, x + w);
+        addVertical(x, y - h, y);
+        addVertical(x + w, y - h, y);
+    }
+
+    /**
+     * @return true if no edges have been added since the last stroke
+     */
+    boolean isEmpty() {
+        return numHorizontal == 0 && numVertical == 0;
+    }
+
+    /**
+     * Stroke all edges collected so far as a single path, and start over.
+     *
+     * @param cs content stream of the current page
+     * @throws IOException if writing to the content stream fails
+     */
+    void stroke(PDPageContentStream cs) throws IOException {
+        if (isEmpty()) {
+            return;
+        }
+        writeMerged(cs, horizontal, numHorizontal, true);
+        writeMerged(cs, vertical, numVertical, false);
+        cs.stroke();
+        numHorizontal = 0;
+        numVertical = 0;
+    }
+
+    private void addHorizontal(float y, float x1, float x2) {
+        if (numHorizontal * 3 == horizontal.length) {
+            horizontal = Arrays.copyOf(horizontal, horizontal.length * 2);
+        }
+        int i = numHorizontal++ * 3;
+        horizontal[i] = y;
+        horizontal[i + 1] = x1;
+        horizontal[i + 2] = x2;
+    }
+
+    private void addVertical(float x, float y1, float y2) {
+        if (numVertical * 3 == vertical.length) {
+            vertical = Arrays.copyOf(vertical, vertical.length * 2);
+        }
+        int i = numVertical++ * 3;
+        vertical[i] = x;
+        vertical[i + 1] = y1;
+        vertical[i + 2] = y2;
+    }
+
+    // Sort edges by line and start, then write each run of touching or
+    // overlapping edges on the same line as one segment.
+    private static void writeMerged(PDPageContentStream cs, final float[] edges, int num, boolean horizontal) throws IOException {
+        Integer[] order = new Integer[num];
+        for (int i = 0; i < num; i++) {
+            order[i] = i * 3;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Float.compare(edges[a], edges[b]);
+                return (c != 0) ? c : Float.compare(edges[a + 1], edges[b + 1]);
+            }
+        });
+
+        int i = 0;
+        while (i < num) {
+            float line = edges[order[i]];
+            float start = edges[order[i] + 1];
+            float end = edges[order[i] + 2];
+            i++;
+            while (i < num && Math.abs(edges[order[i]] - line) < EPSILON && edges[order[i] + 1] <= end + EPSILON) {
+                end = Math.max(end, edges[order[i] + 2]);
+                i++;
+            }
+            if (horizontal) {
+                cs.moveTo(start, line);
+                cs.lineTo(end, line);
+            } else {
+                cs.moveTo(line, start);
+                cs.lineTo(line, end);
+            }
+        }
+    }
+}
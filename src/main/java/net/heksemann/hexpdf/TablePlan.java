@@ -0,0 +1,259 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Row heights and page breaks of a table, worked out before the table is
+ * drawn.
+ * <p>
+ * Every row is measured first, on a fork/join pool if the document has one,
+ * since rows are measured independently of each other. The page breaks then
+ * follow from the running sum of the row heights: each page ends with the
+ * last row before the sum passes the space left on the page. Rows are drawn
+ * from the plan afterwards, on the thread drawing the document.</p>
+ * <p>
+ * A plan is made for the cursor position and font at the time, see
+ * {@link HexPDF#planTable(java.lang.Object[][], float[], int[], int)}.
+ * Tables are drawn from a plan only when the document has a table pool,
+ * otherwise rows are measured one by one as they are placed, with the same
+ * page breaks.</p>
+ * <p>
+ * Example usage</p>
+ * <pre>
+ * <code>
+ *     TablePlan plan = doc.planTable(table, widths, flags, HexPDF.CENTER);
+ *     if (plan.getNumberOfPages() &gt; 1) {
+ *         doc.newPage();
+ *     }
+ *     doc.drawTable(table, widths, flags, HexPDF.CENTER);
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public class TablePlan {
+
+    // Rows measured by each fork/join task
+    private static final int ROWS_PER_TASK = 64;
+
+    private final float[] rowHeights;
+    // offsets[i] is the height of rows 0 to i - 1
+    private final double[] offsets;
+    private final int[] firstRows;
+    private final int[] lastRows;
+    private final boolean breakAtEnd;
+
+    private TablePlan(float[] rowHeights, double[] offsets, int[] firstRows, int[] lastRows, boolean breakAtEnd) {
+        this.rowHeights = rowHeights;
+        this.offsets = offsets;
+        this.firstRows = firstRows;
+        this.lastRows = lastRows;
+        this.breakAtEnd = breakAtEnd;
+    }
+
+    /**
+     * @return number of rows, including empty rows
+     */
+    public int getNumberOfRows() {
+        return rowHeights.length;
+    }
+
+    /**
+     * @param row row index, zero based
+     * @return height of the row, zero for empty rows
+     */
+    public float getRowHeight(int row) {
+        return rowHeights[row];
+    }
+
+    /**
+     * @return height of all rows together, as if on one page
+     */
+    public double getTotalHeight() {
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * @return number of pages the table is drawn on
+     */
+    public int getNumberOfPages() {
+        return firstRows.length;
+    }
+
+    /**
+     * @param page page of the table, zero based
+     * @return the first row drawn on the page
+     */
+    public int getFirstRow(int page) {
+        return firstRows[page];
+    }
+
+    /**
+     * @param page page of the table, zero based
+     * @return the last row drawn on the page
+     */
+    public int getLastRow(int page) {
+        return lastRows[page];
+    }
+
+    /**
+     * @param page page of the table, zero based
+     * @return height of the rows drawn on the page
+     */
+    public float getPageHeight(int page) {
+        return (float) (offsets[lastRows[page] + 1] - offsets[firstRows[page]]);
+    }
+
+    /**
+     * @param row row index, zero based
+     * @return page of the table the row is drawn on, zero based
+     */
+    public int getPage(int row) {
+        if (row < 0 || row >= rowHeights.length) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + rowHeights.length);
+        }
+        int page = Arrays.binarySearch(firstRows, row);
+        return (page >= 0) ? page : Math.max(0, -page - 2);
+    }
+
+    // True if a new page is started after drawing the row
+    boolean isBreakAfter(int row) {
+        int page = Arrays.binarySearch(lastRows, row);
+        return page >= 0 && (page < lastRows.length - 1 || breakAtEnd);
+    }
+
+    /*
+     * Measure the rows and place the page breaks. A new page is started
+     * after a row if the next row would go below the bottom of the page.
+     * Empty rows take no space, and a page always gets at least one row.
+     */
+    static TablePlan plan(TableRows rows, float[] widths, int[] flags, float x, TextMetrics metrics,
+            float firstPage, float fullPage, ForkJoinPool pool) {
+        int n = rows.size();
+        float[] heights = new float[n];
+        Measure measure = new Measure(rows, widths, flags, x, metrics, heights, 0, n);
+        if (pool != null && n > ROWS_PER_TASK) {
+            pool.invoke(measure);
+        } else {
+            measure.compute();
+        }
+
+        double[] offsets = new double[n + 1];
+        int[] next = new int[n + 1];
+        next[n] = n;
+        for (int row = 0; row < n; row++) {
+            offsets[row + 1] = offsets[row] + heights[row];
+        }
+        for (int row = n - 1; row >= 0; row--) {
+            next[row] = rows.isEmpty(row) ? next[row + 1] : row;
+        }
+
+        int[] firstRows = new int[8];
+        int[] lastRows = new int[8];
+        int pages = 0;
+        boolean breakAtEnd = false;
+        int first = next[0];
+        float space = firstPage;
+        while (first < n) {
+            // First row after which the next row does not fit
+            int lo = first;
+            int hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (offsets[Math.min(mid + 2, n)] - offsets[first] > space) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            // Empty rows take no space, the page ends with the row before them
+            int last = lo;
+            while (last < n && rows.isEmpty(last)) {
+                last--;
+            }
+            if (pages == firstRows.length) {
+                firstRows = Arrays.copyOf(firstRows, 2 * pages);
+                lastRows = Arrays.copyOf(lastRows, 2 * pages);
+            }
+            firstRows[pages] = first;
+            if (lo == n) {
+                lastRows[pages++] = lastRow(rows, first, n);
+                break;
+            }
+            lastRows[pages++] = last;
+            first = next[last + 1];
+            breakAtEnd = (first == n);
+            space = fullPage;
+        }
+        return new TablePlan(heights, offsets, Arrays.copyOf(firstRows, pages), Arrays.copyOf(lastRows, pages),
+                breakAtEnd);
+    }
+
+    private static int lastRow(TableRows rows, int first, int n) {
+        int last = n - 1;
+        while (last > first && rows.isEmpty(last)) {
+            last--;
+        }
+        return last;
+    }
+
+    // Measures a range of rows, splitting it between threads
+    private static final class Measure extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TableRows rows;
+        private final float[] widths;
+        private final int[] flags;
+        private final float x;
+        private final TextMetrics metrics;
+        private final float[] heights;
+        private final int from;
+        private final int to;
+
+        Measure(TableRows rows, float[] widths, int[] flags, float x, TextMetrics metrics, float[] heights,
+                int from, int to) {
+            this.rows = rows;
+            this.widths = widths;
+            this.flags = flags;
+            this.x = x;
+            this.metrics = metrics;
+            this.heights = heights;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ROWS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Measure(rows, widths, flags, x, metrics, heights, from, mid),
+                        new Measure(rows, widths, flags, x, metrics, heights, mid, to));
+                return;
+            }
+            TextMetrics own = metrics.copy();
+            for (int row = from; row < to; row++) {
+                if (!rows.isEmpty(row)) {
+                    heights[row] = own.rowHeight(rows, row, x, widths, flags);
+                }
+            }
+        }
+    }
+}
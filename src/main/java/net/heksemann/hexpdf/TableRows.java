@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+/**
+ * Row oriented view of table data, shared by the drawTable variants.
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+interface TableRows {
+
+    /**
+     * @return number of rows, including any header row
+     */
+    int size();
+
+    /**
+     * @param row row index
+     * @return true if the row should be skipped altogether
+     */
+    boolean isEmpty(int row);
+
+    /**
+     * @param row row index
+     * @param col column index
+     * @return cell content, a String, BufferedImage, RasterImage, ImageSource,
+     * VectorGraphic or null
+     */
+    Object cell(int row, int col);
+
+    /**
+     * Image source of a cell, used for fetching images ahead of the row being
+     * placed. Must not format or load the cell content.
+     *
+     * @param row row index
+     * @param col column index
+     * @return the image source of the cell, or null if it is not one
+     */
+    ImageSource imageSource(int row, int col);
+
+    /**
+     * Width of a single-line text cell, or a negative value if the cell must
+     * be measured and word-wrapped the normal way.
+     *
+     * @param row      row index
+     * @param col      column index
+     * @param font     font in use
+     * @param fontSize font size in use
+     * @return width in points
+     */
+    float cellWidth(int row, int col, PDFont font, float fontSize);
+
+    /**
+     * Columns whose cells are produced by a user function cannot be known
+     * without calling it, and are left out of the document fingerprint.
+     *
+     * @param col column index
+     * @return true if the cells of the column come from a user function
+     */
+    boolean isSupplied(int col);
+
+    /**
+     * Wrap a two-dimensional array. Rows that are null are skipped.
+     *
+     * @param table the table data
+     * @return table rows
+     */
+    static TableRows of(final Object[][] table) {
+        return new TableRows() {
+            @Override
+            public int size() {
+                return table.length;
+            }
+
+            @Override
+            public boolean isEmpty(int row) {
+                return table[row] == null;
+            }
+
+            @Override
+            public Object cell(int row, int col) {
+                return (col < table[row].length) ? table[row][col] : null;
+            }
+
+            @Override
+            public ImageSource imageSource(int row, int col) {
+                Object cell = (table[row] == null) ? null : cell(row, col);
+                return (cell instanceof ImageSource) ? (ImageSource) cell : null;
+            }
+
+            @Override
+            public float cellWidth(int row, int col, PDFont font, float fontSize) {
+                return -1;
+            }
+
+            @Override
+            public boolean isSupplied(int col) {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Wrap a set of columns. If any column has a header, a header row is
+     * added on top.
+     *
+     * @param columns the table columns
+     * @return table rows
+     */
+    static TableRows of(final TableColumn[] columns) {
+        int rows = 0;
+        boolean header = false;
+        for (TableColumn column : columns) {
+            rows = Math.max(rows, column.size());
+            header |= (column.getHeader() != null);
+        }
+        final int first = header ? 1 : 0;
+        final int size = rows + first;
+        return new TableRows() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean isEmpty(int row) {
+                return false;
+            }
+
+            @Override
+            public Object cell(int row, int col) {
+                return (row < first) ? columns[col].getHeader() : columns[col].cell(row - first);
+            }
+
+            @Override
+            public ImageSource imageSource(int row, int col) {
+                return (row < first) ? null : columns[col].imageSource(row - first);
+            }
+
+            @Override
+            public float cellWidth(int row, int col, PDFont font, float fontSize) {
+                return (row < first) ? -1 : columns[col].cellWidth(row - first, font, fontSize);
+            }
+
+            @Override
+            public boolean isSupplied(int col) {
+                return columns[col].isSupplied();
+            }
+        };
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDSimpleFont;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Text widths and line breaks for one font and font size. Used by HexPDF to
+ * lay out text, and to measure table rows before they are drawn, possibly on
+ * other threads. Instances keep glyph widths and are not thread safe, each
+ * measuring thread has a copy of its own.
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+final class TextMetrics {
+
+    private final PDFont font;
+    private final float fontSize;
+    private final float fixedAdvance;
+    private final FontFallback fallback;
+    private final float lineSep;
+    private final float cellMargin;
+    // Widths of Latin-1 characters, in glyph space, for simple fonts
+    private final float[] charWidths;
+
+    TextMetrics(PDFont font, float fontSize, float fixedAdvance, FontFallback fallback, float lineSep,
+            float cellMargin) {
+        this.font = font;
+        this.fontSize = fontSize;
+        this.fixedAdvance = fixedAdvance;
+        this.fallback = fallback;
+        this.lineSep = lineSep;
+        this.cellMargin = cellMargin;
+        if (font instanceof PDSimpleFont && fixedAdvance <= 0) {
+            charWidths = new float[256];
+            Arrays.fill(charWidths, Float.NaN);
+        } else {
+            charWidths = null;
+        }
+    }
+
+    TextMetrics copy() {
+        return new TextMetrics(font, fontSize, fixedAdvance, fallback, lineSep, cellMargin);
+    }
+
+    // True if made for the given settings
+    boolean isFor(PDFont font, float fontSize, float fixedAdvance, FontFallback fallback, float lineSep,
+            float cellMargin) {
+        return this.font == font && this.fontSize == fontSize && this.fixedAdvance == fixedAdvance
+                && this.fallback == fallback && this.lineSep == lineSep && this.cellMargin == cellMargin;
+    }
+
+    /*
+     * Height of a table row, as drawn by HexPDF.addRow. Text cells are laid
+     * out the way HexPDF._drawText lays them out, without drawing.
+     */
+    float rowHeight(TableRows rows, int row, float x, float[] widths, int[] flags) {
+        float maxh = 0;
+        float cellx = x;
+        for (int i = 0; i < widths.length; i++) {
+            Object cell = rows.cell(row, i);
+            float thish = 0;
+            if (cell instanceof String) {
+                String txt = (String) cell;
+                float textw = rows.cellWidth(row, i, font, fontSize);
+                if (textw >= 0 && textw <= widths[i] - 2 * cellMargin) {
+                    thish = txt.isEmpty() ? 0 : lineSep;
+                } else {
+                    thish = textHeight(txt, cellx + cellMargin, cellx + widths[i] - cellMargin, flags[i]);
+                }
+            } else if (cell instanceof VectorGraphic) {
+                thish = ((VectorGraphic) cell).getHeight();
+            } else if (cell instanceof RasterImage) {
+                thish = ((RasterImage) cell).getHeight();
+            } else if (cell instanceof ImageSource) {
+                thish = ((ImageSource) cell).getHeight();
+            } else if (cell instanceof BufferedImage) {
+                thish = ((BufferedImage) cell).getHeight();
+            }
+            cellx += widths[i];
+            maxh = (thish > maxh) ? thish : maxh;
+        }
+        return maxh;
+    }
+
+    private float textHeight(String txt, float startx, float endx, int flags) {
+        if (txt.isEmpty()) {
+            return 0;
+        }
+        int align = HexPDF.LEFT;
+        if ((flags & HexPDF.CENTER) > 0) {
+            align = HexPDF.CENTER;
+        } else if ((flags & HexPDF.RIGHT) > 0) {
+            align = HexPDF.RIGHT;
+        } else if ((flags & HexPDF.JUSTIFY) > 0) {
+            align = HexPDF.JUSTIFY;
+        }
+        TextTokens words = new TextTokens(txt);
+        float x = startx;
+        float height = lineSep;
+        int i = 0;
+        while (words.has(i)) {
+            int num = makeLine(words, i, endx - x);
+            if (num == -1) {
+                i++;
+                x = startx;
+                height += lineSep;
+            } else if (num == 0) {
+                if (x <= startx) {
+                    // A single word too big for the cell, drawn anyway
+                    i++;
+                }
+                x = startx;
+                height += lineSep;
+            } else {
+                String line = join(words, i, num);
+                float strlen = width(line);
+                if (x == startx && (align == HexPDF.RIGHT || align == HexPDF.CENTER || align == HexPDF.JUSTIFY)) {
+                    float space = endx - startx - strlen;
+                    if (align != HexPDF.JUSTIFY) {
+                        x += (align == HexPDF.RIGHT) ? space : space / 2;
+                    } else if (num > 1 && words.has(i + num) && !words.get(i + num).equals(TextTokens.NEWLINE)) {
+                        strlen += space;
+                    }
+                }
+                x += strlen;
+                i += num;
+            }
+        }
+        return height;
+    }
+
+    /*
+     * Number of words from first that fit on a line maxlen points wide, 0 if
+     * not even the first word fits, or -1 if the first token is a newline.
+     */
+    int makeLine(TextTokens words, int first, float maxlen) {
+        if (words.get(first).equals(TextTokens.NEWLINE)) {
+            return -1;
+        }
+        if (fixedAdvance > 0 && fallback == null) {
+            return makeFixedLine(words, first, maxlen);
+        }
+        int num = 0;
+        String result = "";
+        for (int i = first; words.has(i); i++) {
+            if (words.get(i).equals(TextTokens.NEWLINE)) {
+                return num;
+            }
+            String word = words.get(i);
+            if (num == 0) {
+                if (width(" " + word) > maxlen) {
+                    return 0;
+                }
+                result = word;
+            } else if (width(result + " " + word) > maxlen) {
+                return num;
+            } else {
+                result += " " + word;
+            }
+            num++;
+        }
+        return num;
+    }
+
+    // Same as makeLine, for fixed-pitch fonts where the width of a line is
+    // given by the number of characters alone.
+    private int makeFixedLine(TextTokens words, int first, float maxlen) {
+        int maxChars = (int) Math.floor(maxlen * 1000 / (fixedAdvance * fontSize) + 1e-4);
+        int num = 0;
+        int chars = 0;
+        for (int i = first; words.has(i); i++) {
+            if (words.get(i).equals(TextTokens.NEWLINE)) {
+                return num;
+            }
+            int len = words.get(i).length();
+            if (num == 0) {
+                if (len + 1 > maxChars) {
+                    return 0;
+                }
+                chars = len;
+            } else if (chars + 1 + len > maxChars) {
+                return num;
+            } else {
+                chars += 1 + len;
+            }
+            num++;
+        }
+        return num;
+    }
+
+    static String join(TextTokens words, int first, int num) {
+        if (num == 1) {
+            return words.get(first);
+        }
+        StringBuilder ret = new StringBuilder();
+        for (int i = first; i < first + num && words.has(i); i++) {
+            if (i > first) {
+                ret.append(' ');
+            }
+            ret.append(words.get(i));
+        }
+        return ret.toString();
+    }
+
+    /*
+     * Width of the text in points. Simple fonts map each character to one
+     * code, so the glyph widths of Latin-1 text are added up here, in the
+     * order the font adds them. Fonts cache glyph widths in plain maps, and
+     * may be shared by documents, so they are only asked while holding their
+     * lock.
+     */
+    float width(String txt) {
+        if (fallback != null && !fallback.covers(font, txt)) {
+            return fallback.width(font, fontSize, txt);
+        }
+        if (fixedAdvance > 0) {
+            return txt.length() * fixedAdvance * fontSize / 1000;
+        }
+        try {
+            if (charWidths != null) {
+                float w = 0;
+                int i = 0;
+                for (; i < txt.length() && txt.charAt(i) < 256; i++) {
+                    float cw = charWidths[txt.charAt(i)];
+                    if (Float.isNaN(cw)) {
+                        synchronized (font) {
+                            cw = font.getStringWidth(txt.substring(i, i + 1));
+                        }
+                        charWidths[txt.charAt(i)] = cw;
+                    }
+                    w += cw;
+                }
+                if (i == txt.length()) {
+                    return w * fontSize / 1000;
+                }
+            }
+            synchronized (font) {
+                return font.getStringWidth(txt) * fontSize / 1000;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(TextMetrics.class.getName()).log(Level.SEVERE, null, ex);
+            return 0;
+        }
+    }
+}
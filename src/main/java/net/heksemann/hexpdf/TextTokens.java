@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits text into words and newlines for layout, reading the text a chunk
+ * at a time.
+ * <p>
+ * Words are runs of non-whitespace characters. Every newline character gives
+ * a separate {@link #NEWLINE} token, other whitespace only separates words.
+ * Text starting with whitespace gives an empty first word, so that a leading
+ * space is kept when text is drawn right after other text.</p>
+ * <p>
+ * Only a window of tokens is held. Tokens are read from the source as they
+ * are asked for, and dropped when released, so arbitrarily large text can be
+ * laid out in bounded memory.</p>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+final class TextTokens {
+
+    /**
+     * Token marking an explicit newline. Never equal to a word, since words
+     * contain no whitespace.
+     */
+    static final String NEWLINE = "\n";
+
+    private static final int CHUNK = 8192;
+    private static final int RELEASE_THRESHOLD = 4096;
+
+    private final CharSequence text;
+    private final Reader reader;
+    private final char[] buf;
+    private int textPos = 0;
+    private boolean eof = false;
+    private boolean started = false;
+
+    private final StringBuilder word = new StringBuilder();
+    private final ArrayList<String> tokens = new ArrayList<String>();
+    private int base = 0;
+
+    /**
+     * Tokens of a text held in memory.
+     *
+     * @param text the text
+     */
+    TextTokens(CharSequence text) {
+        this.text = text;
+        this.reader = null;
+        this.buf = null;
+    }
+
+    /**
+     * Tokens of a text read from a reader. The reader is not closed.
+     *
+     * @param reader the text source
+     */
+    TextTokens(Reader reader) {
+        this.text = null;
+        this.reader = reader;
+        this.buf = new char[CHUNK];
+    }
+
+    /**
+     * Get a token by its position in the text.
+     *
+     * @param i token index, not below the last released index
+     * @return the token, or null if the text has fewer tokens
+     */
+    String get(int i) {
+        while (i - base >= tokens.size() && !eof) {
+            fill();
+        }
+        return (i - base < tokens.size()) ? tokens.get(i - base) : null;
+    }
+
+    /**
+     * Tells whether there is a token at the given position.
+     *
+     * @param i token index
+     * @return true if the text has a token at index i
+     */
+    boolean has(int i) {
+        return get(i) != null;
+    }
+
+    /**
+     * Tell that tokens before the given position will not be asked for again.
+     *
+     * @param i first token index still needed
+     */
+    void release(int i) {
+        if (i - base > RELEASE_THRESHOLD) {
+            tokens.subList(0, Math.min(i - base, tokens.size())).clear();
+            base = i;
+        }
+    }
+
+    // Read and split the next chunk of text
+    private void fill() {
+        int len;
+        if (reader != null) {
+            try {
+                len = reader.read(buf, 0, CHUNK);
+            } catch (IOException ex) {
+                Logger.getLogger(TextTokens.class.getName()).log(Level.SEVERE, null, ex);
+                len = -1;
+            }
+            if (len > 0) {
+                split(buf, 0, len);
+            }
+        } else {
+            len = Math.min(CHUNK, text.length() - textPos);
+            if (len > 0) {
+                split(text, textPos, len);
+                textPos += len;
+            }
+        }
+        if (len <= 0) {
+            eof = true;
+            endWord();
+        }
+    }
+
+    private void split(char[] chars, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            next(chars[i]);
+        }
+    }
+
+    private void split(CharSequence chars, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            next(chars.charAt(i));
+        }
+    }
+
+    private void next(char c) {
+        if (isWhitespace(c)) {
+            if (!started) {
+                tokens.add("");
+            }
+            endWord();
+            if (c == '\n') {
+                tokens.add(NEWLINE);
+            }
+        } else {
+            word.append(c);
+        }
+        started = true;
+    }
+
+    private void endWord() {
+        if (word.length() > 0) {
+            tokens.add(word.toString());
+            word.setLength(0);
+        }
+    }
+
+    // Same characters as \s in a regular expression
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A drawing of lines, rectangles, filled areas and labels, drawn into the
+ * document as PDF path operators rather than as an image.
+ * <p>
+ * A graphic has a fixed width and height in points, and is placed like an
+ * image, see {@link HexPDF#drawGraphic(VectorGraphic, int)}. Coordinates are
+ * in points from the top-left corner of the graphic, with y growing
+ * downwards as on the page cursor. Nothing is clipped to the size of the
+ * graphic.</p>
+ * <p>
+ * Stroke colour, fill colour and line width are black, black and 1 at the
+ * start of the graphic and apply to the parts added after them. Labels use
+ * the font of the document when drawn and the fill colour. Colour and line
+ * settings do not leak out of the graphic into the rest of the page.</p>
+ * <p>
+ * The parts are kept as a compact list, so that a graphic can be drawn many
+ * times, also in several documents. It may be changed between drawings, but
+ * not while a document is drawing it from another thread.</p>
+ * <pre>
+ * <code>
+ *     VectorGraphic g = new VectorGraphic(200, 100);
+ *     g.setStrokeColor(HexColor.DARK_GRAY);
+ *     g.line(0, 100, 200, 100);
+ *     g.setFillColor(HexColor.BLUE);
+ *     g.fillRect(20, 40, 30, 60);
+ *     g.label("Q1", 35, 96, 8, HexPDF.CENTER);
+ *     doc.drawGraphic(g, HexPDF.CENTER | HexPDF.NEWLINE);
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see Charts
+ */
+public final class VectorGraphic {
+
+    private static final int STROKE_COLOR = 1;
+    private static final int FILL_COLOR = 2;
+    private static final int LINE_WIDTH = 3;
+    private static final int LINE = 4;
+    private static final int POLYLINE = 5;
+    private static final int RECT = 6;
+    private static final int FILL_RECT = 7;
+    private static final int FILL_AREA = 8;
+    private static final int LABEL = 9;
+
+    private final float width;
+    private final float height;
+    private byte[] ops = new byte[16];
+    private int numOps = 0;
+    private float[] args = new float[64];
+    private int numArgs = 0;
+    private final List<String> labels = new ArrayList<String>();
+
+    /**
+     * @param width  width in points
+     * @param height height in points
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public VectorGraphic(float width, float height) {
+        if (!(width >= 0 && height >= 0)) {
+            throw new IllegalArgumentException("Graphic size must not be negative, but is " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return width in points
+     */
+    public float getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height in points
+     */
+    public float getHeight() {
+        return height;
+    }
+
+    /**
+     * @param color colour of lines and rectangle outlines added after this
+     * @return this graphic
+     */
+    public VectorGraphic setStrokeColor(HexColor color) {
+        return op(STROKE_COLOR).arg(color.getRed()).arg(color.getGreen()).arg(color.getBlue());
+    }
+
+    /**
+     * @param color colour of filled shapes and labels added after this
+     * @return this graphic
+     */
+    public VectorGraphic setFillColor(HexColor color) {
+        return op(FILL_COLOR).arg(color.getRed()).arg(color.getGreen()).arg(color.getBlue());
+    }
+
+    /**
+     * @param lineWidth width in points of lines added after this, 0 for the
+     *                  thinnest line the device can show
+     * @return this graphic
+     */
+    public VectorGraphic setLineWidth(float lineWidth) {
+        if (!(lineWidth >= 0)) {
+            throw new IllegalArgumentException("Line width must not be negative, but is " + lineWidth);
+        }
+        return op(LINE_WIDTH).arg(lineWidth);
+    }
+
+    /**
+     * A straight line.
+     *
+     * @param x1 start x
+     * @param y1 start y
+     * @param x2 end x
+     * @param y2 end y
+     * @return this graphic
+     */
+    public VectorGraphic line(float x1, float y1, float x2, float y2) {
+        return op(LINE).arg(x1).arg(y1).arg(x2).arg(y2);
+    }
+
+    /**
+     * Connected straight lines through the points.
+     *
+     * @param x x of each point
+     * @param y y of each point
+     * @return this graphic
+     * @throws IllegalArgumentException if there are less than two points, or
+     *                                  x and y differ in length
+     */
+    public VectorGraphic polyline(float[] x, float[] y) {
+        return points(POLYLINE, x, y, 2);
+    }
+
+    /**
+     * The outline of a rectangle.
+     *
+     * @param x left side
+     * @param y top side
+     * @param w width
+     * @param h height
+     * @return this graphic
+     */
+    public VectorGraphic rect(float x, float y, float w, float h) {
+        return op(RECT).arg(x).arg(y).arg(w).arg(h);
+    }
+
+    /**
+     * A filled rectangle, without outline.
+     *
+     * @param x left side
+     * @param y top side
+     * @param w width
+     * @param h height
+     * @return this graphic
+     */
+    public VectorGraphic fillRect(float x, float y, float w, float h) {
+        return op(FILL_RECT).arg(x).arg(y).arg(w).arg(h);
+    }
+
+    /**
+     * A filled area inside the closed polygon through the points, without
+     * outline.
+     *
+     * @param x x of each corner
+     * @param y y of each corner
+     * @return this graphic
+     * @throws IllegalArgumentException if there are less than three points,
+     *                                  or x and y differ in length
+     */
+    public VectorGraphic fillArea(float[] x, float[] y) {
+        return points(FILL_AREA, x, y, 3);
+    }
+
+    /**
+     * A single line of text, for axis labels and the like.
+     *
+     * @param text     the text, without newlines
+     * @param x        where the text starts, is centred or ends, see flags
+     * @param y        baseline of the text
+     * @param fontSize font size
+     * @param flags    <code>HexPDF.LEFT | HexPDF.CENTER | HexPDF.RIGHT</code>
+     *                 for text starting, centred or ending at x, LEFT if none
+     * @return this graphic
+     */
+    public VectorGraphic label(String text, float x, float y, float fontSize, int flags) {
+        if (text == null || text.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Label must be a single line of text, but is " + text);
+        }
+        labels.add(text);
+        return op(LABEL).arg(x).arg(y).arg(fontSize).arg(flags);
+    }
+
+    private VectorGraphic points(int op, float[] x, float[] y, int min) {
+        if (x.length != y.length || x.length < min) {
+            throw new IllegalArgumentException("Expected at least " + min + " points with x and y, got "
+                    + x.length + " x and " + y.length + " y");
+        }
+        op(op).arg(x.length);
+        for (int i = 0; i < x.length; i++) {
+            arg(x[i]).arg(y[i]);
+        }
+        return this;
+    }
+
+    private VectorGraphic op(int op) {
+        if (numOps == ops.length) {
+            ops = Arrays.copyOf(ops, 2 * numOps);
+        }
+        ops[numOps++] = (byte) op;
+        return this;
+    }
+
+    private VectorGraphic arg(float arg) {
+        if (numArgs == args.length) {
+            args = Arrays.copyOf(args, 2 * numArgs);
+        }
+        args[numArgs++] = arg;
+        return this;
+    }
+
+    /**
+     * Write the graphic as path operators, with its top-left corner at x, top
+     * on the page. The graphics state is saved and restored around it.
+     *
+     * @param cs   the content stream
+     * @param font font for labels
+     * @param x    left side on the page
+     * @param top  top side on the page
+     * @throws IOException if writing fails
+     */
+    void writeTo(PDPageContentStream cs, PDFont font, float x, float top) throws IOException {
+        cs.saveGraphicsState();
+        int a = 0;
+        int label = 0;
+        for (int i = 0; i < numOps; i++) {
+            switch (ops[i]) {
+                case STROKE_COLOR:
+                case FILL_COLOR: {
+                    PDColor color = new PDColor(new float[]{args[a], args[a + 1], args[a + 2]}, PDDeviceRGB.INSTANCE);
+                    a += 3;
+                    if (ops[i] == STROKE_COLOR) {
+                        cs.setStrokingColor(color);
+                    } else {
+                        cs.setNonStrokingColor(color);
+                    }
+                    break;
+                }
+                case LINE_WIDTH:
+                    cs.setLineWidth(args[a++]);
+                    break;
+                case LINE:
+                    cs.moveTo(x + args[a], top - args[a + 1]);
+                    cs.lineTo(x + args[a + 2], top - args[a + 3]);
+                    a += 4;
+                    cs.stroke();
+                    break;
+                case POLYLINE:
+                case FILL_AREA: {
+                    int n = (int) args[a++];
+                    for (int p = 0; p < n; p++) {
+                        if (p == 0) {
+                            cs.moveTo(x + args[a], top - args[a + 1]);
+                        } else {
+                            cs.lineTo(x + args[a], top - args[a + 1]);
+                        }
+                        a += 2;
+                    }
+                    if (ops[i] == POLYLINE) {
+                        cs.stroke();
+                    } else {
+                        cs.fill();
+                    }
+                    break;
+                }
+                case RECT:
+                case FILL_RECT:
+                    cs.addRect(x + args[a], top - args[a + 1] - args[a + 3], args[a + 2], args[a + 3]);
+                    a += 4;
+                    if (ops[i] == RECT) {
+                        cs.stroke();
+                    } else {
+                        cs.fill();
+                    }
+                    break;
+                case LABEL: {
+                    String text = labels.get(label++);
+                    float lx = x + args[a++];
+                    float ly = top - args[a++];
+                    float size = args[a++];
+                    int flags = (int) args[a++];
+                    // Locked as when HexPDF draws text, the font may be shared
+                    synchronized (font) {
+                        if ((flags & (HexPDF.CENTER | HexPDF.RIGHT)) != 0) {
+                            float w = font.getStringWidth(text) / 1000 * size;
+                            lx -= ((flags & HexPDF.CENTER) != 0) ? w / 2 : w;
+                        }
+                        cs.beginText();
+                        cs.setFont(font, size);
+                        cs.newLineAtOffset(lx, ly);
+                        cs.showText(text);
+                        cs.endText();
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown graphic operation " + ops[i]);
+            }
+        }
+        cs.restoreGraphicsState();
+    }
+
+    /**
+     * Add the parts of the graphic to a fingerprint.
+     *
+     * @param fingerprint the fingerprint
+     */
+    void addTo(Fingerprint fingerprint) {
+        fingerprint.add(width).add(height).add(numOps).add(numArgs).add(labels.size());
+        for (int i = 0; i < numOps; i++) {
+            fingerprint.add(ops[i]);
+        }
+        for (int i = 0; i < numArgs; i++) {
+            fingerprint.add(args[i]);
+        }
+        for (String text : labels) {
+            fingerprint.add(text);
+        }
+    }
+
+    /**
+     * Write the graphic to a HexPDFRecorder log.
+     *
+     * @param out the log
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeFloat(width);
+        out.writeFloat(height);
+        out.writeInt(numOps);
+        out.write(ops, 0, numOps);
+        out.writeInt(numArgs);
+        for (int i = 0; i < numArgs; i++) {
+            out.writeFloat(args[i]);
+        }
+        out.writeInt(labels.size());
+        for (String text : labels) {
+            out.writeUTF(text);
+        }
+    }
+
+    /**
+     * Read a graphic written by {@link #writeTo(java.io.DataOutputStream)}.
+     *
+     * @param in the log
+     * @return the graphic
+     * @throws IOException if the graphic is not valid
+     */
+    static VectorGraphic readFrom(DataInputStream in) throws IOException {
+        VectorGraphic g;
+        try {
+            g = new VectorGraphic(in.readFloat(), in.readFloat());
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Bad graphic in log", ex);
+        }
+        int n = in.readInt();
+        if (n < 0 || n > in.available()) {
+            throw new IOException("Log is truncated");
+        }
+        g.ops = new byte[Math.max(n, 1)];
+        in.readFully(g.ops, 0, n);
+        g.numOps = n;
+        n = in.readInt();
+        if (n < 0 || n > in.available() / 4) {
+            throw new IOException("Log is truncated");
+        }
+        g.args = new float[Math.max(n, 1)];
+        for (int i = 0; i < n; i++) {
+            g.args[i] = in.readFloat();
+        }
+        g.numArgs = n;
+        n = in.readInt();
+        if (n < 0 || n > in.available() / 2) {
+            throw new IOException("Log is truncated");
+        }
+        for (int i = 0; i < n; i++) {
+            g.labels.add(in.readUTF());
+        }
+        g.check();
+        return g;
+    }
+
+    // Check that the operations match the arguments, for graphics read from a log
+    private void check() throws IOException {
+        int a = 0;
+        int label = 0;
+        for (int i = 0; i < numOps && a <= numArgs; i++) {
+            switch (ops[i]) {
+                case LINE_WIDTH:
+                    a += 1;
+                    break;
+                case STROKE_COLOR:
+                case FILL_COLOR:
+                    a += 3;
+                    break;
+                case LINE:
+                case RECT:
+                case FILL_RECT:
+                    a += 4;
+                    break;
+                case LABEL:
+                    a += 4;
+                    label++;
+                    break;
+                case POLYLINE:
+                case FILL_AREA:
+                    a = (a < numArgs && args[a] >= 0 && args[a] <= numArgs) ? a + 1 + 2 * (int) args[a] : numArgs + 1;
+                    break;
+                default:
+                    throw new IOException("Unknown graphic operation " + ops[i] + " in log");
+            }
+        }
+        if (a != numArgs || label != labels.size()) {
+            throw new IOException("Graphic operations do not match their arguments in log");
+        }
+    }
+}
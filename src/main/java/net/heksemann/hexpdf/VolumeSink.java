@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.heksemann.hexpdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destination of the volumes of a document split into several files.
+ * <p>
+ * When set with {@link HexPDF#setVolumes(VolumeSink, int, long)}, each
+ * volume is written to a stream opened here as soon as it is full. With a
+ * writer executor the streams are opened and written on the executor, so
+ * implementations must then be safe for use from several threads.</p>
+ * <p>
+ * Example writing each volume to a file of its own</p>
+ * <pre>
+ * <code>
+ *     doc.setVolumes(new VolumeSink() {
+ *         public OutputStream openVolume(int volume) throws IOException {
+ *             return new FileOutputStream(String.format("report-%03d.pdf", volume));
+ *         }
+ *     }, 500, 0);
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ * @see HexPDF#finishVolumes()
+ */
+public interface VolumeSink {
+
+    /**
+     * Open the stream for a volume. The stream is closed when the volume is
+     * written.
+     *
+     * @param volume number of the volume, starting at 1
+     * @return where to write the volume
+     * @throws IOException if the stream cannot be opened
+     */
+    OutputStream openVolume(int volume) throws IOException;
+}
@@ -31,12 +31,16 @@ import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.awt.Image;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 import net.heksemann.hexpdf.Footer;
 import net.heksemann.hexpdf.HexPDF;
+import net.heksemann.hexpdf.HexPDFStyle;
+import net.heksemann.hexpdf.ImagePrefetcher;
+import net.heksemann.hexpdf.ImageSource;
 
 /**
  * Create a simple, two-page, A4 document with text, images and a table.
@@ -54,13 +58,22 @@ public class CreateHexPDFdoc {
         BufferedImage overlay = getImage(imgPath2, 400, 300);
         Object[][] table = getTable();
 
-        // Create a new document and include a default footer
-        HexPDF doc = new HexPDF();
-        doc.setFooter(Footer.defaultFooter);
+        // Start from a default footer
+        Footer footer = new Footer();
         // Change center text in footer
-        doc.getFooter().setCenterText("A simple PDF document\nWritten by me");
+        footer.setCenterText("A simple PDF document\nWritten by me");
         // Use footer also on first page
-        doc.getFooter().setOMIT_FIRSTPAGE(false);
+        footer.setOMIT_FIRSTPAGE(false);
+        // A style is immutable, and could be shared by many documents
+        HexPDFStyle style = HexPDFStyle.builder()
+                .setFooter(footer)
+                .build();
+
+        // Create a new document with the style
+        HexPDF doc = new HexPDF(style);
+        // Fetch table images in the background, a few rows ahead
+        ImagePrefetcher prefetcher = new ImagePrefetcher(4, 8, 4);
+        doc.setImagePrefetcher(prefetcher);
 
         // Create the first page
         doc.newPage();
@@ -120,6 +133,7 @@ public class CreateHexPDFdoc {
 
         // Save the document
         doc.finish("myHexPDFfile.pdf");
+        prefetcher.close();
     }
 
     public CreateHexPDFdoc() {
@@ -144,6 +158,15 @@ public class CreateHexPDFdoc {
         return image;
     }
 
+    private ImageSource getImageSource(String fn, int w, int h) {
+        try {
+            return ImageSource.fromURL(new URL(fn), w, h);
+        } catch (MalformedURLException ex) {
+            Logger.getLogger(CreateHexPDFdoc.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
     private String getText(int num) {
         String[] txt = {"Lorem ipsum dolor sit amet, consectetur adipiscing elit. Multa sunt dicta ab antiquis de contemnendis ac despiciendis rebus humanis; Duo Reges: constructio interrete. Id Sextilius factum negabat. Tum Quintus: Est plane, Piso, ut dicis, inquit.\n\n",
             "Quasi vero, inquit, perpetua oratio rhetorum solum, non etiam philosophorum sit. Septem autem illi non suo, sed populorum suffragio omnium nominati sunt. Cur post Tarentum ad Archytam? Quia nec honesto quic quam honestius nec turpi turpius. Re mihi non aeque satisfacit, et quidem locis pluribus. Unum nescio, quo modo possit, si luxuriosus sit, finitas cupiditates habere. Ad quorum et cognitionem et usum iam corroborati natura ipsa praeeunte deducimur.\n\n",
@@ -162,14 +185,14 @@ public class CreateHexPDFdoc {
         String base = "https://flagspot.net/images/";
         Object[][] tab = {
             {null,                                "Country", "Area", "Population", "Info"},
-            {getImage(base + "n/no.gif", 50, 40), "Norway",  "col2", "col2", "col4"},
-            {getImage(base + "s/se.gif", 50, 40), "Sweden",  "col2", "col2", "col4"},
-            {getImage(base + "d/dk.gif", 50, 40), "Denmark", "col2", "col2", "col4"},
-            {getImage(base + "v/vn.gif", 50, 40), "Vietnam", "col2", "col2", "col4"},
-            {getImage(base + "t/th.gif", 50, 40), "Thaland", "col2", "col2", "col4"},
-            {getImage(base + "m/mm.gif", 50, 40), "Burma",   "col2", "col2", "col4"},
-            {getImage(base + "u/us.gif", 50, 40), "USA", "col2", "col2", "col4"},
-            {getImage(base + "d/de.gif", 50, 40), "Germany", "col2", "col2", "col4"}
+            {getImageSource(base + "n/no.gif", 50, 40), "Norway",  "col2", "col2", "col4"},
+            {getImageSource(base + "s/se.gif", 50, 40), "Sweden",  "col2", "col2", "col4"},
+            {getImageSource(base + "d/dk.gif", 50, 40), "Denmark", "col2", "col2", "col4"},
+            {getImageSource(base + "v/vn.gif", 50, 40), "Vietnam", "col2", "col2", "col4"},
+            {getImageSource(base + "t/th.gif", 50, 40), "Thaland", "col2", "col2", "col4"},
+            {getImageSource(base + "m/mm.gif", 50, 40), "Burma",   "col2", "col2", "col4"},
+            {getImageSource(base + "u/us.gif", 50, 40), "USA", "col2", "col2", "col4"},
+            {getImageSource(base + "d/de.gif", 50, 40), "Germany", "col2", "col2", "col4"}
         };
         return tab;
     }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Frank J. Øynes, heksemann@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This file, StartupBenchmark.java, measures the time to the first document
+ * in a new JVM.
+ *
+ */
+package net.heksemann.hexpdf.examples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import net.heksemann.hexpdf.HexPDF;
+import net.heksemann.hexpdf.StandardFontMetrics;
+
+/**
+ * Measure the time from JVM start to the first finished document, and the
+ * time of a second document for comparison.
+ * <p>
+ * Run it once per measurement, as only the first document in a JVM shows the
+ * cost of starting up. Give <code>--metrics</code> to use the precomputed
+ * Standard 14 font metrics. The <code>startup</code> build profile also runs
+ * it to record the classes for the AppCDS archive.</p>
+ * <pre>
+ * <code>
+ *     java -cp (class path) net.heksemann.hexpdf.examples.StartupBenchmark --metrics
+ *     java -XX:SharedArchiveFile=target/hexpdf.jsa -cp (class path) net.heksemann.hexpdf.examples.StartupBenchmark --metrics
+ * </code>
+ * </pre>
+ *
+ * @author Frank J. Øynes, heksemann@gmail.com
+ */
+public class StartupBenchmark {
+
+    private static byte[] createDocument() throws IOException {
+        HexPDF doc = new HexPDF();
+        try {
+            doc.newPage();
+            doc.title1Style();
+            doc.drawText("Startup benchmark\n", HexPDF.CENTER);
+            doc.normalStyle();
+            doc.drawText("The quick brown fox jumps over the lazy dog. ", HexPDF.LEFT);
+            doc.drawTable(new Object[][]{{"Key", "Value"}, {"One", "1"}, {"Two", "2"}},
+                    new float[]{100, 100},
+                    new int[]{HexPDF.LEFT, HexPDF.RIGHT},
+                    HexPDF.LEFT);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            doc.finish(out);
+            return out.toByteArray();
+        } finally {
+            doc.close();
+        }
+    }
+
+    /**
+     * @param args <code>--metrics</code> to use the precomputed font metrics
+     * @throws IOException if a document could not be made
+     */
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        if (args.length > 0 && args[0].equals("--metrics")) {
+            StandardFontMetrics.install();
+        }
+        long installed = System.nanoTime();
+        byte[] first = createDocument();
+        long firstDone = System.nanoTime();
+        createDocument();
+        long secondDone = System.nanoTime();
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+
+        System.out.println("Font metrics installed: " + StandardFontMetrics.isInstalled()
+                + " (" + (installed - start) / 1000000 + " ms)");
+        System.out.println("First document:  " + (firstDone - start) / 1000000 + " ms, "
+                + first.length + " bytes");
+        System.out.println("Second document: " + (secondDone - firstDone) / 1000000 + " ms");
+        System.out.println("JVM start to first document: "
+                + (uptime - (secondDone - firstDone) / 1000000) + " ms");
+    }
+}